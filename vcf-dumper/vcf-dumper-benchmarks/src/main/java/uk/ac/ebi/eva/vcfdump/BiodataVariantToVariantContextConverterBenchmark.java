@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import org.opencb.biodata.models.variant.Variant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of batches of variants, reporting the time per variant. The converter is created once, as the exporter
+ * does for each thread
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BiodataVariantToVariantContextConverterBenchmark {
+
+    private static final int VARIANTS = 1000;
+
+    @Param({"10", "1000"})
+    private int samplesPerStudy;
+
+    @Param({"1", "5"})
+    private int studies;
+
+    @Param({"0", "50"})
+    private int indelPercentage;
+
+    @Param({"0", "20"})
+    private int consequenceTypes;
+
+    @Param({"false", "true"})
+    private boolean sampleNameConflict;
+
+    private SyntheticVariants syntheticVariants;
+
+    private BiodataVariantToVariantContextConverter converter;
+
+    @Setup
+    public void setUp() {
+        syntheticVariants = new SyntheticVariants(1, VARIANTS, 100, studies, samplesPerStudy, indelPercentage,
+                                                  consequenceTypes, sampleNameConflict);
+        SampleNameTable sampleNameTable =
+                new VariantExporter().createNonConflictingSampleNames(syntheticVariants.getSources());
+        converter = new BiodataVariantToVariantContextConverter(syntheticVariants.getSources(), sampleNameTable);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VARIANTS)
+    public void transform(Blackhole blackhole) {
+        syntheticVariants.restoreAlleles();
+        for (Variant variant : syntheticVariants.getVariants()) {
+            blackhole.consume(converter.transform(variant));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import org.opencb.biodata.models.variant.VariantSource;
+import org.opencb.datastore.core.QueryResult;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantSourceDBAdaptor;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+/**
+ * Source adaptor returning the synthetic sources, so the sources and headers can be loaded without a database
+ */
+public class InMemorySourceDBAdaptor {
+
+    public static VariantSourceDBAdaptor create(List<VariantSource> sources) {
+        return (VariantSourceDBAdaptor) Proxy.newProxyInstance(
+                VariantSourceDBAdaptor.class.getClassLoader(), new Class[]{VariantSourceDBAdaptor.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAllSourcesByStudyIds":
+                            return new QueryResult<>("sources", 0, sources.size(), sources.size(), null, null,
+                                                     sources);
+                        case "close":
+                            return true;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
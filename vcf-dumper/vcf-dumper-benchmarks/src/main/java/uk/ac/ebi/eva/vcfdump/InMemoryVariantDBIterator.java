@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantDBIterator;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Iterator over variants already in memory, used to measure the export without the database queries
+ */
+public class InMemoryVariantDBIterator extends VariantDBIterator {
+
+    private final Iterator<Variant> iterator;
+
+    public InMemoryVariantDBIterator(List<Variant> variants) {
+        this.iterator = variants.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    @Override
+    public Variant next() {
+        return iterator.next();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.vcf.VCFHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merge of the headers of the exported files: parsing and merging them, and getting a copy of a cached merged header
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MergedVcfHeaderBenchmark {
+
+    private static final String DB_NAME = "eva_benchmark";
+
+    @Param({"10", "1000"})
+    private int samplesPerStudy;
+
+    @Param({"1", "5", "20"})
+    private int studies;
+
+    @Param({"false", "true"})
+    private boolean excludeAnnotations;
+
+    private SyntheticVariants syntheticVariants;
+
+    private VariantExporter exporter;
+
+    private VariantExporter cachingExporter;
+
+    @Setup
+    public void setUp() throws IOException {
+        syntheticVariants = new SyntheticVariants(1, 1, 100, studies, samplesPerStudy, 0, 0, false);
+        exporter = new VariantExporter();
+        exporter.createNonConflictingSampleNames(syntheticVariants.getSources());
+
+        cachingExporter = new VariantExporter();
+        cachingExporter.getSources(DB_NAME, InMemorySourceDBAdaptor.create(syntheticVariants.getSources()),
+                                   syntheticVariants.getStudyIds(), Collections.emptyList());
+        cachingExporter.getMergedVcfHeader(excludeAnnotations);
+    }
+
+    @Benchmark
+    public VCFHeader mergeHeaders() throws IOException {
+        return exporter.getMergedVcfHeader(syntheticVariants.getSources(), excludeAnnotations);
+    }
+
+    @Benchmark
+    public VCFHeader cachedMergedHeader() throws IOException {
+        return cachingExporter.getMergedVcfHeader(excludeAnnotations);
+    }
+}
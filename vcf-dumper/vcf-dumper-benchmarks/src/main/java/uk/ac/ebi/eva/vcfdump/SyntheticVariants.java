@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import org.opencb.biodata.models.feature.Region;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.VariantSource;
+import org.opencb.biodata.models.variant.VariantSourceEntry;
+import org.opencb.biodata.models.variant.VariantVcfFactory;
+import org.opencb.biodata.models.variant.annotation.ConsequenceType;
+import org.opencb.opencga.storage.mongodb.variant.DBObjectToVariantSourceConverter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible variants and sources for the benchmarks. Every study has one file, and every variant is present in
+ * all the studies, so the converter has to merge the genotypes of all of them. The indels are built from VCF lines,
+ * like the ones loaded in the database, so they contain the 'src' attribute needed to get the context nucleotide
+ */
+public class SyntheticVariants {
+
+    public static final String CHROMOSOME = "1";
+
+    private static final String[] BASES = {"A", "C", "G", "T"};
+
+    private static final String[] GENOTYPES = {"0|0", "0|0", "0|0", "0|1", "1|0", "1|1", "0/0", "0/1", "1/1", "./."};
+
+    private static final String[] SO_TERMS = {"missense_variant", "synonymous_variant", "intron_variant",
+            "upstream_gene_variant", "downstream_gene_variant", "3_prime_UTR_variant", "5_prime_UTR_variant",
+            "splice_region_variant", "non_coding_transcript_exon_variant", "regulatory_region_variant"};
+
+    private final List<VariantSource> sources;
+
+    private final List<Variant> variants;
+
+    /**
+     * Normalized coordinates and alleles of each variant. The converter modifies the indels when adding the context
+     * nucleotide, so they have to be restored before converting the same variants again
+     */
+    private final int[] starts;
+
+    private final int[] ends;
+
+    private final String[] references;
+
+    private final String[] alternates;
+
+    /**
+     * @param variants           number of variants, one every 'distance' bases starting at position 'distance'
+     * @param studies            number of studies (and files) containing every variant
+     * @param samplesPerStudy    number of samples of each study
+     * @param indelPercentage    percentage of the variants that are indels instead of SNVs
+     * @param consequenceTypes   number of consequence types in the annotation of each variant
+     * @param sampleNameConflict whether the samples have the same names in every study, so they have to be renamed
+     */
+    public SyntheticVariants(long seed, int variants, int distance, int studies, int samplesPerStudy,
+                             int indelPercentage, int consequenceTypes, boolean sampleNameConflict) {
+        Random random = new Random(seed);
+        this.sources = createSources(studies, samplesPerStudy, sampleNameConflict);
+        this.variants = new ArrayList<>(variants);
+        this.starts = new int[variants];
+        this.ends = new int[variants];
+        this.references = new String[variants];
+        this.alternates = new String[variants];
+
+        VariantVcfFactory variantFactory = new VariantVcfFactory();
+        for (int i = 0; i < variants; i++) {
+            int position = (i + 1) * distance;
+            boolean indel = random.nextInt(100) < indelPercentage;
+            String[] alleles = indel ? createIndelAlleles(random) : createSnvAlleles(random);
+
+            Variant variant = null;
+            for (VariantSource source : sources) {
+                String line = createVcfLine(random, position, alleles, source.getSamples().size());
+                Variant studyVariant = variantFactory.create(source, line).get(0);
+                if (variant == null) {
+                    variant = studyVariant;
+                } else {
+                    for (VariantSourceEntry sourceEntry : studyVariant.getSourceEntries().values()) {
+                        variant.addSourceEntry(sourceEntry);
+                    }
+                }
+            }
+            if (consequenceTypes > 0) {
+                variant.getAnnotation().setConsequenceTypes(createConsequenceTypes(random, consequenceTypes));
+            }
+            this.variants.add(variant);
+            starts[i] = variant.getStart();
+            ends[i] = variant.getEnd();
+            references[i] = variant.getReference();
+            alternates[i] = variant.getAlternate();
+        }
+    }
+
+    public List<VariantSource> getSources() {
+        return sources;
+    }
+
+    public List<String> getStudyIds() {
+        List<String> studyIds = new ArrayList<>();
+        sources.forEach(source -> studyIds.add(source.getStudyId()));
+        return studyIds;
+    }
+
+    public List<Variant> getVariants() {
+        return variants;
+    }
+
+    /**
+     * Region containing all the variants
+     */
+    public Region getRegion() {
+        return new Region(CHROMOSOME, 1, variants.get(variants.size() - 1).getEnd() + 1);
+    }
+
+    /**
+     * Undoes the changes made by the converter, so the variants can be converted again as if they were just read
+     */
+    public void restoreAlleles() {
+        for (int i = 0; i < variants.size(); i++) {
+            Variant variant = variants.get(i);
+            variant.setStart(starts[i]);
+            variant.setEnd(ends[i]);
+            variant.setReference(references[i]);
+            variant.setAlternate(alternates[i]);
+        }
+    }
+
+    private List<VariantSource> createSources(int studies, int samplesPerStudy, boolean sampleNameConflict) {
+        List<VariantSource> sources = new ArrayList<>();
+        for (int study = 1; study <= studies; study++) {
+            String samplePrefix = sampleNameConflict ? "sample_" : "study_" + study + "_sample_";
+            List<String> samples = new ArrayList<>();
+            for (int sample = 1; sample <= samplesPerStudy; sample++) {
+                samples.add(samplePrefix + sample);
+            }
+
+            VariantSource source = new VariantSource("file_" + study + ".vcf.gz", "file_" + study, "study_" + study,
+                                                     "Study " + study);
+            source.setSamples(samples);
+            source.addMetadata(DBObjectToVariantSourceConverter.HEADER_FIELD, createVcfHeader(study, samples));
+            sources.add(source);
+        }
+        return sources;
+    }
+
+    /**
+     * Header with some lines shared by every study and some specific to each one, so they have to be merged
+     */
+    private String createVcfHeader(int study, List<String> samples) {
+        StringBuilder header = new StringBuilder();
+        header.append("##fileformat=VCFv4.1\n")
+              .append("##FILTER=<ID=q10,Description=\"Quality below 10\">\n")
+              .append("##INFO=<ID=AC,Number=A,Type=Integer,Description=\"Allele count in genotypes\">\n")
+              .append("##INFO=<ID=AN,Number=1,Type=Integer,Description=\"Total number of alleles\">\n")
+              .append("##INFO=<ID=STUDY").append(study)
+              .append(",Number=1,Type=String,Description=\"Annotation specific to study ").append(study)
+              .append("\">\n")
+              .append("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n")
+              .append("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Read depth\">\n")
+              .append("##contig=<ID=").append(CHROMOSOME).append(",length=249250621>\n")
+              .append("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for (String sample : samples) {
+            header.append("\t").append(sample);
+        }
+        return header.append("\n").toString();
+    }
+
+    private String[] createSnvAlleles(Random random) {
+        int reference = random.nextInt(BASES.length);
+        int alternate = (reference + 1 + random.nextInt(BASES.length - 1)) % BASES.length;
+        return new String[]{BASES[reference], BASES[alternate]};
+    }
+
+    /**
+     * Insertion or deletion of 1 to 3 bases, with a context base that the normalization will remove
+     */
+    private String[] createIndelAlleles(Random random) {
+        String context = BASES[random.nextInt(BASES.length)];
+        StringBuilder indelBases = new StringBuilder();
+        int length = 1 + random.nextInt(3);
+        for (int i = 0; i < length; i++) {
+            indelBases.append(BASES[random.nextInt(BASES.length)]);
+        }
+        if (random.nextBoolean()) {
+            return new String[]{context, context + indelBases};
+        } else {
+            return new String[]{context + indelBases, context};
+        }
+    }
+
+    private String createVcfLine(Random random, int position, String[] alleles, int samples) {
+        StringBuilder line = new StringBuilder();
+        line.append(CHROMOSOME).append("\t").append(position).append("\t.\t").append(alleles[0]).append("\t")
+            .append(alleles[1]).append("\t100\tPASS\t.\tGT");
+        for (int sample = 0; sample < samples; sample++) {
+            line.append("\t").append(GENOTYPES[random.nextInt(GENOTYPES.length)]);
+        }
+        return line.toString();
+    }
+
+    private List<ConsequenceType> createConsequenceTypes(Random random, int consequenceTypes) {
+        List<ConsequenceType> consequences = new ArrayList<>(consequenceTypes);
+        for (int i = 0; i < consequenceTypes; i++) {
+            List<String> soNames = new ArrayList<>(Arrays.asList(SO_TERMS[random.nextInt(SO_TERMS.length)],
+                                                                 SO_TERMS[random.nextInt(SO_TERMS.length)]));
+            consequences.add(new ConsequenceType("GENE" + random.nextInt(1000),
+                                                 "ENSG0000" + random.nextInt(1000000),
+                                                 "ENST0000" + random.nextInt(1000000), "+", "protein_coding",
+                                                 random.nextInt(5000), random.nextInt(3000),
+                                                 random.nextInt(1000), "A/T", "gcA/gcT", new ArrayList<>(),
+                                                 soNames));
+        }
+        return consequences;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.regionutils;
+
+import org.opencb.biodata.models.feature.Region;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Division of a human-sized chromosome in regions, using fixed size windows and using the variant density. The
+ * database queries are not included: the density benchmark starts from an already loaded histogram
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RegionFactoryBenchmark {
+
+    private static final String CHROMOSOME = "1";
+
+    private static final int CHROMOSOME_LENGTH = 249250621;
+
+    @Param({"10000", "1000000"})
+    private int windowSize;
+
+    @Param({"1000", "100000"})
+    private int variantsPerRegion;
+
+    private RegionFactory regionFactory;
+
+    private NavigableMap<Integer, Integer> variantsPerInterval;
+
+    @Setup
+    public void setUp() {
+        regionFactory = new RegionFactory(windowSize, null, variantsPerRegion);
+
+        // uneven density: most intervals are sparse or empty, and some are hundreds of times denser than the others
+        Random random = new Random(1);
+        variantsPerInterval = new TreeMap<>();
+        for (int intervalStart = 1; intervalStart <= CHROMOSOME_LENGTH; intervalStart += windowSize) {
+            int variants = random.nextInt(100) < 10 ? 0 : random.nextInt(windowSize / 100 + 1);
+            if (random.nextInt(100) == 0) {
+                variants *= 200;
+            }
+            if (variants > 0) {
+                variantsPerInterval.put(intervalStart, variants);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Region> divideChromosomeInChunks() {
+        return regionFactory.divideChromosomeInChunks(CHROMOSOME, 1, CHROMOSOME_LENGTH);
+    }
+
+    @Benchmark
+    public List<Region> divideChromosomeByVariantDensity() {
+        return regionFactory.divideRegionByVariantDensity(CHROMOSOME, 1, CHROMOSOME_LENGTH, variantsPerInterval);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.throughput;
+
+import java.io.OutputStream;
+
+/**
+ * Discards the exported VCF, counting its bytes and the variant lines (the ones not starting with '#')
+ */
+class CountingOutputStream extends OutputStream {
+
+    private long bytes;
+
+    private long variantLines;
+
+    private boolean lineStart;
+
+    CountingOutputStream() {
+        bytes = 0;
+        variantLines = 0;
+        lineStart = true;
+    }
+
+    @Override
+    public void write(int b) {
+        bytes++;
+        if (lineStart && b != '#') {
+            variantLines++;
+        }
+        lineStart = b == '\n';
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            write(b[i]);
+        }
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getVariantLines() {
+        return variantLines;
+    }
+}
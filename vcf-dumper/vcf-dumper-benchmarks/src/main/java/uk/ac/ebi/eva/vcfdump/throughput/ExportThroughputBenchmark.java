@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.throughput;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.ParameterException;
+import com.mongodb.CommandResult;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.IMongodConfig;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.eva.vcfdump.VariantExporterController;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end export of the test databases, scaled up, from a local MongoDB server. For each export, it reports the
+ * variants and bytes written per second, the peak heap and the number of queries received by the server.
+ * <p>
+ * By default, an embedded MongoDB server is started, so the query counts only include the export queries. The
+ * exporter properties can be changed with -P arguments, e.g. for comparing different windowing or parallelism
+ * settings, and the runs after the first one show the effect of the caches.
+ */
+public class ExportThroughputBenchmark {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportThroughputBenchmark.class);
+
+    private static final String DATABASE_SUFFIX = "_throughput";
+
+    private static final String REPORT_FORMAT = "%-36s %4s %10s %8s %12s %10s %10s %12s %8s %8s %8s%n";
+
+    private final ExportThroughputCommand command;
+
+    private MongoClient mongoClient;
+
+    private String mongoHost;
+
+    public ExportThroughputBenchmark(ExportThroughputCommand command) {
+        this.command = command;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ExportThroughputCommand command = new ExportThroughputCommand();
+        JCommander commander = new JCommander(command);
+        try {
+            commander.parse(args);
+        } catch (ParameterException e) {
+            logger.error("Invalid argument: {}", e.getMessage());
+            commander.usage();
+            System.exit(1);
+        }
+        if (command.help) {
+            commander.usage();
+            return;
+        }
+        new ExportThroughputBenchmark(command).run();
+    }
+
+    public void run() throws Exception {
+        MongodExecutable embeddedMongo = null;
+        try {
+            if (command.mongoHost == null) {
+                int port = Network.getFreeServerPort();
+                embeddedMongo = startEmbeddedMongo(port);
+                mongoHost = "localhost:" + port;
+            } else {
+                mongoHost = command.mongoHost;
+            }
+            String[] hostAndPort = mongoHost.split(":");
+            mongoClient = new MongoClient(new ServerAddress(hostAndPort[0], hostAndPort.length > 1 ?
+                    Integer.parseInt(hostAndPort[1]) : ServerAddress.defaultPort()));
+
+            MongoDumpLoader loader = new MongoDumpLoader(mongoClient);
+            System.out.printf(REPORT_FORMAT, "database", "run", "variants", "failed", "bytes", "seconds",
+                              "variants/s", "bytes/s", "heap MB", "queries", "getmores");
+            for (String database : command.databases) {
+                String dbName = database + DATABASE_SUFFIX;
+                loader.load(Paths.get(command.dumps, database), dbName, command.scale);
+                List<String> studies = loader.getStudies(dbName);
+                for (int run = 1; run <= command.runs; run++) {
+                    export(dbName, studies, run);
+                }
+                // the same database name could be loaded again with a different scale
+                VariantExporterController.invalidateCaches(dbName);
+            }
+        } finally {
+            VariantExporterController.closeAllConnections();
+            if (mongoClient != null) {
+                mongoClient.close();
+            }
+            if (embeddedMongo != null) {
+                embeddedMongo.stop();
+            }
+        }
+    }
+
+    private MongodExecutable startEmbeddedMongo(int port) throws IOException {
+        IMongodConfig mongodConfig = new MongodConfigBuilder().version(Version.Main.PRODUCTION)
+                                                              .net(new Net("localhost", port,
+                                                                           Network.localhostIsIPv6()))
+                                                              .build();
+        MongodExecutable mongodExecutable = MongodStarter.getDefaultInstance().prepare(mongodConfig);
+        mongodExecutable.start();
+        logger.info("Embedded MongoDB server started in port {}", port);
+        return mongodExecutable;
+    }
+
+    private void export(String dbName, List<String> studies, int run) throws Exception {
+        Properties properties = getExporterProperties();
+        CountingOutputStream output = new CountingOutputStream();
+        int failedVariants;
+
+        System.gc();
+        resetPeakHeapUsage();
+        long[] operationsBefore = getQueryOperations();
+        long start = System.nanoTime();
+        try (VariantExporterController controller = new VariantExporterController(dbName, studies, output,
+                                                                                  properties,
+                                                                                  new MultivaluedHashMap<>())) {
+            controller.run();
+            failedVariants = controller.getFailedVariants();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        long[] operationsAfter = getQueryOperations();
+        long peakHeap = getPeakHeapUsage();
+        // the serverStatus command used for getting the counters after the export is not a query
+        long queries = operationsAfter[0] - operationsBefore[0] - 1;
+        long getmores = operationsAfter[1] - operationsBefore[1];
+
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.printf(REPORT_FORMAT, dbName, run, output.getVariantLines(), failedVariants, output.getBytes(),
+                          String.format("%.3f", seconds), String.format("%.0f", output.getVariantLines() / seconds),
+                          String.format("%.0f", output.getBytes() / seconds), peakHeap / (1024 * 1024),
+                          queries, getmores);
+    }
+
+    private Properties getExporterProperties() throws IOException {
+        Properties properties = new Properties();
+        properties.load(VariantExporterController.class.getResourceAsStream("/eva.properties"));
+        properties.setProperty("eva.mongo.host", mongoHost);
+        properties.setProperty("eva.mongo.user", "");
+        properties.setProperty("eva.mongo.passwd", "");
+        properties.setProperty("eva.mongo.auth.db", "");
+        properties.setProperty("eva.mongo.collections.variants", MongoDumpLoader.VARIANTS_COLLECTION);
+        properties.setProperty("eva.mongo.collections.files", MongoDumpLoader.FILES_COLLECTION);
+        properties.putAll(command.properties);
+        return properties;
+    }
+
+    /**
+     * Queries and getmores received by the server since it started. Distinct and aggregation queries are counted as
+     * commands by MongoDB, so they are added to the queries. The drivers' monitoring commands are counted too, but they
+     * are only sent every few seconds
+     */
+    private long[] getQueryOperations() {
+        CommandResult serverStatus = mongoClient.getDB("admin").command("serverStatus");
+        DBObject operationCounters = (DBObject) serverStatus.get("opcounters");
+        long queries = ((Number) operationCounters.get("query")).longValue()
+                + ((Number) operationCounters.get("command")).longValue();
+        long getmores = ((Number) operationCounters.get("getmore")).longValue();
+        return new long[]{queries, getmores};
+    }
+
+    private void resetPeakHeapUsage() {
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                memoryPool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Sum of the peak usage of each heap pool. The pools don't reach their peak at the same time, so this is an upper
+     * bound of the actual peak heap
+     */
+    private long getPeakHeapUsage() {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                peakHeap += memoryPool.getPeakUsage().getUsed();
+            }
+        }
+        return peakHeap;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.throughput;
+
+import com.beust.jcommander.DynamicParameter;
+import com.beust.jcommander.Parameter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ExportThroughputCommand {
+
+    @Parameter(names = "--dumps", description = "Directory containing one mongodump folder per database")
+    String dumps = "../vcf-dumper-lib/src/test/resources/dump";
+
+    @Parameter(names = "--databases", description = "Comma-separated list of the databases in the dumps directory to "
+            + "export")
+    List<String> databases = Arrays.asList("eva_hsapiens_grch37", "eva_oaries_oarv31", "eva_btaurus_umd31_test");
+
+    @Parameter(names = "--scale", description = "Number of copies of each variant loaded, each one shifted after the "
+            + "previous copy")
+    int scale = 10;
+
+    @Parameter(names = "--runs", description = "Exports of each database. The first one runs with empty caches")
+    int runs = 3;
+
+    @Parameter(names = "--mongo-host", description = "MongoDB server to load the dumps into, as host:port. If not "
+            + "set, an embedded MongoDB server is started")
+    String mongoHost;
+
+    @Parameter(names = "--help", help = true)
+    boolean help;
+
+    @DynamicParameter(names = "-P", description = "Exporter properties overriding the ones in eva.properties, e.g. "
+            + "-Peva.export.region.threads=4")
+    Map<String, String> properties = new HashMap<>();
+}
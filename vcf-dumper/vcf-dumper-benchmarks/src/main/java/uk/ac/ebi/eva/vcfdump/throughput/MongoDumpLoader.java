@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.throughput;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.MongoClient;
+import com.mongodb.util.JSON;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Loads a mongodump folder (variants and files collections) into a database, making several copies of every variant.
+ * Each copy is shifted after the end of the previous one, so the chromosomes get denser and longer like in a bigger
+ * database, instead of just having duplicated variants
+ */
+class MongoDumpLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoDumpLoader.class);
+
+    static final String VARIANTS_COLLECTION = "variants";
+
+    static final String FILES_COLLECTION = "files";
+
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    /**
+     * Size of the largest chunk in '_at.chunkIds'. The copies are shifted a multiple of it, so every copy is divided in
+     * chunks the same way as the original variants
+     */
+    private static final int MAX_CHUNK_SIZE = 10000;
+
+    private static final int[] CHUNK_SIZES = {1000, 10000};
+
+    private static final String[] CHUNK_SIZE_NAMES = {"1k", "10k"};
+
+    private final MongoClient mongoClient;
+
+    MongoDumpLoader(MongoClient mongoClient) {
+        this.mongoClient = mongoClient;
+    }
+
+    /**
+     * @return number of variants loaded
+     */
+    long load(Path dumpFolder, String dbName, int copies) throws IOException {
+        DB db = mongoClient.getDB(dbName);
+        db.dropDatabase();
+
+        DBCollection files = db.getCollection(FILES_COLLECTION);
+        List<DBObject> fileDocuments = new ArrayList<>();
+        readDocuments(dumpFolder.resolve(FILES_COLLECTION + ".bson"), files, fileDocuments::add);
+        files.insert(fileDocuments);
+
+        DBCollection variants = db.getCollection(VARIANTS_COLLECTION);
+        Path variantsDump = dumpFolder.resolve(VARIANTS_COLLECTION + ".bson");
+        int shiftPerCopy = getShiftPerCopy(variantsDump, variants);
+        List<DBObject> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+        for (int copy = 0; copy < copies; copy++) {
+            int shift = copy * shiftPerCopy;
+            // the dump is decoded again for each copy, so the documents don't have to be cloned before modifying them
+            readDocuments(variantsDump, variants, variant -> {
+                batch.add(shiftVariant(variant, shift));
+                if (batch.size() == INSERT_BATCH_SIZE) {
+                    variants.insert(batch);
+                    batch.clear();
+                }
+            });
+            if (!batch.isEmpty()) {
+                variants.insert(batch);
+                batch.clear();
+            }
+        }
+        long loadedVariants = variants.count();
+
+        createIndexes(dumpFolder.resolve(VARIANTS_COLLECTION + ".metadata.json"), variants);
+        logger.info("Loaded {} variants from {} into {}", loadedVariants, dumpFolder, dbName);
+        return loadedVariants;
+    }
+
+    List<String> getStudies(String dbName) {
+        List<?> studies = mongoClient.getDB(dbName).getCollection(FILES_COLLECTION).distinct("sid");
+        return studies.stream().map(Object::toString).collect(Collectors.toList());
+    }
+
+    private int getShiftPerCopy(Path variantsDump, DBCollection variants) throws IOException {
+        int[] maxEnd = {0};
+        readDocuments(variantsDump, variants,
+                      variant -> maxEnd[0] = Math.max(maxEnd[0], ((Number) variant.get("end")).intValue()));
+        return (maxEnd[0] / MAX_CHUNK_SIZE + 1) * MAX_CHUNK_SIZE;
+    }
+
+    private void readDocuments(Path dump, DBCollection collection, Consumer<DBObject> consumer) throws IOException {
+        DBDecoder decoder = DefaultDBDecoder.FACTORY.create();
+        try (DataInputStream input = new DataInputStream(Files.newInputStream(dump))) {
+            while (true) {
+                byte[] document;
+                try {
+                    int length = Integer.reverseBytes(input.readInt());
+                    document = new byte[length];
+                    writeLittleEndianInt(document, length);
+                    input.readFully(document, 4, length - 4);
+                } catch (EOFException e) {
+                    return;
+                }
+                consumer.accept(decoder.decode(document, collection));
+            }
+        }
+    }
+
+    private void writeLittleEndianInt(byte[] document, int value) {
+        for (int i = 0; i < 4; i++) {
+            document[i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private DBObject shiftVariant(DBObject variant, int shift) {
+        if (shift == 0) {
+            return variant;
+        }
+        String chromosome = variant.get("chr").toString();
+        int start = ((Number) variant.get("start")).intValue();
+        int end = ((Number) variant.get("end")).intValue();
+        String id = variant.get("_id").toString();
+        String idPrefix = chromosome + "_" + start;
+        if (id.startsWith(idPrefix)) {
+            variant.put("_id", chromosome + "_" + (start + shift) + id.substring(idPrefix.length()));
+        } else {
+            variant.put("_id", id + "_" + shift);
+        }
+        variant.put("start", start + shift);
+        variant.put("end", end + shift);
+
+        DBObject at = (DBObject) variant.get("_at");
+        if (at != null) {
+            BasicDBList chunkIds = new BasicDBList();
+            for (int i = 0; i < CHUNK_SIZES.length; i++) {
+                chunkIds.add(chromosome + "_" + (start + shift) / CHUNK_SIZES[i] + "_" + CHUNK_SIZE_NAMES[i]);
+            }
+            at.put("chunkIds", chunkIds);
+        }
+
+        BasicDBList files = (BasicDBList) variant.get("files");
+        if (files != null) {
+            for (Object file : files) {
+                DBObject attributes = (DBObject) ((DBObject) file).get("attrs");
+                if (attributes != null && attributes.get("src") != null) {
+                    attributes.put("src", shiftSourceLine(attributes.get("src"), shift));
+                }
+            }
+        }
+        return variant;
+    }
+
+    /**
+     * The position of the original VCF line is needed to find the context nucleotide of the indels, so it is shifted
+     * too. The line can be stored gzipped or as plain text
+     */
+    private Object shiftSourceLine(Object sourceLine, int shift) {
+        try {
+            if (sourceLine instanceof byte[]) {
+                String line = gunzip((byte[]) sourceLine);
+                return gzip(shiftSourceLine(line, shift));
+            } else {
+                return shiftSourceLine(sourceLine.toString(), shift);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error shifting the source line of a variant", e);
+        }
+    }
+
+    private String shiftSourceLine(String line, int shift) {
+        String[] fields = line.split("\t", 3);
+        if (fields.length < 3) {
+            return line;
+        }
+        return fields[0] + "\t" + (Integer.parseInt(fields[1]) + shift) + "\t" + fields[2];
+    }
+
+    private String gunzip(byte[] compressed) throws IOException {
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private byte[] gzip(String line) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream output = new GZIPOutputStream(compressed)) {
+            output.write(line.getBytes(StandardCharsets.UTF_8));
+        }
+        return compressed.toByteArray();
+    }
+
+    private void createIndexes(Path metadata, DBCollection collection) throws IOException {
+        if (!Files.exists(metadata)) {
+            return;
+        }
+        DBObject collectionMetadata = (DBObject) JSON.parse(new String(Files.readAllBytes(metadata),
+                                                                       StandardCharsets.UTF_8));
+        BasicDBList indexes = (BasicDBList) collectionMetadata.get("indexes");
+        for (Object index : indexes) {
+            String name = ((DBObject) index).get("name").toString();
+            if (!name.equals("_id_")) {
+                collection.createIndex((DBObject) ((DBObject) index).get("key"), new BasicDBObject("name", name));
+            }
+        }
+    }
+}
@@ -31,7 +31,7 @@ import java.util.Properties;
  * the EVA database.
  * <p>
  * Mandatory arguments are: species, database name, studies and files
- * Optional arguments are: output directory
+ * Optional arguments are: output directory, index
  */
 @SpringBootApplication
 public class VariantExportBootApplication implements CommandLineRunner {
@@ -68,19 +68,30 @@ public class VariantExportBootApplication implements CommandLineRunner {
         Properties evaProperties = new Properties();
         evaProperties.load(VariantExportBootApplication.class.getResourceAsStream("/eva.properties"));
 
-        try {
-            new VariantExporterController(
-                    command.database,
-                    command.studies,
-                    command.files,
-                    command.outdir,
-                    evaProperties,
-                    new MultivaluedHashMap<>()).run();
+        try (VariantExporterController controller = new VariantExporterController(command.database,
+                                                                                  command.studies,
+                                                                                  command.files,
+                                                                                  command.outdir,
+                                                                                  evaProperties,
+                                                                                  new MultivaluedHashMap<>())) {
+            controller.setIndexOutput(command.index);
+            if (command.compressionThreads != null) {
+                controller.setCompressionThreads(command.compressionThreads);
+            }
+            if (command.shardThreads != null) {
+                controller.setShardThreads(command.shardThreads);
+            }
+            controller.setResume(command.resume);
+            controller.setSitesOnly(command.sitesOnly);
+            controller.setSamples(command.samples);
+            controller.run();
         } catch (Exception e) {
             logger.error("Unsuccessful VCF export: {}", e.getMessage());
             logger.debug("Exception details: ", e);
+            VariantExporterController.closeAllConnections();
             System.exit(1);
         }
+        VariantExporterController.closeAllConnections();
     }
 
     public static void main(String[] args) {
@@ -39,6 +39,28 @@ public class VariantExportCommand {
     @Parameter(names = "--files", required = true, description = "Comma-separated list of files to query")
     List<String> files;
 
+    @Parameter(names = "--index", description = "Create a tabix index of the output file while exporting")
+    boolean index = false;
+
+    @Parameter(names = "--compression-threads", description = "Number of threads compressing the output file "
+            + "(eva.export.compression.threads in eva.properties by default)")
+    Integer compressionThreads;
+
+    @Parameter(names = "--shard-threads", description = "Number of chromosomes exported in parallel to part files, "
+            + "which are concatenated into the output file (eva.export.shard.threads in eva.properties by default)")
+    Integer shardThreads;
+
+    @Parameter(names = "--resume", description = "Continue the last export of the same query to the output directory "
+            + "from the last completed chromosome")
+    boolean resume = false;
+
+    @Parameter(names = "--sites-only", description = "Export the variant sites without the genotypes of the samples")
+    boolean sitesOnly = false;
+
+    @Parameter(names = "--samples", description = "Comma-separated list of samples to export, as named in the output "
+            + "file (all of them by default)")
+    List<String> samples;
+
 
     public static class PathValidator implements IValueValidator {
 
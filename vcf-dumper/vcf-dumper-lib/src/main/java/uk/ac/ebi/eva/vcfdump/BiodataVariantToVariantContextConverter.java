@@ -26,53 +26,111 @@ import htsjdk.variant.variantcontext.VariantContextBuilder;
 import org.opencb.biodata.models.variant.Variant;
 import org.opencb.biodata.models.variant.VariantSource;
 import org.opencb.biodata.models.variant.VariantSourceEntry;
-import org.opencb.biodata.models.variant.annotation.ConsequenceType;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public class BiodataVariantToVariantContextConverter {
 
     public static final String GENOTYPE_KEY = "GT";
 
-    private final VariantContextBuilder variantContextBuilder;
+    public static final String CSQ_KEY = "CSQ";
 
-    private List<VariantSource> sources;
+    private final VariantContextBuilder variantContextBuilder;
 
-    private Set<String> studies;
+    /**
+     * Exported sources by study id, built once so the source entries of each variant can be matched in one pass
+     */
+    private Map<String, List<VariantSource>> sourcesByStudy;
 
-    private Map<String, Map<String, String>> filesSampleNamesEquivalences;
+    /**
+     * Output names of the samples, or null if they are the same as in the files
+     */
+    private final SampleNameTable sampleNameTable;
 
     private static final int NO_CALL_ALLELE_INDEX = 2;
 
-    protected static final Pattern genotypePattern = Pattern.compile("/|\\|");
+    /**
+     * Maximum number of distinct GT strings kept parsed. A file usually contains a handful of them ("0|0", "0/1",
+     * "./."...), so this limit only matters for malformed data
+     */
+    private static final int MAX_PARSED_GENOTYPES = 1024;
+
+    /**
+     * GT strings already parsed. The converters are not shared between threads, so no synchronization is needed
+     */
+    private final Map<String, ParsedGenotype> parsedGenotypes;
+
+    /**
+     * Allele lists of the variant being converted, by parsed genotype, so every sample with the same GT shares the list
+     */
+    private final Map<ParsedGenotype, List<Allele>> variantGenotypeAlleles;
+
+    private final GenotypeBuilder genotypeBuilder;
+
+    private final CsqEncoder csqEncoder;
 
-    public BiodataVariantToVariantContextConverter(List<VariantSource> sources,
-                                                   Map<String, Map<String, String>> filesSampleNamesEquivalences) {
-        this.sources = sources;
+    private boolean sitesOnly;
+
+    /**
+     * Output names of the samples whose genotypes are converted, or null to convert every sample
+     */
+    private Set<String> samples;
+
+    public BiodataVariantToVariantContextConverter(List<VariantSource> sources, SampleNameTable sampleNameTable) {
         if (sources != null) {
-            this.studies = sources.stream().map(VariantSource::getStudyId).collect(Collectors.toSet());
+            this.sourcesByStudy = sources.stream().collect(Collectors.groupingBy(VariantSource::getStudyId));
         }
-        this.filesSampleNamesEquivalences = filesSampleNamesEquivalences;
+        this.sampleNameTable = sampleNameTable;
         variantContextBuilder = new VariantContextBuilder();
+        parsedGenotypes = new HashMap<>();
+        variantGenotypeAlleles = new IdentityHashMap<>();
+        genotypeBuilder = new GenotypeBuilder();
+        csqEncoder = new CsqEncoder();
+        sitesOnly = false;
+    }
+
+    /**
+     * If enabled, the variants are converted without genotypes, and the sample data is not decoded
+     */
+    public void setSitesOnly(boolean sitesOnly) {
+        this.sitesOnly = sitesOnly;
+    }
+
+    /**
+     * Converts only the genotypes of the given samples, by their output names. The rest of the sample data is not
+     * decoded. If null, every genotype is converted
+     */
+    public void setSamples(Set<String> samples) {
+        this.samples = samples;
     }
 
     public VariantContext transform(Variant variant) {
-        String[] allelesArray = getAllelesArray(variant);
+        List<VariantSourceEntry> studiesEntries = getExportedStudiesEntries(variant);
 
-        Set<Genotype> genotypes = getGenotypes(variant, allelesArray);
+        String[] allelesArray = getAllelesArray(variant, studiesEntries);
 
-        String csq = getAnnotationAttributes(variant);
+        if (sitesOnly) {
+            variantContextBuilder.noGenotypes();
+        } else {
+            variantContextBuilder.genotypes(getGenotypes(studiesEntries, allelesArray));
+        }
 
+        String csq = csqEncoder.encode(variant.getAnnotation());
         if (csq != null) {
-            variantContextBuilder.attribute("CSQ", csq);
+            variantContextBuilder.attribute(CSQ_KEY, csq);
+        } else {
+            // the builder is reused, so it still has the CSQ of the previous variant
+            variantContextBuilder.rmAttribute(CSQ_KEY);
         }
 
         VariantContext variantContext = variantContextBuilder
@@ -82,62 +140,39 @@ public class BiodataVariantToVariantContextConverter {
                 .noID()
                 .alleles(allelesArray)
                 .unfiltered()
-                .genotypes(genotypes).make();
+                .make();
         return variantContext;
     }
 
-    private String getAnnotationAttributes(Variant variant) {
-        List<ConsequenceType> consequenceTypes = variant.getAnnotation().getConsequenceTypes();
-        String allele = variant.getAnnotation().getAlternativeAllele();
-        String csq = null;
-        if (consequenceTypes != null) {
-            List<String> consequences = new ArrayList<>();
-            for (ConsequenceType consequenceType : consequenceTypes) {
-                List<ConsequenceType.ConsequenceTypeEntry> soTermList = consequenceType.getSoTerms();
-                List<String> soNameList = soTermList.stream().map(ConsequenceType.ConsequenceTypeEntry::getSoName)
-                        .collect(Collectors.toList());
-                String soNames = String.join("&", soNameList);
-                String symbol = consequenceType.getGeneName();
-                String gene = consequenceType.getEnsemblGeneId();
-                String feature = consequenceType.getEnsemblTranscriptId();
-                String bioType = consequenceType.getBiotype();
-                Integer cDnaPosition = consequenceType.getcDnaPosition();
-                Integer cdsPosition = consequenceType.getCdsPosition();
-
-                StringBuilder csqSb = new StringBuilder();
-                csqSb.append(allele != null ? allele : "").append("|")
-                        .append(soNames != null ? soNames : "").append("|")
-                        .append(symbol != null ? symbol : "").append("|")
-                        .append(gene != null ? gene : "").append("|")
-                        .append(feature != null ? feature : "").append("|")
-                        .append(bioType != null ? bioType : "").append("|")
-                        .append(cDnaPosition != null ? cDnaPosition : "").append("|")
-                        .append(cdsPosition != null ? cdsPosition : "");
-                consequences.add(csqSb.toString());
+    /**
+     * Source entries of the variant that belong to an exported study, in a single pass over the entries. Each entry is
+     * returned once, even if its study has several exported sources
+     */
+    private List<VariantSourceEntry> getExportedStudiesEntries(Variant variant) {
+        List<VariantSourceEntry> studiesEntries = new ArrayList<>(variant.getSourceEntries().size());
+        for (VariantSourceEntry sourceEntry : variant.getSourceEntries().values()) {
+            if (sourcesByStudy.containsKey(sourceEntry.getStudyId())) {
+                studiesEntries.add(sourceEntry);
             }
-            csq = String.join(",", consequences);
-
         }
-        return csq;
+        return studiesEntries;
     }
 
-    private String[] getAllelesArray(Variant variant) {
+    private String[] getAllelesArray(Variant variant, List<VariantSourceEntry> studiesEntries) {
         String[] allelesArray;
         // if there are indels, we cannot use the normalized alleles (hts forbids empty alleles), so we have to extract a context allele
         // from the VCF source line, add it to the variant and update the variant coordinates
         if (variant.getReference().isEmpty() || variant.getAlternate().isEmpty()) {
-            variant = updateVariantAddingContextNucleotideFromSourceLine(variant);
+            variant = updateVariantAddingContextNucleotideFromSourceLine(variant, studiesEntries);
         }
         allelesArray = new String[]{variant.getReference(), variant.getAlternate()};
 
         return allelesArray;
     }
 
-    private Variant updateVariantAddingContextNucleotideFromSourceLine(Variant variant) {
+    private Variant updateVariantAddingContextNucleotideFromSourceLine(Variant variant,
+                                                                      List<VariantSourceEntry> studiesEntries) {
         // get the original VCF line for the variant from the 'files.src' field
-        List<VariantSourceEntry> studiesEntries =
-                variant.getSourceEntries().values().stream().filter(s -> studies.contains(s.getStudyId()))
-                       .collect(Collectors.toList());
         Optional<String> srcLine = studiesEntries.stream().filter(s -> s.getAttribute("src") != null).findAny()
                                                  .map(s -> s.getAttribute("src"));
         if (!srcLine.isPresent()) {
@@ -193,74 +228,139 @@ public class BiodataVariantToVariantContextConverter {
         return variant;
     }
 
-    private Set<Genotype> getGenotypes(Variant variant, String[] allelesArray) {
-        Set<Genotype> genotypes = new HashSet<>();
+    private List<Genotype> getGenotypes(List<VariantSourceEntry> studiesEntries, String[] allelesArray) {
+        List<Genotype> genotypes = new ArrayList<>();
+        variantGenotypeAlleles.clear();
 
         Allele[] variantAlleles =
                 {Allele.create(allelesArray[0], true), Allele.create(allelesArray[1]), Allele.create(Allele.NO_CALL,
                                                                                                      false)};
 
-        for (VariantSource source : sources) {
-            List<VariantSourceEntry> variantStudyEntries =
-                    variant.getSourceEntries().values().stream().filter(s -> s.getStudyId().equals(source.getStudyId()))
-                           .collect(Collectors.toList());
-            for (VariantSourceEntry variantStudyEntry : variantStudyEntries) {
-                genotypes = getStudyGenotypes(genotypes, variantAlleles, variantStudyEntry);
-            }
+        for (VariantSourceEntry variantStudyEntry : studiesEntries) {
+            genotypes = getStudyGenotypes(genotypes, variantAlleles, variantStudyEntry);
         }
         return genotypes;
     }
 
-    private Set<Genotype> getStudyGenotypes(Set<Genotype> genotypes, Allele[] variantAlleles,
+    private List<Genotype> getStudyGenotypes(List<Genotype> genotypes, Allele[] variantAlleles,
                                             VariantSourceEntry variantStudyEntry) {
+        // the file is looked up once for all its samples
+        SampleNameTable.FileSampleNames fileSampleNames =
+                sampleNameTable != null ? sampleNameTable.getFileSampleNames(variantStudyEntry.getFileId()) : null;
         for (Map.Entry<String, Map<String, String>> sampleEntry : variantStudyEntry.getSamplesData().entrySet()) {
+            String sampleName = fileSampleNames != null ? fileSampleNames.getOutputName(sampleEntry.getKey())
+                                                        : sampleEntry.getKey();
+            if (samples != null && !samples.contains(sampleName)) {
+                continue;
+            }
             String sampleGenotypeString = sampleEntry.getValue().get(GENOTYPE_KEY);
-            Genotype sampleGenotype =
-                    parseSampleGenotype(variantAlleles, variantStudyEntry.getFileId(), sampleEntry.getKey(),
-                                        sampleGenotypeString);
+            Genotype sampleGenotype = parseSampleGenotype(variantAlleles, sampleName, sampleGenotypeString);
             genotypes.add(sampleGenotype);
         }
         return genotypes;
     }
 
-    private Genotype parseSampleGenotype(Allele[] variantAlleles, String fileId, String sampleName,
-                                         String sampleGenotypeString) {
-        String[] alleles = genotypePattern.split(sampleGenotypeString, -1);
-        boolean isPhased = sampleGenotypeString.contains("|");
+    private Genotype parseSampleGenotype(Allele[] variantAlleles, String sampleName, String sampleGenotypeString) {
+        ParsedGenotype parsedGenotype = getParsedGenotype(sampleGenotypeString);
+        List<Allele> genotypeAlleles = variantGenotypeAlleles.get(parsedGenotype);
+        if (genotypeAlleles == null) {
+            genotypeAlleles = parsedGenotype.getAlleles(variantAlleles);
+            variantGenotypeAlleles.put(parsedGenotype, genotypeAlleles);
+        }
+
+        genotypeBuilder.reset(false);
+        return genotypeBuilder.name(sampleName)
+                              .phased(parsedGenotype.isPhased())
+                              .alleles(genotypeAlleles)
+                              .make();
+    }
+
+    private ParsedGenotype getParsedGenotype(String sampleGenotypeString) {
+        ParsedGenotype parsedGenotype = parsedGenotypes.get(sampleGenotypeString);
+        if (parsedGenotype == null) {
+            parsedGenotype = ParsedGenotype.parse(sampleGenotypeString);
+            if (parsedGenotypes.size() < MAX_PARSED_GENOTYPES) {
+                parsedGenotypes.put(sampleGenotypeString, parsedGenotype);
+            }
+        }
+        return parsedGenotype;
+    }
+
+    private long getVariantContextStop(Variant variant) {
+        return variant.getStart() + variant.getReference().length() - 1;
+    }
+
+    /**
+     * GT string split in allele indexes, which are independent of the variant alleles. Every allele not 0 or 1 is
+     * considered no call
+     */
+    static class ParsedGenotype {
+
+        private final int[] alleleIndexes;
+
+        private final boolean phased;
+
+        private ParsedGenotype(int[] alleleIndexes, boolean phased) {
+            this.alleleIndexes = alleleIndexes;
+            this.phased = phased;
+        }
+
+        /**
+         * Splits the GT by '/' and '|' without using a regular expression. Malformed alleles throw the same exceptions
+         * than {@link Integer#valueOf(String)}, or {@link ArrayIndexOutOfBoundsException} if they are negative
+         */
+        static ParsedGenotype parse(String genotype) {
+            int allelesCount = 1;
+            boolean phased = false;
+            for (int i = 0; i < genotype.length(); i++) {
+                char character = genotype.charAt(i);
+                if (character == '|') {
+                    phased = true;
+                    allelesCount++;
+                } else if (character == '/') {
+                    allelesCount++;
+                }
+            }
+
+            int[] alleleIndexes = new int[allelesCount];
+            int alleleStart = 0;
+            for (int allele = 0; allele < allelesCount; allele++) {
+                int alleleEnd = alleleStart;
+                while (alleleEnd < genotype.length() && genotype.charAt(alleleEnd) != '/'
+                        && genotype.charAt(alleleEnd) != '|') {
+                    alleleEnd++;
+                }
+                alleleIndexes[allele] = parseAlleleIndex(genotype.substring(alleleStart, alleleEnd));
+                alleleStart = alleleEnd + 1;
+            }
+            return new ParsedGenotype(alleleIndexes, phased);
+        }
 
-        List<Allele> genotypeAlleles = new ArrayList<>(2);
-        for (String allele : alleles) {
+        private static int parseAlleleIndex(String allele) {
             int index;
             if (allele.equals(".")) {
                 index = -1;
             } else {
-                index = Integer.valueOf(allele);
+                index = Integer.parseInt(allele);
             }
-            // every allele not 0 or 1 will be considered no call
             if (index == -1 || index > NO_CALL_ALLELE_INDEX) {
-                index = NO_CALL_ALLELE_INDEX;
+                return NO_CALL_ALLELE_INDEX;
+            } else if (index < 0) {
+                throw new ArrayIndexOutOfBoundsException(index);
             }
-            genotypeAlleles.add(variantAlleles[index]);
+            return index;
         }
 
-        GenotypeBuilder builder = new GenotypeBuilder()
-                .name(getFixedSampleName(fileId, sampleName))
-                .phased(isPhased)
-                .alleles(genotypeAlleles);
-
-        return builder.make();
-    }
-
-    private String getFixedSampleName(String fileId, String sampleName) {
-        // this method returns the "studyId appended" sample name if there are sample name conflicts
-        if (filesSampleNamesEquivalences != null) {
-            return filesSampleNamesEquivalences.get(fileId).get(sampleName);
-        } else {
-            return sampleName;
+        List<Allele> getAlleles(Allele[] variantAlleles) {
+            Allele[] genotypeAlleles = new Allele[alleleIndexes.length];
+            for (int i = 0; i < alleleIndexes.length; i++) {
+                genotypeAlleles[i] = variantAlleles[alleleIndexes[i]];
+            }
+            return Collections.unmodifiableList(Arrays.asList(genotypeAlleles));
         }
-    }
 
-    private long getVariantContextStop(Variant variant) {
-        return variant.getStart() + variant.getReference().length() - 1;
+        boolean isPhased() {
+            return phased;
+        }
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import org.opencb.biodata.models.variant.annotation.ConsequenceType;
+import org.opencb.biodata.models.variant.annotation.VariantAnnotation;
+
+import java.util.List;
+
+/**
+ * Encodes the consequence types of a variant as the value of the CSQ INFO field, with the format declared in the
+ * merged VCF header: Allele|Consequence|SYMBOL|Gene|Feature|BIOTYPE|cDNA_position|CDS_position. The SO terms of a
+ * consequence type are joined by '&' and the consequence types are separated by ','.
+ * <p>
+ * The fields are appended directly to a buffer that is reused for every variant, so an encoder must not be shared
+ * between threads
+ */
+class CsqEncoder {
+
+    private static final int INITIAL_BUFFER_CAPACITY = 1024;
+
+    /**
+     * The buffer is shrunk after encoding a variant with more annotations than this, so a single outlier doesn't keep
+     * a big buffer alive for the rest of the export
+     */
+    private static final int MAX_RETAINED_BUFFER_CAPACITY = 64 * 1024;
+
+    private StringBuilder buffer;
+
+    CsqEncoder() {
+        buffer = new StringBuilder(INITIAL_BUFFER_CAPACITY);
+    }
+
+    /**
+     * @return the CSQ value, or null if the variant has no consequence types
+     */
+    String encode(VariantAnnotation annotation) {
+        if (annotation == null || annotation.getConsequenceTypes() == null) {
+            return null;
+        }
+        List<ConsequenceType> consequenceTypes = annotation.getConsequenceTypes();
+        String allele = annotation.getAlternativeAllele();
+
+        buffer.setLength(0);
+        for (int i = 0; i < consequenceTypes.size(); i++) {
+            if (i > 0) {
+                buffer.append(',');
+            }
+            ConsequenceType consequenceType = consequenceTypes.get(i);
+            appendField(allele).append('|');
+            appendSoNames(consequenceType.getSoTerms()).append('|');
+            appendField(consequenceType.getGeneName()).append('|');
+            appendField(consequenceType.getEnsemblGeneId()).append('|');
+            appendField(consequenceType.getEnsemblTranscriptId()).append('|');
+            appendField(consequenceType.getBiotype()).append('|');
+            appendField(consequenceType.getcDnaPosition()).append('|');
+            appendField(consequenceType.getCdsPosition());
+        }
+        String csq = buffer.toString();
+
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_CAPACITY) {
+            buffer = new StringBuilder(INITIAL_BUFFER_CAPACITY);
+        }
+        return csq;
+    }
+
+    private StringBuilder appendSoNames(List<ConsequenceType.ConsequenceTypeEntry> soTerms) {
+        if (soTerms != null) {
+            for (int i = 0; i < soTerms.size(); i++) {
+                if (i > 0) {
+                    buffer.append('&');
+                }
+                buffer.append(soTerms.get(i).getSoName());
+            }
+        }
+        return buffer;
+    }
+
+    private StringBuilder appendField(String value) {
+        return value != null ? buffer.append(value) : buffer;
+    }
+
+    private StringBuilder appendField(Integer value) {
+        return value != null ? buffer.append(value.intValue()) : buffer;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Progress of a sharded export, saved after the header and after each chromosome is appended to the output file, so
+ * a failed export can be resumed. It keeps the output file name, the length of the output that is complete, and the
+ * manifest lines of the chromosomes already exported. The file is replaced atomically every time it is saved
+ */
+class ExportCheckpoint {
+
+    private static final String QUERY_KEY = "query";
+
+    private static final String OUTPUT_FILE_KEY = "output";
+
+    private static final String COMPLETED_LENGTH_KEY = "length";
+
+    private static final String CHROMOSOMES_KEY = "chromosomes";
+
+    private static final String CHROMOSOME_KEY_PREFIX = "chromosome.";
+
+    private final Path checkpointPath;
+
+    private final String query;
+
+    private final String outputFileName;
+
+    private long completedLength;
+
+    private final List<String> manifestLines;
+
+    ExportCheckpoint(Path checkpointPath, String query, String outputFileName) {
+        this.checkpointPath = checkpointPath;
+        this.query = query;
+        this.outputFileName = outputFileName;
+        this.completedLength = 0;
+        this.manifestLines = new ArrayList<>();
+    }
+
+    /**
+     * @return the checkpoint saved in the file, or null if there is no checkpoint or it belongs to another query
+     */
+    static ExportCheckpoint load(Path checkpointPath, String query) throws IOException {
+        if (!Files.exists(checkpointPath)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(checkpointPath)) {
+            properties.load(input);
+        }
+        if (!query.equals(properties.getProperty(QUERY_KEY))) {
+            return null;
+        }
+        ExportCheckpoint checkpoint = new ExportCheckpoint(checkpointPath, query,
+                                                           properties.getProperty(OUTPUT_FILE_KEY));
+        checkpoint.completedLength = Long.parseLong(properties.getProperty(COMPLETED_LENGTH_KEY));
+        int chromosomes = Integer.parseInt(properties.getProperty(CHROMOSOMES_KEY));
+        for (int i = 0; i < chromosomes; i++) {
+            checkpoint.manifestLines.add(properties.getProperty(CHROMOSOME_KEY_PREFIX + i));
+        }
+        return checkpoint;
+    }
+
+    String getOutputFileName() {
+        return outputFileName;
+    }
+
+    /**
+     * @return length of the output file with the header and the chromosomes completed, or 0 if the header was not
+     * written
+     */
+    long getCompletedLength() {
+        return completedLength;
+    }
+
+    /**
+     * @return manifest lines of the completed chromosomes, whose first column is the chromosome name
+     */
+    List<String> getManifestLines() {
+        return Collections.unmodifiableList(manifestLines);
+    }
+
+    void saveHeader(long headerLength) throws IOException {
+        completedLength = headerLength;
+        save();
+    }
+
+    void saveChromosome(String manifestLine, long completedLength) throws IOException {
+        manifestLines.add(manifestLine);
+        this.completedLength = completedLength;
+        save();
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(checkpointPath);
+    }
+
+    private void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(QUERY_KEY, query);
+        properties.setProperty(OUTPUT_FILE_KEY, outputFileName);
+        properties.setProperty(COMPLETED_LENGTH_KEY, String.valueOf(completedLength));
+        properties.setProperty(CHROMOSOMES_KEY, String.valueOf(manifestLines.size()));
+        for (int i = 0; i < manifestLines.size(); i++) {
+            properties.setProperty(CHROMOSOME_KEY_PREFIX + i, manifestLines.get(i));
+        }
+
+        Path temporaryPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try (OutputStream output = Files.newOutputStream(temporaryPath)) {
+            properties.store(output, "VCF export checkpoint");
+        }
+        Files.move(temporaryPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Plans which fields of the variants are fetched from the database, so only what the VCF output needs is transferred
+ * and deserialised:
+ * <ul>
+ * <li>the coordinates and alleles of the variant</li>
+ * <li>the source entries, with the genotypes of the samples and the original VCF line, which is needed to add the
+ * context base to the indels</li>
+ * <li>the annotation, only if the CSQ field is written</li>
+ * </ul>
+ * The fields are excluded using the names of the variant model, which the adaptor translates into the document keys.
+ * The adaptor can't project the fields inside the source entries, so their INFO attributes and the genotypes are
+ * still fetched, even in sites only exports
+ */
+class ExportProjection {
+
+    static final String ANNOTATION = "annotation";
+
+    /**
+     * Fields that the VCF output never uses: the identifiers (the ID column is not written), the HGVS names, and the
+     * statistics of the cohorts. The type and length are not excluded: the variant model derives them from the
+     * coordinates and alleles anyway, so excluding them would only save a few bytes per variant
+     */
+    private static final List<String> UNUSED_FIELDS = Collections.unmodifiableList(
+            Arrays.asList("ids", "hgvs", "sourceEntries.cohortStats"));
+
+    private ExportProjection() {
+    }
+
+    /**
+     * @param csqExported whether the CSQ field is written, so the annotation is needed
+     * @return the names of the variant fields that should not be fetched
+     */
+    static List<String> getExcludedFields(boolean csqExported) {
+        List<String> excludedFields = new ArrayList<>();
+        if (!csqExported) {
+            excludedFields.add(ANNOTATION);
+        }
+        excludedFields.addAll(UNUSED_FIELDS);
+        return excludedFields;
+    }
+
+    /**
+     * @param excludeParameters values of the 'exclude' query parameter, or null if it is not in the query
+     */
+    static boolean isCsqExported(List<String> excludeParameters) {
+        return excludeParameters == null || !excludeParameters.contains(ANNOTATION);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import org.opencb.biodata.models.feature.Region;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Export that is written one region at a time, when the caller asks for it. Each region is queried, converted and
+ * written completely in one call, so no database cursor stays open between calls, and the export can wait for as long
+ * as needed without holding a thread.
+ * <p>
+ * Instances are not thread safe, but the calls can be made from different threads as long as they don't overlap.
+ */
+public class RegionByRegionExport {
+
+    private static final Logger logger = LoggerFactory.getLogger(RegionByRegionExport.class);
+
+    private final VariantContextWriter writer;
+
+    private final Iterator<Region> regions;
+
+    private final Consumer<Region> regionExporter;
+
+    private final Runnable onFinish;
+
+    private boolean finished;
+
+    RegionByRegionExport(VariantContextWriter writer, Iterator<Region> regions, Consumer<Region> regionExporter,
+                         Runnable onFinish) {
+        this.writer = writer;
+        this.regions = regions;
+        this.regionExporter = regionExporter;
+        this.onFinish = onFinish;
+        this.finished = false;
+    }
+
+    /**
+     * Exports the next region, or closes the writer if there are no more regions
+     *
+     * @return true if a region was exported, false if the export is finished
+     */
+    public boolean exportNextRegion() {
+        if (finished) {
+            return false;
+        }
+        if (regions.hasNext()) {
+            regionExporter.accept(regions.next());
+            return true;
+        }
+        finished = true;
+        writer.close();
+        onFinish.run();
+        return false;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Stops an unfinished export, closing the writer without exporting the remaining regions
+     */
+    public void abort() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            writer.close();
+        } catch (RuntimeException e) {
+            logger.warn("Error closing an aborted export: {}", e.getMessage());
+        }
+    }
+}
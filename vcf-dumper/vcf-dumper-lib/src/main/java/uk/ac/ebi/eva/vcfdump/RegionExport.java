@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import org.opencb.biodata.models.feature.Region;
+
+import java.util.List;
+
+/**
+ * Variants converted from one region, and the number of variants of that region that could not be converted
+ */
+public class RegionExport {
+
+    private final Region region;
+
+    private final List<VariantContext> variants;
+
+    private final int failedVariants;
+
+    public RegionExport(Region region, List<VariantContext> variants, int failedVariants) {
+        this.region = region;
+        this.variants = variants;
+        this.failedVariants = failedVariants;
+    }
+
+    public Region getRegion() {
+        return region;
+    }
+
+    public List<VariantContext> getVariants() {
+        return variants;
+    }
+
+    public int getFailedVariants() {
+        return failedVariants;
+    }
+}
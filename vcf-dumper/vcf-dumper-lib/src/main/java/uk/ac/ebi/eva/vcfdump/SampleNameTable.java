@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import org.opencb.biodata.models.variant.VariantSource;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Output names of the samples of several files, for when the same sample name is in more than one of them and the
+ * names have to be made unique. The output names of each file are kept in an array indexed by the position of the
+ * samples in the file, so the table holds one string per sample, and the positions are looked up in the map that the
+ * {@link VariantSource} already has.
+ * <p>
+ * Instances are shared between exports and converters, so they must not be modified after being created
+ */
+public class SampleNameTable {
+
+    private final Map<String, FileSampleNames> filesSampleNames;
+
+    private SampleNameTable(Map<String, FileSampleNames> filesSampleNames) {
+        this.filesSampleNames = filesSampleNames;
+    }
+
+    /**
+     * Table where the output name of each sample is its original name prefixed by the id of its file
+     */
+    public static SampleNameTable prefixingFileIds(Collection<VariantSource> sources) {
+        Map<String, FileSampleNames> filesSampleNames = new HashMap<>();
+        for (VariantSource source : sources) {
+            Map<String, Integer> samplesPosition = source.getSamplesPosition();
+            String[] outputNames = new String[samplesPosition.size()];
+            String prefix = source.getFileId() + "_";
+            samplesPosition.forEach((sampleName, position) -> outputNames[position] = prefix + sampleName);
+            filesSampleNames.put(source.getFileId(), new FileSampleNames(samplesPosition, outputNames));
+        }
+        return new SampleNameTable(filesSampleNames);
+    }
+
+    /**
+     * @return the output name of a sample of a file, or null if the sample is not in the file
+     */
+    public String getOutputName(String fileId, String sampleName) {
+        return filesSampleNames.get(fileId).getOutputName(sampleName);
+    }
+
+    /**
+     * Adds the output names of every sample to a set
+     */
+    public void addOutputNamesTo(Set<String> outputNames) {
+        filesSampleNames.values().forEach(fileSampleNames -> Collections.addAll(outputNames,
+                                                                                fileSampleNames.outputNames));
+    }
+
+    /**
+     * Sample names of one file, so the file is looked up once for all the samples of a variant
+     */
+    FileSampleNames getFileSampleNames(String fileId) {
+        return filesSampleNames.get(fileId);
+    }
+
+    static class FileSampleNames {
+
+        private final Map<String, Integer> samplesPosition;
+
+        private final String[] outputNames;
+
+        private FileSampleNames(Map<String, Integer> samplesPosition, String[] outputNames) {
+            this.samplesPosition = samplesPosition;
+            this.outputNames = outputNames;
+        }
+
+        String getOutputName(String sampleName) {
+            Integer position = samplesPosition.get(sampleName);
+            return position != null ? outputNames[position] : null;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import java.nio.file.Path;
+
+/**
+ * Part file with the variants of one chromosome, written by a sharded export before being concatenated to the output
+ */
+class ShardExport {
+
+    private final String chromosome;
+
+    private final Path partFilePath;
+
+    private final int exportedVariants;
+
+    private final int failedVariants;
+
+    ShardExport(String chromosome, Path partFilePath, int exportedVariants, int failedVariants) {
+        this.chromosome = chromosome;
+        this.partFilePath = partFilePath;
+        this.exportedVariants = exportedVariants;
+        this.failedVariants = failedVariants;
+    }
+
+    String getChromosome() {
+        return chromosome;
+    }
+
+    Path getPartFilePath() {
+        return partFilePath;
+    }
+
+    int getExportedVariants() {
+        return exportedVariants;
+    }
+
+    int getFailedVariants() {
+        return failedVariants;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.vcf.VCFHeader;
+import org.opencb.biodata.models.variant.VariantSource;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sources of a set of studies and files, along with everything derived from them that doesn't depend on the exported
+ * variants: the output sample names and the merged VCF headers. Instances are shared between exports, so they must
+ * not be modified after being created
+ */
+class StudiesMetadata {
+
+    private final List<VariantSource> sources;
+
+    /**
+     * Output sample names of each file, or null if there are no sample name conflicts
+     */
+    private final SampleNameTable sampleNameTable;
+
+    private final Set<String> outputSampleNames;
+
+    /**
+     * Merged VCF header, depending on whether the annotation is excluded or not
+     */
+    private final Map<Boolean, VCFHeader> mergedHeaders;
+
+    StudiesMetadata(List<VariantSource> sources, SampleNameTable sampleNameTable, Set<String> outputSampleNames) {
+        this.sources = sources;
+        this.sampleNameTable = sampleNameTable;
+        this.outputSampleNames = outputSampleNames;
+        this.mergedHeaders = new ConcurrentHashMap<>();
+    }
+
+    List<VariantSource> getSources() {
+        return sources;
+    }
+
+    SampleNameTable getSampleNameTable() {
+        return sampleNameTable;
+    }
+
+    Set<String> getOutputSampleNames() {
+        return outputSampleNames;
+    }
+
+    VCFHeader getMergedHeader(boolean excludeAnnotations) {
+        return mergedHeaders.get(excludeAnnotations);
+    }
+
+    void putMergedHeader(boolean excludeAnnotations, VCFHeader header) {
+        mergedHeaders.putIfAbsent(excludeAnnotations, header);
+    }
+}
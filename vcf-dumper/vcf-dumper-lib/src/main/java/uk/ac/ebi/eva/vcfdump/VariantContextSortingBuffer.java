@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.variantcontext.VariantContext;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Passes VariantContexts to a consumer in start order.
+ * <p>
+ * If the variants are added in the order of a cursor sorted by variant start, they are passed to the consumer as soon
+ * as no later variant can precede them. The conversion to VariantContext can move an indel start one position
+ * backwards (to include the context nucleotide), so only the variants starting in the last couple of positions are
+ * kept in the buffer. Otherwise, every variant is kept until {@link #flush()} is called: the buffer is not bounded
+ * then, and holds the whole region in memory, like {@link VariantExporter#exportRegion}. The exports only use it with
+ * cursors sorted by start, and unsorted input is only supported so the output is still in order.
+ */
+class VariantContextSortingBuffer {
+
+    private final boolean inputSortedByStart;
+
+    private final Consumer<VariantContext> consumer;
+
+    private final PriorityQueue<BufferedVariantContext> buffer;
+
+    private long addedVariants;
+
+    VariantContextSortingBuffer(boolean inputSortedByStart, Consumer<VariantContext> consumer) {
+        this.inputSortedByStart = inputSortedByStart;
+        this.consumer = consumer;
+        // variants with the same start keep the order in which they were added
+        buffer = new PriorityQueue<>(Comparator.comparingInt((BufferedVariantContext v) -> v.start)
+                                               .thenComparingLong(v -> v.order));
+        addedVariants = 0;
+    }
+
+    /**
+     * @param originalStart start of the variant in the database, before being converted to VariantContext
+     * @param variantContext converted variant
+     */
+    void add(int originalStart, VariantContext variantContext) {
+        buffer.add(new BufferedVariantContext(variantContext, addedVariants++));
+        if (inputSortedByStart) {
+            // every variant added later will start at 'originalStart - 1' or after
+            flushVariantsStartingUpTo(originalStart - 1);
+        }
+    }
+
+    void flush() {
+        flushVariantsStartingUpTo(Integer.MAX_VALUE);
+    }
+
+    int size() {
+        return buffer.size();
+    }
+
+    private void flushVariantsStartingUpTo(int position) {
+        while (!buffer.isEmpty() && buffer.peek().start <= position) {
+            consumer.accept(buffer.poll().variantContext);
+        }
+    }
+
+    private static class BufferedVariantContext {
+
+        private final VariantContext variantContext;
+
+        private final int start;
+
+        private final long order;
+
+        BufferedVariantContext(VariantContext variantContext, long order) {
+            this.variantContext = variantContext;
+            this.start = variantContext.getStart();
+            this.order = order;
+        }
+    }
+}
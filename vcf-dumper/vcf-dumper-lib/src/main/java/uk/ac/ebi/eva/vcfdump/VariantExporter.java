@@ -36,78 +36,270 @@ import org.opencb.opencga.storage.mongodb.variant.DBObjectToVariantSourceConvert
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.ebi.eva.vcfdump.cache.ExpiringCache;
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
+
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class VariantExporter {
 
     private static final Logger logger = LoggerFactory.getLogger(VariantExporter.class);
 
+    private static final long DEFAULT_METADATA_CACHE_TIME_TO_LIVE_SECONDS = 3600;
+
+    private static final int MAX_CACHED_STUDIES_METADATA = 1000;
+
+    /**
+     * Sources, sample names and merged headers by database, studies and files. htsget clients ask for the header and
+     * every block separately, so without this the same headers would be parsed and merged once per block
+     */
+    private static final ExpiringCache<List<Object>, StudiesMetadata> studiesMetadataCache =
+            new ExpiringCache<>(DEFAULT_METADATA_CACHE_TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS,
+                                MAX_CACHED_STUDIES_METADATA);
+
     /**
      * Read only. Keeps track of the total failed variants across several dumps. To accumulate, use the same instance of
      * VariantExporter to dump several VCFs. If you just want to count on one dump, use a `new VariantExporter` each time.
      */
     private int failedVariants;
 
-    private BiodataVariantToVariantContextConverter variantToVariantContextConverter;
+    /**
+     * Converters not in use, so regions can be exported concurrently: the converters reuse a VariantContextBuilder.
+     * They are borrowed for each region instead of kept per thread, so the threads of a long-lived executor don't keep
+     * referencing the converters, and the sources, of the finished exports
+     */
+    private final Queue<BiodataVariantToVariantContextConverter> idleConverters;
+
+    /**
+     * Creates the converters for the sources loaded by the last call to getSources
+     */
+    private Supplier<BiodataVariantToVariantContextConverter> converterFactory;
 
     private Set<String> outputSampleNames;
 
+    /**
+     * Metadata loaded by the last call to {@link #getSources(String, VariantSourceDBAdaptor, List, List)}
+     */
+    private StudiesMetadata studiesMetadata;
+
+    /**
+     * Where the query time and the converted and failed variants of each region are recorded, if set
+     */
+    private ExportMetrics metrics;
+
+    private boolean sitesOnly;
+
+    /**
+     * Output names of the exported samples, or null to export every sample
+     */
+    private Set<String> samples;
+
     public VariantExporter() {
         outputSampleNames = new HashSet<>();
+        idleConverters = new ConcurrentLinkedQueue<>();
     }
 
     public List<VariantContext> export(VariantDBIterator iterator, Region region) {
+        RegionExport regionExport = exportRegion(iterator, region);
+        failedVariants = regionExport.getFailedVariants();
+        return regionExport.getVariants();
+    }
+
+    /**
+     * Thread safe version of {@link #export(VariantDBIterator, Region)}: the failed variants count is returned along
+     * with the exported variants instead of being kept in this exporter, so several regions can be exported at the
+     * same time by different threads
+     */
+    public RegionExport exportRegion(VariantDBIterator iterator, Region region) {
         List<VariantContext> variantsToExport = new ArrayList<>();
-        failedVariants = 0;
-
-        // region sequence contains the last exported region: we set it to null to get the new region sequence from cellbase if needed
-
-        while (iterator.hasNext()) {
-            Variant variant = iterator.next();
-            if (region.contains(variant.getChromosome(), variant.getStart())) {
-                try {
-                    VariantContext variantContext = variantToVariantContextConverter.transform(variant);
-                    variantsToExport.add(variantContext);
-                } catch (Exception e) {
-                    logger.warn("Variant {}:{}:{}>{} dump failed: {}", variant.getChromosome(), variant.getStart(),
-                                variant.getReference(),
-                                variant.getAlternate(), e.getMessage());
-                    failedVariants++;
+        int regionFailedVariants = 0;
+        BiodataVariantToVariantContextConverter converter = borrowConverter();
+        try {
+            long queryNanos = 0;
+            long queryStart = System.nanoTime();
+            while (iterator.hasNext()) {
+                Variant variant = iterator.next();
+                queryNanos += System.nanoTime() - queryStart;
+                if (region.contains(variant.getChromosome(), variant.getStart())) {
+                    try {
+                        VariantContext variantContext = converter.transform(variant);
+                        variantsToExport.add(variantContext);
+                    } catch (Exception e) {
+                        logger.warn("Variant {}:{}:{}>{} dump failed: {}", variant.getChromosome(), variant.getStart(),
+                                    variant.getReference(),
+                                    variant.getAlternate(), e.getMessage());
+                        regionFailedVariants++;
+                    }
                 }
+                queryStart = System.nanoTime();
             }
+            queryNanos += System.nanoTime() - queryStart;
+            recordRegionMetrics(queryNanos, variantsToExport.size(), regionFailedVariants);
+            return new RegionExport(region, variantsToExport, regionFailedVariants);
+        } finally {
+            idleConverters.add(converter);
+        }
+    }
+
+    /**
+     * Converts the variants in the region and passes them to the consumer sorted by start, without keeping the whole
+     * region in memory if the iterator is already sorted by start.
+     *
+     * @param sortedByStart whether the iterator returns the variants sorted by start. If it doesn't, all the variants
+     *                      in the region are buffered and sorted before being passed to the consumer, so the memory
+     *                      used is not bounded, and the iterator should be sorted for large regions
+     * @return number of variants in the region that could not be converted
+     */
+    public int export(VariantDBIterator iterator, Region region, boolean sortedByStart,
+                      Consumer<VariantContext> consumer) {
+        int regionConvertedVariants = 0;
+        int regionFailedVariants = 0;
+        BiodataVariantToVariantContextConverter converter = borrowConverter();
+        try {
+            VariantContextSortingBuffer sortingBuffer = new VariantContextSortingBuffer(sortedByStart, consumer);
+
+            // the time spent by the consumer writing the variants is not part of the query time
+            long queryNanos = 0;
+            long queryStart = System.nanoTime();
+            while (iterator.hasNext()) {
+                Variant variant = iterator.next();
+                queryNanos += System.nanoTime() - queryStart;
+                if (region.contains(variant.getChromosome(), variant.getStart())) {
+                    // the converter can modify the variant start, so it has to be read before
+                    int originalStart = variant.getStart();
+                    try {
+                        sortingBuffer.add(originalStart, converter.transform(variant));
+                        regionConvertedVariants++;
+                    } catch (Exception e) {
+                        logger.warn("Variant {}:{}:{}>{} dump failed: {}", variant.getChromosome(), variant.getStart(),
+                                    variant.getReference(),
+                                    variant.getAlternate(), e.getMessage());
+                        regionFailedVariants++;
+                    }
+                }
+                queryStart = System.nanoTime();
+            }
+            queryNanos += System.nanoTime() - queryStart;
+            sortingBuffer.flush();
+            recordRegionMetrics(queryNanos, regionConvertedVariants, regionFailedVariants);
+            return regionFailedVariants;
+        } finally {
+            idleConverters.add(converter);
+        }
+    }
+
+    private void recordRegionMetrics(long queryNanos, int convertedVariants, int failedVariants) {
+        if (metrics != null) {
+            metrics.recordRegionQuery(queryNanos);
+            metrics.countConvertedVariants(convertedVariants);
+            metrics.countFailedVariants(failedVariants);
         }
-        return variantsToExport;
     }
 
     public List<VariantSource> getSources(VariantSourceDBAdaptor sourceDBAdaptor,
                                           List<String> studyIds, List<String> fileIds)
             throws IllegalArgumentException {
-        
-        // get sources
+        List<VariantSource> sourcesList = loadSources(sourceDBAdaptor, studyIds, fileIds);
+
+        // check if there are conflicts in sample names and create new ones if needed
+        SampleNameTable sampleNameTable = createNonConflictingSampleNames(sourcesList);
+        checkIfEverySampleIsExported();
+        setConverterFactory(() -> createConverter(sourcesList, sampleNameTable));
+
+        return sourcesList;
+    }
+
+    /**
+     * Cached version of {@link #getSources(VariantSourceDBAdaptor, List, List)}. The sources and the sample name
+     * table are only loaded from the database if they are not cached for the database, studies and files
+     */
+    public List<VariantSource> getSources(String dbName, VariantSourceDBAdaptor sourceDBAdaptor,
+                                          List<String> studyIds, List<String> fileIds)
+            throws IllegalArgumentException {
+        List<Object> cacheKey = Arrays.asList(dbName, new TreeSet<>(studyIds),
+                                              fileIds != null ? new TreeSet<>(fileIds) : Collections.emptySet());
+        studiesMetadata = studiesMetadataCache.get(cacheKey, key -> loadStudiesMetadata(sourceDBAdaptor, studyIds,
+                                                                                        fileIds));
+
+        List<VariantSource> sourcesList = studiesMetadata.getSources();
+        SampleNameTable sampleNameTable = studiesMetadata.getSampleNameTable();
+        outputSampleNames.addAll(studiesMetadata.getOutputSampleNames());
+        checkIfEverySampleIsExported();
+        setConverterFactory(() -> createConverter(sourcesList, sampleNameTable));
+
+        return sourcesList;
+    }
+
+    private List<VariantSource> loadSources(VariantSourceDBAdaptor sourceDBAdaptor, List<String> studyIds,
+                                            List<String> fileIds) throws IllegalArgumentException {
         QueryOptions queryOptions = new QueryOptions();
         if (fileIds != null && !fileIds.isEmpty()) {
             queryOptions.put(VariantDBAdaptor.FILE_ID, fileIds);
         }
         List<VariantSource> sourcesList = sourceDBAdaptor.getAllSourcesByStudyIds(studyIds, queryOptions).getResult();
         checkIfThereAreSourceForEveryStudy(studyIds, sourcesList);
+        return sourcesList;
+    }
 
-        // check if there are conflicts in sample names and create new ones if needed
-        Map<String, Map<String, String>> studiesSampleNamesMapping = createNonConflictingSampleNames(sourcesList);
-        variantToVariantContextConverter = new BiodataVariantToVariantContextConverter(sourcesList,
-                                                                                       studiesSampleNamesMapping);
+    private StudiesMetadata loadStudiesMetadata(VariantSourceDBAdaptor sourceDBAdaptor, List<String> studyIds,
+                                                List<String> fileIds) {
+        List<VariantSource> sourcesList = loadSources(sourceDBAdaptor, studyIds, fileIds);
+        // a new exporter is used so the sample names from previous calls are not mixed with the ones of this studies
+        VariantExporter exporter = new VariantExporter();
+        return new StudiesMetadata(Collections.unmodifiableList(sourcesList),
+                                   exporter.createNonConflictingSampleNames(sourcesList),
+                                   Collections.unmodifiableSet(exporter.outputSampleNames));
+    }
 
-        return sourcesList;
+    private void setConverterFactory(Supplier<BiodataVariantToVariantContextConverter> converterFactory) {
+        this.converterFactory = converterFactory;
+        idleConverters.clear();
+    }
+
+    /**
+     * @return an idle converter, or a new one if every converter is in use. It must be added back to the idle
+     * converters when the region is exported
+     */
+    private BiodataVariantToVariantContextConverter borrowConverter() {
+        BiodataVariantToVariantContextConverter converter = idleConverters.poll();
+        return converter != null ? converter : converterFactory.get();
+    }
+
+    private BiodataVariantToVariantContextConverter createConverter(List<VariantSource> sources,
+                                                                    SampleNameTable sampleNameTable) {
+        BiodataVariantToVariantContextConverter converter = new BiodataVariantToVariantContextConverter(
+                sources, sampleNameTable);
+        converter.setSitesOnly(sitesOnly);
+        converter.setSamples(samples);
+        return converter;
+    }
+
+    private void checkIfEverySampleIsExported() throws IllegalArgumentException {
+        if (samples != null) {
+            List<String> missingSamples = samples.stream().filter(sample -> !outputSampleNames.contains(sample))
+                                                 .collect(Collectors.toList());
+            if (!missingSamples.isEmpty()) {
+                throw new IllegalArgumentException(
+                        "Sample(s) " + String.join(", ", missingSamples) + " not found in the exported files");
+            }
+        }
     }
 
     private void checkIfThereAreSourceForEveryStudy(List<String> studyIds,
@@ -121,48 +313,33 @@ public class VariantExporter {
         }
     }
 
-    public Map<String, Map<String, String>> createNonConflictingSampleNames(Collection<VariantSource> sources) {
-        Map<String, Map<String, String>> filesSampleNamesMapping = null;
-
-        // create a list containing the sample names of every input study
-        // if a sample name is in more than one study, it will be several times in the list)
-        List<String> originalSampleNames = sources.stream().map(VariantSource::getSamples).flatMap(l -> l.stream())
-                                                  .collect(Collectors.toList());
+    /**
+     * Adds the output sample names of the sources to the ones of this exporter. If a sample name is in more than one
+     * source, every output name is prefixed by the file id, and the returned table translates the names; otherwise
+     * the names are not changed, and null is returned. The conflicts are found in a single pass over the samples
+     */
+    public SampleNameTable createNonConflictingSampleNames(Collection<VariantSource> sources) {
+        Set<String> originalSampleNames = new HashSet<>();
         boolean someSampleNameInMoreThanOneStudy = false;
-        if (sources.size() > 1) {
-            // if there are several studies, check if there are duplicate elements
-            someSampleNameInMoreThanOneStudy = originalSampleNames.stream()
-                                                                  .anyMatch(s -> Collections
-                                                                          .frequency(originalSampleNames, s) > 1);
+        for (VariantSource source : sources) {
+            for (String sampleName : source.getSamples()) {
+                if (!originalSampleNames.add(sampleName)) {
+                    someSampleNameInMoreThanOneStudy = true;
+                    break;
+                }
+            }
             if (someSampleNameInMoreThanOneStudy) {
-                filesSampleNamesMapping = resolveConflictsInSampleNamesPrefixingFileId(sources);
+                break;
             }
         }
 
-        if (!someSampleNameInMoreThanOneStudy) {
-            outputSampleNames.addAll(originalSampleNames);
-        }
-
-        return filesSampleNamesMapping;
-    }
-
-    private Map<String, Map<String, String>> resolveConflictsInSampleNamesPrefixingFileId(
-            Collection<VariantSource> sources) {
-        // each study will have a map translating from original sample name to "conflict free" one
-        Map<String, Map<String, String>> filesSampleNamesMapping = new HashMap<>();
-        for (VariantSource source : sources) {
-            // create a map from original to "conflict free" sample name (prefixing with study id)
-            Map<String, String> fileSampleNamesMapping = new HashMap<>();
-            source.getSamples().stream()
-                  .forEach(name -> fileSampleNamesMapping.put(name, source.getFileId() + "_" + name));
-
-            // add "conflict free" names to output sample names set
-            outputSampleNames.addAll(fileSampleNamesMapping.values());
-
-            // add study map to the "super map" containing all studies
-            filesSampleNamesMapping.put(source.getFileId(), fileSampleNamesMapping);
+        if (someSampleNameInMoreThanOneStudy) {
+            SampleNameTable sampleNameTable = SampleNameTable.prefixingFileIds(sources);
+            sampleNameTable.addOutputNamesTo(outputSampleNames);
+            return sampleNameTable;
         }
-        return filesSampleNamesMapping;
+        outputSampleNames.addAll(originalSampleNames);
+        return null;
     }
 
     /**
@@ -199,11 +376,55 @@ public class VariantExporter {
         return (VCFHeader) featureCodecHeader.getHeaderValue();
     }
 
+    /**
+     * Merged header of the sources loaded by the last call to
+     * {@link #getSources(String, VariantSourceDBAdaptor, List, List)}. The header is merged once per cache entry, and
+     * each caller gets its own copy because the VCF writers can modify it. In sites only mode, the header has no
+     * sample columns, and if only some samples are exported, it has only their columns
+     */
+    public VCFHeader getMergedVcfHeader(boolean excludeAnnotations) throws IOException {
+        if (studiesMetadata == null) {
+            throw new IllegalStateException("The sources must be loaded before getting the merged VCF header");
+        }
+        VCFHeader mergedHeader = studiesMetadata.getMergedHeader(excludeAnnotations);
+        if (mergedHeader == null) {
+            // the cached header can't have the samples of other studies loaded by this exporter
+            mergedHeader = mergeVcfHeaders(studiesMetadata.getSources(), studiesMetadata.getOutputSampleNames(),
+                                           excludeAnnotations);
+            studiesMetadata.putMergedHeader(excludeAnnotations, mergedHeader);
+        }
+        if (sitesOnly) {
+            return new VCFHeader(mergedHeader.getMetaDataInInputOrder());
+        }
+        if (samples != null) {
+            List<String> exportedSamples = mergedHeader.getGenotypeSamples().stream().filter(samples::contains)
+                                                       .collect(Collectors.toList());
+            return new VCFHeader(mergedHeader.getMetaDataInInputOrder(), exportedSamples);
+        }
+        return new VCFHeader(mergedHeader.getMetaDataInInputOrder(), mergedHeader.getGenotypeSamples());
+    }
+
+    public static void setMetadataCacheTimeToLive(long timeToLive, TimeUnit timeUnit) {
+        studiesMetadataCache.setTimeToLive(timeToLive, timeUnit);
+    }
+
+    /**
+     * Forgets the sources and headers of a database. It should be called after loading new files into it
+     */
+    public static void invalidateMetadata(String dbName) {
+        studiesMetadataCache.invalidateIf(key -> key.get(0).equals(dbName));
+    }
+
     public VCFHeader getMergedVcfHeader(List<VariantSource> sources, boolean excludeAnnotations) throws IOException {
+        return mergeVcfHeaders(sources, outputSampleNames, excludeAnnotations);
+    }
+
+    private VCFHeader mergeVcfHeaders(List<VariantSource> sources, Set<String> sampleNames,
+                                      boolean excludeAnnotations) throws IOException {
         Map<String, VCFHeader> headers = getVcfHeaders(sources);
 
         Set<VCFHeaderLine> mergedHeaderLines = VCFUtils.smartMergeHeaders(headers.values(), true);
-        VCFHeader header = new VCFHeader(mergedHeaderLines, outputSampleNames);
+        VCFHeader header = new VCFHeader(mergedHeaderLines, sampleNames);
 
         header = addMissingMetadataLines(header, excludeAnnotations);
 
@@ -230,4 +451,25 @@ public class VariantExporter {
     public int getFailedVariants() {
         return failedVariants;
     }
+
+    public void setMetrics(ExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * If enabled, the variants are exported without genotypes and the merged header has no sample columns. It must be
+     * set before loading the sources
+     */
+    public void setSitesOnly(boolean sitesOnly) {
+        this.sitesOnly = sitesOnly;
+    }
+
+    /**
+     * Exports only the genotypes of the given samples, or every sample if null or empty. The names are the ones in the
+     * output file, prefixed by the file id if there are sample name conflicts. It must be set before loading the
+     * sources, which fails if any of the samples is not in the exported files
+     */
+    public void setSamples(Collection<String> samples) {
+        this.samples = samples == null || samples.isEmpty() ? null : new HashSet<>(samples);
+    }
 }
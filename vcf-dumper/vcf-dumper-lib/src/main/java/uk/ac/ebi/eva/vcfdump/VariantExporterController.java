@@ -15,12 +15,18 @@
  */
 package uk.ac.ebi.eva.vcfdump;
 
+import com.mongodb.BasicDBObject;
 import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFHeader;
 import org.opencb.biodata.models.feature.Region;
 import org.opencb.biodata.models.variant.VariantSource;
@@ -36,32 +42,83 @@ import org.opencb.opencga.storage.mongodb.variant.VariantMongoDBAdaptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import uk.ac.ebi.eva.vcfdump.evawsclient.EvaWsClient;
+import uk.ac.ebi.eva.vcfdump.compression.BlockCompressedFileConcatenator;
+import uk.ac.ebi.eva.vcfdump.compression.ParallelBlockCompressedOutputStream;
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
+import uk.ac.ebi.eva.vcfdump.mongoutils.ChromosomeFinder;
+import uk.ac.ebi.eva.vcfdump.mongoutils.MongoClientFactory;
+import uk.ac.ebi.eva.vcfdump.mongoutils.VariantDBAdaptorRegistry;
+import uk.ac.ebi.eva.vcfdump.regionutils.ChromosomeComparator;
 import uk.ac.ebi.eva.vcfdump.regionutils.RegionFactory;
 
+import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-public class VariantExporterController {
+public class VariantExporterController implements AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(VariantExporterController.class);
 
     private static final int WINDOW_SIZE = 10000;
 
-    private final EvaWsClient cellBaseClient;
+    private static final String REGION_THREADS_PROPERTY = "eva.export.region.threads";
+
+    private static final String VARIANTS_PER_REGION_PROPERTY = "eva.export.region.variants";
+
+    private static final String CHROMOSOMES_CACHE_TIME_TO_LIVE_PROPERTY = "eva.cache.chromosomes.ttl.seconds";
+
+    private static final String BOUNDS_CACHE_TIME_TO_LIVE_PROPERTY = "eva.cache.bounds.ttl.seconds";
+
+    private static final String MAX_ADAPTORS_PROPERTY = "eva.mongo.adaptors.max";
+
+    private static final String ADAPTORS_IDLE_TIMEOUT_PROPERTY = "eva.mongo.adaptors.idle.seconds";
+
+    private static final String METADATA_CACHE_TIME_TO_LIVE_PROPERTY = "eva.cache.metadata.ttl.seconds";
+
+    private static final String CHROMOSOME_SCAN_PROPERTY = "eva.export.chromosome.scan";
+
+    private static final String CHROMOSOME_SCAN_BATCH_SIZE_PROPERTY = "eva.export.chromosome.scan.batch.size";
+
+    private static final String COMPRESSION_THREADS_PROPERTY = "eva.export.compression.threads";
+
+    private static final String SHARD_THREADS_PROPERTY = "eva.export.shard.threads";
+
+    private static final String MANIFEST_SUFFIX = ".manifest.tsv";
+
+    private static final String MANIFEST_HEADER = "#chromosome\tvariants\tfailed_variants\toffset\tlength";
+
+    private static final String CHECKPOINT_PROPERTY = "eva.export.checkpoint";
+
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private final ChromosomeFinder chromosomeFinder;
 
     private final String dbName;
 
@@ -77,12 +134,20 @@ public class VariantExporterController {
 
     private final VariantDBAdaptor variantDBAdaptor;
 
+    private final MultivaluedMap<String, String> queryParameters;
+
     private final QueryOptions query;
 
     private final RegionFactory regionFactory;
 
     private final VariantExporter exporter;
 
+    /**
+     * Metrics of the database, only registered once the sources of the export are loaded, so a database name that
+     * doesn't exist doesn't add any metrics
+     */
+    private ExportMetrics metrics;
+
     private OutputStream outputStream;
 
     private Path outputFilePath;
@@ -93,6 +158,33 @@ public class VariantExporterController {
 
     private String outputFileName;
 
+    private int regionThreads;
+
+    private ExecutorService regionExecutor;
+
+    private boolean chromosomeScan;
+
+    private int chromosomeScanBatchSize;
+
+    private boolean indexOutput;
+
+    private int compressionThreads;
+
+    private int shardThreads;
+
+    private boolean checkpointing;
+
+    private boolean resume;
+
+    private boolean sitesOnly;
+
+    /**
+     * Output names of the exported samples, or null if every sample is exported
+     */
+    private List<String> samples;
+
+    private boolean closed;
+
     // Constructor used in WS
     public VariantExporterController(String dbName, List<String> studies, OutputStream outputStream,
                                      Properties evaProperties, MultivaluedMap<String, String> queryParameters)
@@ -112,8 +204,8 @@ public class VariantExporterController {
                                      Properties evaProperties, MultivaluedMap<String, String> queryParameters)
             throws IllegalAccessException, ClassNotFoundException, InstantiationException, URISyntaxException,
             IllegalOpenCGACredentialsException, UnknownHostException {
-        this(dbName, studies, files, evaProperties, queryParameters, WINDOW_SIZE);
-        checkParams(studies, outputDir, dbName);
+        // the parameters are checked before the adaptor is acquired, so it is not leaked if they are not valid
+        this(checkParams(studies, outputDir, dbName), studies, files, evaProperties, queryParameters, WINDOW_SIZE);
         this.outputDir = outputDir;
     }
 
@@ -128,14 +220,43 @@ public class VariantExporterController {
         this.studies = studies;
         this.files = files;
         this.evaProperties = evaProperties;
-        variantDBAdaptor = getVariantDBAdaptor(dbName, evaProperties);
+        this.queryParameters = queryParameters;
         query = getQuery(queryParameters);
-        cellBaseClient = getChromosomeWsClient(dbName, evaProperties);
-        variantSourceDBAdaptor = variantDBAdaptor.getVariantSourceDBAdaptor();
-        regionFactory = new RegionFactory(windowSize, variantDBAdaptor);
+        chromosomeFinder = getChromosomeFinder(dbName, evaProperties);
+        int variantsPerRegion = Integer.parseInt(evaProperties.getProperty(VARIANTS_PER_REGION_PROPERTY, "0"));
+        String boundsCacheTimeToLive = evaProperties.getProperty(BOUNDS_CACHE_TIME_TO_LIVE_PROPERTY);
+        if (boundsCacheTimeToLive != null) {
+            RegionFactory.setBoundsCacheTimeToLive(Long.parseLong(boundsCacheTimeToLive), TimeUnit.SECONDS);
+        }
+        String metadataCacheTimeToLive = evaProperties.getProperty(METADATA_CACHE_TIME_TO_LIVE_PROPERTY);
+        if (metadataCacheTimeToLive != null) {
+            VariantExporter.setMetadataCacheTimeToLive(Long.parseLong(metadataCacheTimeToLive), TimeUnit.SECONDS);
+        }
         exporter = new VariantExporter();
+        regionThreads = Integer.parseInt(evaProperties.getProperty(REGION_THREADS_PROPERTY, "1"));
+        chromosomeScan = Boolean.parseBoolean(evaProperties.getProperty(CHROMOSOME_SCAN_PROPERTY, "false"));
+        chromosomeScanBatchSize = Integer.parseInt(
+                evaProperties.getProperty(CHROMOSOME_SCAN_BATCH_SIZE_PROPERTY, "1000"));
+        indexOutput = false;
+        compressionThreads = Integer.parseInt(evaProperties.getProperty(COMPRESSION_THREADS_PROPERTY, "1"));
+        shardThreads = Integer.parseInt(evaProperties.getProperty(SHARD_THREADS_PROPERTY, "1"));
+        checkpointing = Boolean.parseBoolean(evaProperties.getProperty(CHECKPOINT_PROPERTY, "false"));
+        resume = false;
+        sitesOnly = false;
+        samples = null;
         failedVariants = 0;
         totalExportedVariants = 0;
+        // the adaptor is acquired last, and released if the rest fails, so it is not leaked if the constructor fails
+        configureAdaptorRegistry(evaProperties);
+        variantDBAdaptor = VariantDBAdaptorRegistry.acquire(dbName, () -> getVariantDBAdaptor(dbName, evaProperties));
+        closed = false;
+        try {
+            variantSourceDBAdaptor = variantDBAdaptor.getVariantSourceDBAdaptor();
+            regionFactory = new RegionFactory(windowSize, variantDBAdaptor, variantsPerRegion, dbName);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
     }
 
     // constructor for getting regions
@@ -147,7 +268,10 @@ public class VariantExporterController {
         this(dbName, studies, null, evaProperties, queryParameters, blockSize);
     }
 
-    private void checkParams(List<String> studies, String outputDir, String dbName) {
+    /**
+     * @return the database name, so the parameters can be checked in the arguments of another constructor
+     */
+    private static String checkParams(List<String> studies, String outputDir, String dbName) {
         if (studies == null || studies.isEmpty()) {
             throw new IllegalArgumentException("'studies' is required");
         } else if (outputDir == null || outputDir.isEmpty()) {
@@ -155,6 +279,18 @@ public class VariantExporterController {
         } else if (dbName == null || dbName.isEmpty()) {
             throw new IllegalArgumentException("'dbName' is required");
         }
+        return dbName;
+    }
+
+    private void configureAdaptorRegistry(Properties evaProperties) {
+        String maxAdaptors = evaProperties.getProperty(MAX_ADAPTORS_PROPERTY);
+        if (maxAdaptors != null) {
+            VariantDBAdaptorRegistry.setMaxAdaptors(Integer.parseInt(maxAdaptors));
+        }
+        String idleTimeout = evaProperties.getProperty(ADAPTORS_IDLE_TIMEOUT_PROPERTY);
+        if (idleTimeout != null) {
+            VariantDBAdaptorRegistry.setIdleTimeout(Long.parseLong(idleTimeout), TimeUnit.SECONDS);
+        }
     }
 
     public VariantDBAdaptor getVariantDBAdaptor(String dbName, Properties properties)
@@ -197,9 +333,13 @@ public class VariantExporterController {
         return credentials;
     }
 
-    private EvaWsClient getChromosomeWsClient(String dbName, Properties evaProperties) throws URISyntaxException {
-        return new EvaWsClient(dbName.replace("eva_", ""), evaProperties.getProperty("eva.rest.url"),
-                               evaProperties.getProperty("eva.rest.version"));
+    private ChromosomeFinder getChromosomeFinder(String dbName, Properties evaProperties) {
+        String cacheTimeToLive = evaProperties.getProperty(CHROMOSOMES_CACHE_TIME_TO_LIVE_PROPERTY);
+        if (cacheTimeToLive != null) {
+            ChromosomeFinder.setCacheTimeToLive(Long.parseLong(cacheTimeToLive), TimeUnit.SECONDS);
+        }
+        return new ChromosomeFinder(MongoClientFactory.getMongoClient(dbName, evaProperties),
+                                    evaProperties.getProperty("eva.mongo.collections.variants"));
     }
 
     public QueryOptions getQuery(MultivaluedMap<String, String> queryParameters) {
@@ -220,24 +360,43 @@ public class VariantExporterController {
             }
         });
 
-        // exclude fields not needed
-        List<String> excludeFieldsList = new ArrayList<>();
-        List<String> excludeParams = queryParameters.get("exclude");
-        if (excludeParams != null && excludeParams.contains("annotation")) {
-            excludeFieldsList.add("annotation");
-        }
-        excludeFieldsList.add("sourceEntries.cohortStats");
-        query.put("exclude", String.join(",", excludeFieldsList));
+        query.put("exclude", getExcludedFields(queryParameters));
 
         return query;
     }
 
+    /**
+     * Fields not written to the VCF, so they are not fetched
+     */
+    private String getExcludedFields(MultivaluedMap<String, String> queryParameters) {
+        boolean csqExported = ExportProjection.isCsqExported(queryParameters.get("exclude"));
+        return String.join(",", ExportProjection.getExcludedFields(csqExported));
+    }
+
     public void run() {
-        VCFHeader header = getOutputVcfHeader();
-        VariantContextWriter writer = getWriter();
-        writer.writeHeader(header);
-        exportVariants(writer);
-        writer.close();
+        if (outputDir != null && (shardThreads > 1 || checkpointing || resume)) {
+            runSharded();
+        } else {
+            VCFHeader header = getOutputVcfHeader();
+            VariantContextWriter writer = getWriter();
+            writer.writeHeader(header);
+            exportVariants(writer);
+            writer.close();
+        }
+        countOutputFileBytes();
+    }
+
+    /**
+     * The bytes written to an output stream are counted by its owner, which knows whether they are compressed
+     */
+    private void countOutputFileBytes() {
+        if (outputFilePath != null && metrics != null) {
+            try {
+                metrics.countWrittenBytes(Files.size(outputFilePath));
+            } catch (IOException e) {
+                logger.warn("Size of {} could not be read: {}", outputFilePath, e.getMessage());
+            }
+        }
     }
 
     public void exportHeader() {
@@ -256,52 +415,488 @@ public class VariantExporterController {
         writer.close();
     }
 
+    /**
+     * Starts an export that is written one region at a time, when {@link RegionByRegionExport#exportNextRegion()} is
+     * called. The variants of each region are read with one query and sorted in memory, so the chromosomes are always
+     * divided in regions, even if chromosome scanning is enabled
+     *
+     * @param writeHeader whether to write the VCF header before the variants
+     */
+    public RegionByRegionExport startRegionByRegionExport(boolean writeHeader) {
+        VCFHeader header = getOutputVcfHeader();
+        VariantContextWriter writer = getWriter();
+        if (writeHeader) {
+            writer.writeHeader(header);
+        } else {
+            writer.setVCFHeader(header);
+        }
+        // the regions of each chromosome are calculated when the previous chromosome is finished
+        Iterator<Region> regions = getChromosomes(query).stream()
+                                                        .flatMap(chromosome -> regionFactory
+                                                                .getRegionsForChromosome(chromosome, query).stream())
+                                                        .iterator();
+        return new RegionByRegionExport(writer, regions, region -> writeRegion(writer, exportRegion(region)),
+                                        this::logExportSummary);
+    }
+
     private void exportVariants(VariantContextWriter writer) {
         // get all chromosomes in the query or organism, and export the variants for each chromosome
         Set<String> chromosomes = getChromosomes(query);
-        for (String chromosome : chromosomes) {
-            exportChromosomeVariants(writer, chromosome);
+        ExecutorService executor = openRegionExecutor();
+        try {
+            for (String chromosome : chromosomes) {
+                exportChromosomeVariants(writer, chromosome, executor);
+            }
+        } finally {
+            closeRegionExecutor(executor);
+        }
+        logExportSummary();
+    }
+
+    /**
+     * Closes the output of a failed sharded export without the BGZF terminator block, so it is not taken for a
+     * complete file. The output is kept if its checkpoint can resume it, and deleted otherwise
+     */
+    private void abortConcatenation(BlockCompressedFileConcatenator concatenator, boolean resumable) {
+        try {
+            if (concatenator != null) {
+                concatenator.abort();
+            }
+            if (resumable) {
+                logger.warn("Export to {} failed, the file is incomplete and can be resumed", outputFilePath);
+            } else {
+                Files.deleteIfExists(outputFilePath);
+            }
+        } catch (IOException e) {
+            logger.warn("Incomplete export {} could not be closed or deleted: {}", outputFilePath, e.getMessage());
         }
+    }
+
+    private void logExportSummary() {
         logger.info("VCF export summary");
         logger.info("Variants processed: {}", totalExportedVariants + failedVariants);
         logger.info("Variants successfully exported: {}", totalExportedVariants);
         logger.info("Variants with errors: {}", failedVariants);
     }
 
+    /**
+     * Exports each chromosome to a separate BGZF part file, 'shardThreads' chromosomes at a time, and appends the parts
+     * to the output file in order as soon as they are finished. The parts are concatenated block by block, without
+     * compressing them again, and a manifest with the variants and the byte range of each chromosome in the output
+     * file is written next to it. If the output is indexed, the index is created after the concatenation.
+     * <p>
+     * If checkpointing is enabled, the progress is saved after each chromosome is appended, and when resuming, the
+     * output file is truncated to the last checkpoint and only the chromosomes not completed are exported
+     */
+    private void runSharded() {
+        VCFHeader header = getOutputVcfHeader();
+        Set<String> chromosomes = getChromosomes(query);
+        ExportCheckpoint checkpoint = getCheckpoint();
+        outputFilePath = checkpoint != null ? Paths.get(outputDir).resolve(checkpoint.getOutputFileName())
+                                            : getNewOutputFilePath();
+
+        List<String> manifestLines = new ArrayList<>();
+        manifestLines.add(MANIFEST_HEADER);
+        Set<String> completedChromosomes = new HashSet<>();
+        long completedLength = 0;
+        if (checkpoint != null) {
+            completedLength = checkpoint.getCompletedLength();
+            for (String manifestLine : checkpoint.getManifestLines()) {
+                String[] manifestFields = manifestLine.split("\t");
+                completedChromosomes.add(manifestFields[0]);
+                totalExportedVariants += Integer.parseInt(manifestFields[1]);
+                failedVariants += Integer.parseInt(manifestFields[2]);
+                manifestLines.add(manifestLine);
+            }
+        }
+        logger.info("Exporting {} chromosomes to part files using {} threads",
+                    chromosomes.size() - completedChromosomes.size(), shardThreads);
+
+        // the part files are numbered by chromosome, so the ones left by a failed export are deleted too
+        List<Path> partFilePaths = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(shardThreads);
+        Deque<Future<ShardExport>> pendingShards = new ArrayDeque<>(chromosomes.size());
+        BlockCompressedFileConcatenator concatenator = null;
+        boolean concatenated = false;
+        try {
+            concatenator = new BlockCompressedFileConcatenator(outputFilePath, completedLength);
+            for (String chromosome : chromosomes) {
+                Path partFilePath = getPartFilePath(partFilePaths.size() + 1);
+                partFilePaths.add(partFilePath);
+                if (!completedChromosomes.contains(chromosome)) {
+                    pendingShards.add(executor.submit(() -> exportShard(chromosome, partFilePath)));
+                }
+            }
+
+            if (completedLength == 0) {
+                Path headerFilePath = getPartFilePath(0);
+                partFilePaths.add(headerFilePath);
+                VariantContextWriter headerWriter = buildVcfFileWriter(headerFilePath, false);
+                headerWriter.writeHeader(header);
+                headerWriter.close();
+                concatenator.append(headerFilePath);
+                Files.delete(headerFilePath);
+                if (checkpoint != null) {
+                    checkpoint.saveHeader(concatenator.getPosition());
+                }
+            }
+
+            while (!pendingShards.isEmpty()) {
+                ShardExport shard = pendingShards.poll().get();
+                long offset = concatenator.getPosition();
+                long length = concatenator.append(shard.getPartFilePath());
+                Files.delete(shard.getPartFilePath());
+                totalExportedVariants += shard.getExportedVariants();
+                failedVariants += shard.getFailedVariants();
+                String manifestLine = String.join("\t", shard.getChromosome(),
+                                                  String.valueOf(shard.getExportedVariants()),
+                                                  String.valueOf(shard.getFailedVariants()), String.valueOf(offset),
+                                                  String.valueOf(length));
+                manifestLines.add(manifestLine);
+                if (checkpoint != null) {
+                    checkpoint.saveChromosome(manifestLine, concatenator.getPosition());
+                }
+            }
+            concatenator.close();
+            concatenated = true;
+        } catch (IOException e) {
+            throw new RuntimeException("Error concatenating the exported parts: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while exporting chromosomes", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error exporting chromosome: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pendingShards.forEach(pendingShard -> pendingShard.cancel(true));
+            executor.shutdownNow();
+            deletePartFiles(partFilePaths);
+            if (!concatenated) {
+                abortConcatenation(concatenator, checkpoint != null);
+            }
+        }
+
+        writeManifest(manifestLines);
+        if (indexOutput) {
+            indexOutputFile();
+        }
+        if (checkpoint != null) {
+            deleteCheckpoint(checkpoint);
+        }
+        logExportSummary();
+    }
+
+    /**
+     * @return the checkpoint where the progress will be saved, with the progress of a previous export of the same
+     * query if resuming, or null if checkpointing is disabled
+     */
+    private ExportCheckpoint getCheckpoint() {
+        if (!checkpointing && !resume) {
+            return null;
+        }
+        Path checkpointPath = getCheckpointFilePath();
+        if (resume) {
+            try {
+                ExportCheckpoint savedCheckpoint = ExportCheckpoint.load(checkpointPath, getExportQueryDescription());
+                if (savedCheckpoint != null
+                        && Files.exists(Paths.get(outputDir).resolve(savedCheckpoint.getOutputFileName()))) {
+                    logger.info("Resuming export into {} after {} completed chromosomes",
+                                savedCheckpoint.getOutputFileName(), savedCheckpoint.getManifestLines().size());
+                    return savedCheckpoint;
+                }
+                logger.info("There is no checkpoint to resume the export from, so it will start from the beginning");
+            } catch (IOException e) {
+                throw new RuntimeException("Checkpoint " + checkpointPath + " could not be read", e);
+            }
+        }
+        return createCheckpoint(getNewOutputFilePath().getFileName().toString());
+    }
+
+    ExportCheckpoint createCheckpoint(String outputFileName) {
+        return new ExportCheckpoint(getCheckpointFilePath(), getExportQueryDescription(), outputFileName);
+    }
+
+    /**
+     * There is one checkpoint per query, so exports of different studies to the same directory don't overwrite each
+     * other's
+     */
+    Path getCheckpointFilePath() {
+        String checkpointId = Integer.toHexString(getExportQueryDescription().hashCode());
+        return Paths.get(outputDir).resolve(dbName + "_export_" + checkpointId + CHECKPOINT_SUFFIX);
+    }
+
+    private String getExportQueryDescription() {
+        String description = String.join(";", dbName, String.join(",", studies),
+                                          files != null ? String.join(",", files) : "",
+                                          new TreeMap<>(queryParameters).toString());
+        // a sites only export can't resume one with genotypes, and vice versa, nor one of other samples
+        if (sitesOnly) {
+            description += ";sites-only";
+        }
+        if (samples != null) {
+            description += ";samples=" + String.join(",", samples);
+        }
+        return description;
+    }
+
+    private void deleteCheckpoint(ExportCheckpoint checkpoint) {
+        try {
+            checkpoint.delete();
+        } catch (IOException e) {
+            logger.warn("Checkpoint of export {} could not be deleted: {}", outputFilePath, e.getMessage());
+        }
+    }
+
+    /**
+     * Exports a chromosome using a new controller, so each shard has its own counters and writer
+     */
+    ShardExport exportShard(String chromosome, Path partFilePath) throws Exception {
+        try (VariantExporterController shardController = new VariantExporterController(
+                dbName, studies, files, outputDir, evaProperties, getShardQueryParameters(chromosome))) {
+            shardController.regionThreads = regionThreads;
+            shardController.regionExecutor = regionExecutor;
+            shardController.chromosomeScan = chromosomeScan;
+            shardController.chromosomeScanBatchSize = chromosomeScanBatchSize;
+            shardController.compressionThreads = compressionThreads;
+            shardController.setSitesOnly(sitesOnly);
+            shardController.setSamples(samples);
+            shardController.exportPart(partFilePath);
+            return new ShardExport(chromosome, partFilePath, shardController.totalExportedVariants,
+                                   shardController.failedVariants);
+        }
+    }
+
+    private void exportPart(Path partFilePath) {
+        VCFHeader header = getOutputVcfHeader();
+        VariantContextWriter writer = buildVcfFileWriter(partFilePath, false);
+        writer.setVCFHeader(header);
+        ExecutorService executor = openRegionExecutor();
+        try {
+            for (String chromosome : getChromosomes(query)) {
+                exportChromosomeVariants(writer, chromosome, executor);
+            }
+        } finally {
+            closeRegionExecutor(executor);
+        }
+        writer.close();
+    }
+
+    /**
+     * The query parameters restricted to one chromosome: its regions in the query if there are any, or else the
+     * whole chromosome
+     */
+    private MultivaluedMap<String, String> getShardQueryParameters(String chromosome) {
+        List<String> chromosomeRegions = query.getAsStringList(VariantDBAdaptor.REGION).stream()
+                                              .filter(region -> region.split(":")[0].equals(chromosome))
+                                              .collect(Collectors.toList());
+        if (chromosomeRegions.isEmpty()) {
+            chromosomeRegions = Collections.singletonList(chromosome);
+        }
+        MultivaluedMap<String, String> shardQueryParameters = new MultivaluedHashMap<>(queryParameters);
+        shardQueryParameters.put(VariantDBAdaptor.REGION, chromosomeRegions);
+        return shardQueryParameters;
+    }
+
+    private Path getPartFilePath(int partNumber) {
+        String fileName = outputFilePath.getFileName().toString();
+        String partFileName = fileName.replaceFirst("\\.vcf\\.gz$", String.format(".part%04d.vcf.gz", partNumber));
+        return outputFilePath.resolveSibling(partFileName);
+    }
+
+    private void deletePartFiles(List<Path> partFilePaths) {
+        for (Path partFilePath : partFilePaths) {
+            try {
+                Files.deleteIfExists(partFilePath);
+            } catch (IOException e) {
+                logger.warn("Part file {} could not be deleted: {}", partFilePath, e.getMessage());
+            }
+        }
+    }
+
+    private void writeManifest(List<String> manifestLines) {
+        Path manifestPath = Paths.get(outputFilePath + MANIFEST_SUFFIX);
+        try {
+            Files.write(manifestPath, manifestLines);
+        } catch (IOException e) {
+            throw new RuntimeException("Manifest " + manifestPath + " could not be written", e);
+        }
+    }
+
+    /**
+     * Creates the tabix index reading the whole output file, for when it can't be indexed while writing
+     */
+    private void indexOutputFile() {
+        logger.info("Indexing {} ...", outputFilePath);
+        File outputFile = outputFilePath.toFile();
+        try {
+            TabixIndex index = IndexFactory.createTabixIndex(outputFile, new VCFCodec(), TabixFormat.VCF,
+                                                             getExportedChromosomesDictionary());
+            index.writeBasedOnFeatureFile(outputFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing the index of " + outputFilePath + ": " + e.getMessage(), e);
+        }
+    }
+
     private VCFHeader getOutputVcfHeader() {
         // get VCF header(s) and write them to output file(s)
         logger.info("Generating VCF header ...");
-        List<VariantSource> sources = exporter.getSources(variantSourceDBAdaptor, studies, files);
+        long start = System.nanoTime();
+        exporter.getSources(dbName, variantSourceDBAdaptor, studies, files);
+        metrics = ExportMetrics.forDatabase(dbName);
+        exporter.setMetrics(metrics);
         VCFHeader header = null;
         try {
-            boolean excludeAnnotations = ((String) query.get("exclude")).contains("annotation");
-            header = exporter.getMergedVcfHeader(sources, excludeAnnotations);
+            boolean excludeAnnotations = query.getAsStringList("exclude").contains(ExportProjection.ANNOTATION);
+            header = exporter.getMergedVcfHeader(excludeAnnotations);
         } catch (IOException e) {
             logger.error("Error getting VCF header: {}", e.getMessage());
         }
+        metrics.recordHeaderBuild(System.nanoTime() - start);
         return header;
     }
 
-    private void exportChromosomeVariants(VariantContextWriter writer, String chromosome) {
+    /**
+     * @return the executor for exporting the regions of every chromosome in parallel: the injected one, or else a new
+     * one with 'regionThreads' threads. Null if the regions are exported sequentially
+     */
+    private ExecutorService openRegionExecutor() {
+        if (regionThreads <= 1) {
+            return null;
+        }
+        return regionExecutor != null ? regionExecutor : Executors.newFixedThreadPool(regionThreads);
+    }
+
+    /**
+     * Shuts down the executor if it was created for the export. The injected one is owned by the caller
+     */
+    private void closeRegionExecutor(ExecutorService executor) {
+        if (executor != null && executor != regionExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void exportChromosomeVariants(VariantContextWriter writer, String chromosome, ExecutorService executor) {
         logger.info("Exporting variants for chromosome {} ...", chromosome);
+        if (chromosomeScan && isWholeChromosomeInQuery(chromosome)) {
+            scanChromosome(writer, chromosome);
+            return;
+        }
         List<Region> allRegionsInChromosome = regionFactory.getRegionsForChromosome(chromosome, query);
-        for (Region region : allRegionsInChromosome) {
-            VariantDBIterator regionVariantsIterator = variantDBAdaptor.iterator(getRegionQuery(region));
-            List<VariantContext> exportedVariants = exporter.export(regionVariantsIterator, region);
-            Collections.sort(exportedVariants, (v1, v2) -> v1.getStart() - v2.getStart());
-            failedVariants += exporter.getFailedVariants();
-            exportedVariants.forEach(writer::add);
-            logger.debug("{} variants exported from region {}", exportedVariants.size(), region);
-            totalExportedVariants += exportedVariants.size();
+        if (executor != null) {
+            exportRegionsInParallel(writer, allRegionsInChromosome, executor);
+        } else {
+            for (Region region : allRegionsInChromosome) {
+                streamRegion(writer, region);
+            }
+        }
+    }
+
+    /**
+     * The whole chromosome is exported if there is no region filter, or if the chromosome is in the region filter
+     * without coordinates
+     */
+    private boolean isWholeChromosomeInQuery(String chromosome) {
+        List<String> regions = query.getAsStringList(VariantDBAdaptor.REGION);
+        return regions.isEmpty() || regions.contains(chromosome);
+    }
+
+    /**
+     * Exports a chromosome using one cursor sorted by start, so the database walks the chromosome index once instead
+     * of running a query for each window. The regions with coordinates in the query are still exported by windows,
+     * because those queries are resolved using the chunk index instead of the coordinates one
+     */
+    private void scanChromosome(VariantContextWriter writer, String chromosome) {
+        logger.debug("Scanning chromosome {} with one cursor", chromosome);
+        VariantDBIterator chromosomeVariantsIterator = variantDBAdaptor.iterator(getChromosomeScanQuery(chromosome));
+        // the region doesn't restrict the query, but it discards any variant from other chromosomes
+        Region wholeChromosome = new Region(chromosome, 0, Integer.MAX_VALUE);
+        int exportedVariantsBeforeChromosome = totalExportedVariants;
+        failedVariants += exporter.export(chromosomeVariantsIterator, wholeChromosome, true, variantContext -> {
+            writer.add(variantContext);
+            totalExportedVariants++;
+        });
+        logger.debug("{} variants exported from chromosome {}",
+                     totalExportedVariants - exportedVariantsBeforeChromosome, chromosome);
+    }
+
+    private void exportRegionsInParallel(VariantContextWriter writer, List<Region> regions, ExecutorService executor) {
+        // reorder buffer: the regions are fetched and converted concurrently, but the futures are consumed in
+        // submission order, so the variants are written in genomic order. Twice as many regions as threads are
+        // queued so the workers keep busy while the writer is consuming the first one
+        int maxPendingRegions = regionThreads * 2;
+        Deque<Future<RegionExport>> pendingRegions = new ArrayDeque<>(maxPendingRegions);
+        Iterator<Region> regionIterator = regions.iterator();
+        try {
+            while (regionIterator.hasNext() || !pendingRegions.isEmpty()) {
+                while (regionIterator.hasNext() && pendingRegions.size() < maxPendingRegions) {
+                    Region region = regionIterator.next();
+                    pendingRegions.add(executor.submit(() -> exportRegion(region)));
+                }
+                writeRegion(writer, pendingRegions.poll().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while exporting regions", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error exporting region: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pendingRegions.forEach(pendingRegion -> pendingRegion.cancel(true));
         }
     }
 
+    private void streamRegion(VariantContextWriter writer, Region region) {
+        VariantDBIterator regionVariantsIterator = variantDBAdaptor.iterator(getSortedRegionQuery(region));
+        int exportedVariantsBeforeRegion = totalExportedVariants;
+        failedVariants += exporter.export(regionVariantsIterator, region, true, variantContext -> {
+            writer.add(variantContext);
+            totalExportedVariants++;
+        });
+        logger.debug("{} variants exported from region {}", totalExportedVariants - exportedVariantsBeforeRegion,
+                     region);
+    }
+
+    private RegionExport exportRegion(Region region) {
+        VariantDBIterator regionVariantsIterator = variantDBAdaptor.iterator(getRegionQuery(region));
+        RegionExport regionExport = exporter.exportRegion(regionVariantsIterator, region);
+        Collections.sort(regionExport.getVariants(), (v1, v2) -> v1.getStart() - v2.getStart());
+        return regionExport;
+    }
+
+    private void writeRegion(VariantContextWriter writer, RegionExport regionExport) {
+        List<VariantContext> exportedVariants = regionExport.getVariants();
+        failedVariants += regionExport.getFailedVariants();
+        exportedVariants.forEach(writer::add);
+        logger.debug("{} variants exported from region {}", exportedVariants.size(), regionExport.getRegion());
+        totalExportedVariants += exportedVariants.size();
+    }
+
     private QueryOptions getRegionQuery(Region region) {
         QueryOptions regionQuery = new QueryOptions(query);
         regionQuery.put(VariantDBAdaptor.REGION, region.toString());
         return regionQuery;
     }
 
+    private QueryOptions getSortedRegionQuery(Region region) {
+        QueryOptions regionQuery = getRegionQuery(region);
+        regionQuery.put("sort", getSortByCoordinates());
+        return regionQuery;
+    }
+
+    private QueryOptions getChromosomeScanQuery(String chromosome) {
+        QueryOptions chromosomeQuery = new QueryOptions(query);
+        chromosomeQuery.remove(VariantDBAdaptor.REGION);
+        chromosomeQuery.put(VariantDBAdaptor.CHROMOSOME, chromosome);
+        chromosomeQuery.put("sort", getSortByCoordinates());
+        chromosomeQuery.put("batchSize", chromosomeScanBatchSize);
+        return chromosomeQuery;
+    }
+
+    private BasicDBObject getSortByCoordinates() {
+        BasicDBObject sortDBObject = new BasicDBObject();
+        sortDBObject.put("chr", 1);
+        sortDBObject.put("start", 1);
+        return sortDBObject;
+    }
+
     private VariantContextWriter getWriter() {
         VariantContextWriter writer;
         if (outputDir != null) {
@@ -314,15 +909,56 @@ public class VariantExporterController {
     }
 
     private VariantContextWriter buildVcfFileWriter() {
+        outputFilePath = getNewOutputFilePath();
+        return buildVcfFileWriter(outputFilePath, indexOutput);
+    }
+
+    private Path getNewOutputFilePath() {
         LocalDateTime now = LocalDateTime.now();
         String fileName = dbName + "_exported_" + now + ".vcf.gz";
-        outputFilePath = Paths.get(outputDir).resolve(fileName);
+        return Paths.get(outputDir).resolve(fileName);
+    }
 
+    private VariantContextWriter buildVcfFileWriter(Path filePath, boolean index) {
         VariantContextWriterBuilder builder = new VariantContextWriterBuilder();
-        VariantContextWriter writer = builder.setOutputFile(outputFilePath.toFile())
-                                             .unsetOption(Options.INDEX_ON_THE_FLY)
-                                             .build();
-        return writer;
+        if (index) {
+            if (compressionThreads > 1) {
+                logger.info("The output is compressed in one thread, because it is indexed while being written");
+            }
+            // the .gz extension makes htsjdk write BGZF blocks, so the file can be indexed
+            SAMSequenceDictionary exportedChromosomes = getExportedChromosomesDictionary();
+            builder.setOutputFile(filePath.toFile())
+                   .setReferenceDictionary(exportedChromosomes)
+                   .setIndexCreator(new TabixIndexCreator(exportedChromosomes, TabixFormat.VCF))
+                   .setOption(Options.INDEX_ON_THE_FLY);
+        } else if (compressionThreads > 1) {
+            builder.setOutputVCFStream(getParallelBlockCompressedStream(filePath))
+                   .unsetOption(Options.INDEX_ON_THE_FLY);
+        } else {
+            builder.setOutputFile(filePath.toFile())
+                   .unsetOption(Options.INDEX_ON_THE_FLY);
+        }
+        return builder.build();
+    }
+
+    private OutputStream getParallelBlockCompressedStream(Path filePath) {
+        try {
+            return new ParallelBlockCompressedOutputStream(new FileOutputStream(filePath.toFile()), compressionThreads);
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException("Output file " + filePath + " could not be created", e);
+        }
+    }
+
+    /**
+     * The chromosomes in the order they are exported. The tabix index requires each chromosome to be written in one
+     * block, in the same order as in the dictionary, and the lengths are not needed
+     */
+    private SAMSequenceDictionary getExportedChromosomesDictionary() {
+        List<SAMSequenceRecord> sequences = new ArrayList<>();
+        for (String chromosome : getChromosomes(query)) {
+            sequences.add(new SAMSequenceRecord(chromosome, SAMSequenceRecord.UNKNOWN_SEQUENCE_LENGTH));
+        }
+        return new SAMSequenceDictionary(sequences);
     }
 
     private VariantContextWriter buildVcfOutputStreamWriter() {
@@ -333,18 +969,20 @@ public class VariantExporterController {
         return writer;
     }
 
+    /**
+     * @return the chromosomes to export, sorted by {@link ChromosomeComparator}
+     */
     private Set<String> getChromosomes(QueryOptions options) {
-        Set<String> chromosomes;
+        Set<String> chromosomes = new TreeSet<>(new ChromosomeComparator());
 
         List<String> regions = options.getAsStringList(VariantDBAdaptor.REGION);
         if (regions.size() > 0) {
-            chromosomes = getChromosomesFromRegionFilter(regions);
+            chromosomes.addAll(getChromosomesFromRegionFilter(regions));
         } else {
-            chromosomes = cellBaseClient.getChromosomes();
+            chromosomes.addAll(chromosomeFinder.getChromosomes(dbName, studies, files));
         }
         if (chromosomes.isEmpty()) {
             throw new RuntimeException("Chromosomes for dbName " + dbName + " not found");
-            // TODO distinct query for getting all the chromosomes from the database
         }
         logger.debug("Chromosomes: {}", String.join(", ", chromosomes));
         return chromosomes;
@@ -379,10 +1017,25 @@ public class VariantExporterController {
         return failedVariants;
     }
 
+    /**
+     * @return the manifest of the last sharded export, with the chromosomes in the output file and where they are
+     */
+    public String getManifestFilePath() {
+        return outputFilePath + MANIFEST_SUFFIX;
+    }
+
     public String getOutputFileName() {
         return outputFileName;
     }
 
+    /**
+     * @return the metrics of the exports of the database of this controller, or null if the sources have not been
+     * loaded yet
+     */
+    public ExportMetrics getMetrics() {
+        return metrics;
+    }
+
     public List<Region> divideChromosomeInChunks(String chromosome, int start, int end) {
         return regionFactory.divideChromosomeInChunks(chromosome, start, end);
     }
@@ -395,6 +1048,148 @@ public class VariantExporterController {
         return regionFactory.getMaxStart(chromosome, query);
     }
 
+    /**
+     * Number of regions that will be fetched from the database and converted at the same time. The variants are
+     * written in genomic order regardless of this value
+     */
+    public void setRegionThreads(int regionThreads) {
+        if (regionThreads < 1) {
+            throw new IllegalArgumentException("'regionThreads' must be a positive number");
+        }
+        this.regionThreads = regionThreads;
+    }
+
+    /**
+     * Executor used for exporting regions in parallel. If none is provided, a new one with 'regionThreads' threads
+     * will be created (and shut down) for each export
+     */
+    public void setRegionExecutor(ExecutorService regionExecutor) {
+        this.regionExecutor = regionExecutor;
+    }
+
+    /**
+     * If enabled, the chromosomes requested without coordinates are exported using one sorted cursor per chromosome
+     * instead of one query per window
+     */
+    public void setChromosomeScan(boolean chromosomeScan) {
+        this.chromosomeScan = chromosomeScan;
+    }
+
+    /**
+     * Number of variants fetched from the database in each round trip while scanning a chromosome
+     */
+    public void setChromosomeScanBatchSize(int chromosomeScanBatchSize) {
+        if (chromosomeScanBatchSize < 1) {
+            throw new IllegalArgumentException("'chromosomeScanBatchSize' must be a positive number");
+        }
+        this.chromosomeScanBatchSize = chromosomeScanBatchSize;
+    }
+
+    /**
+     * If enabled, a tabix index (.tbi) of the output file is created while the variants are written. Only used when
+     * exporting to a file
+     */
+    public void setIndexOutput(boolean indexOutput) {
+        this.indexOutput = indexOutput;
+    }
+
+    /**
+     * Number of threads compressing the BGZF blocks of the output file. With more than one thread, the variants are
+     * converted and written while the previous blocks are being compressed. Indexed files are compressed in one thread
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        if (compressionThreads < 1) {
+            throw new IllegalArgumentException("'compressionThreads' must be a positive number");
+        }
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Number of chromosomes exported at the same time to separate part files when exporting to a file. With more than
+     * one thread, the parts are concatenated into the output file, and a manifest is written next to it
+     */
+    public void setShardThreads(int shardThreads) {
+        if (shardThreads < 1) {
+            throw new IllegalArgumentException("'shardThreads' must be a positive number");
+        }
+        this.shardThreads = shardThreads;
+    }
+
+    /**
+     * If enabled, the progress of an export to a file is saved in a checkpoint file in the output directory after each
+     * chromosome, so it can be resumed if it fails. The chromosomes are exported to part files, as in a sharded export
+     */
+    public void setCheckpointing(boolean checkpointing) {
+        this.checkpointing = checkpointing;
+    }
+
+    /**
+     * If enabled, an export to a file continues from the checkpoint of a previous export of the same query to the same
+     * directory, appending the chromosomes that were not completed to its output file. If there is no checkpoint, the
+     * export starts from the beginning. Resuming enables checkpointing
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * If enabled, the variants are exported without genotypes and the VCF header has no sample columns. The sample
+     * data is still fetched from the database, because the adaptor can't exclude it, but it is not decoded
+     */
+    public void setSitesOnly(boolean sitesOnly) {
+        this.sitesOnly = sitesOnly;
+        exporter.setSitesOnly(sitesOnly);
+    }
+
+    /**
+     * Exports only the genotypes of the given samples, or every sample if null or empty. The names are the ones in the
+     * output file, prefixed by the file id if the same sample name is in several exported files. The variants are
+     * still exported if none of the samples has been genotyped for them, like in a full export.
+     * <p>
+     * The genotypes are stored in the database grouped by value, with the indexes of the samples that have each one,
+     * so the sample data of the variants can't be restricted in the query: only the genotypes of the given samples are
+     * converted and written
+     *
+     * @throws IllegalArgumentException if any of the samples is not in the exported files
+     */
+    public void setSamples(List<String> samples) throws IllegalArgumentException {
+        this.samples = samples == null || samples.isEmpty() ? null : samples;
+        exporter.setSamples(this.samples);
+        if (this.samples != null) {
+            exporter.getSources(dbName, variantSourceDBAdaptor, studies, files);
+        }
+    }
+
+    /**
+     * Forgets everything cached about a database (chromosomes, their first and last variant coordinates, and the
+     * sources and headers of the studies). It should be called after loading new files into the database
+     */
+    public static void invalidateCaches(String dbName) {
+        ChromosomeFinder.invalidate(dbName);
+        RegionFactory.invalidateBounds(dbName);
+        VariantExporter.invalidateMetadata(dbName);
+    }
+
+    /**
+     * Returns the variant adaptor to the registry, so it can be closed when it is not used by any other export. The
+     * controller can't query the database after this
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            VariantDBAdaptorRegistry.release(dbName);
+        }
+    }
+
+    /**
+     * Closes every database connection shared by the exports. To be called when the application is shutting down
+     */
+    public static void closeAllConnections() {
+        VariantDBAdaptorRegistry.closeAll();
+        MongoClientFactory.closeAll();
+    }
+
     public boolean validateSpecies() {
         // todo add validation after spring data migration
         return true;
@@ -402,7 +1197,7 @@ public class VariantExporterController {
 
     public boolean validateStudies() {
         try {
-            List<VariantSource> sources = exporter.getSources(variantSourceDBAdaptor, studies, files);
+            List<VariantSource> sources = exporter.getSources(dbName, variantSourceDBAdaptor, studies, files);
             return !sources.isEmpty();
         } catch (Exception e) {
             logger.error("Error validating studies", e);
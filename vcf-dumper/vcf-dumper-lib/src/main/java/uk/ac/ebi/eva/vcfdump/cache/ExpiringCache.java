@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.cache;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Thread safe cache whose entries expire a fixed time after being loaded. When the cache is full, the least recently
+ * used entry is evicted.
+ * <p>
+ * The values are loaded outside the lock, so two threads asking at the same time for a missing key could both load it;
+ * the loaders are expected to be idempotent database queries. If a key is invalidated while its value is being
+ * loaded, the loaded value is returned but not cached, as it may have been read before the data changed.
+ */
+public class ExpiringCache<K, V> {
+
+    private volatile long timeToLiveNanos;
+
+    private final int maxEntries;
+
+    private final LongSupplier clock;
+
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    /**
+     * Loads running outside the lock, so the invalidations can mark them as stale. Guarded by the entries
+     */
+    private final Set<PendingLoad<K>> pendingLoads;
+
+    public ExpiringCache(long timeToLive, TimeUnit timeUnit, int maxEntries) {
+        this(timeToLive, timeUnit, maxEntries, System::nanoTime);
+    }
+
+    ExpiringCache(long timeToLive, TimeUnit timeUnit, int maxEntries, LongSupplier clock) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("'maxEntries' must be a positive number");
+        }
+        setTimeToLive(timeToLive, timeUnit);
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > ExpiringCache.this.maxEntries;
+            }
+        };
+        this.pendingLoads = new HashSet<>();
+    }
+
+    /**
+     * Returns the cached value for the key, loading it if it is not cached or it has expired. Null values are not
+     * cached
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        PendingLoad<K> pendingLoad = new PendingLoad<>(key);
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                if (!isExpired(entry)) {
+                    return entry.value;
+                }
+                entries.remove(key);
+            }
+            pendingLoads.add(pendingLoad);
+        }
+
+        V value = null;
+        try {
+            value = loader.apply(key);
+        } finally {
+            synchronized (entries) {
+                pendingLoads.remove(pendingLoad);
+                if (value != null && !pendingLoad.invalidated) {
+                    entries.put(key, new Entry<>(value, clock.getAsLong()));
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Changes the time to live of every entry, including the ones already in the cache
+     */
+    public void setTimeToLive(long timeToLive, TimeUnit timeUnit) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("'timeToLive' can't be negative");
+        }
+        this.timeToLiveNanos = timeUnit.toNanos(timeToLive);
+    }
+
+    public void invalidate(K key) {
+        invalidateIf(key::equals);
+    }
+
+    public void invalidateIf(Predicate<? super K> keyPredicate) {
+        synchronized (entries) {
+            Iterator<K> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keyPredicate.test(keys.next())) {
+                    keys.remove();
+                }
+            }
+            for (PendingLoad<K> pendingLoad : pendingLoads) {
+                if (keyPredicate.test(pendingLoad.key)) {
+                    pendingLoad.invalidated = true;
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            pendingLoads.forEach(pendingLoad -> pendingLoad.invalidated = true);
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private boolean isExpired(Entry<V> entry) {
+        return clock.getAsLong() - entry.loadTime >= timeToLiveNanos;
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+
+        private final long loadTime;
+
+        Entry(V value, long loadTime) {
+            this.value = value;
+            this.loadTime = loadTime;
+        }
+    }
+
+    private static class PendingLoad<K> {
+
+        private final K key;
+
+        private boolean invalidated;
+
+        PendingLoad(K key) {
+            this.key = key;
+            this.invalidated = false;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.compression;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Concatenates BGZF files by copying their compressed blocks, so the data is not decompressed and compressed again.
+ * The empty block that terminates each file is skipped, and only one is written at the end of the output when it is
+ * closed. If the concatenation fails, it should be aborted instead, so the output is not taken for a complete file.
+ */
+public class BlockCompressedFileConcatenator implements Closeable {
+
+    private final Path outputFilePath;
+
+    private final FileChannel outputChannel;
+
+    private boolean closed;
+
+    public BlockCompressedFileConcatenator(Path outputFilePath) throws IOException {
+        this(outputFilePath, 0);
+    }
+
+    /**
+     * Continues a previous concatenation: the output file is truncated to the given length, discarding anything
+     * appended after it, and the next files are appended from there
+     */
+    public BlockCompressedFileConcatenator(Path outputFilePath, long length) throws IOException {
+        this.outputFilePath = outputFilePath;
+        this.outputChannel = FileChannel.open(outputFilePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (outputChannel.size() < length) {
+            outputChannel.close();
+            throw new IOException("File " + outputFilePath + " is shorter than " + length + " bytes");
+        }
+        outputChannel.truncate(length);
+        outputChannel.position(length);
+        this.closed = false;
+    }
+
+    /**
+     * @return number of bytes copied to the output, not including the terminator block of the file
+     */
+    public long append(Path blockCompressedFilePath) throws IOException {
+        long length = blockCompressedFilePath.toFile().length();
+        switch (BlockCompressedInputStream.checkTermination(blockCompressedFilePath.toFile())) {
+            case HAS_TERMINATOR_BLOCK:
+                length -= BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+                break;
+            case HAS_HEALTHY_LAST_BLOCK:
+                break;
+            default:
+                throw new IOException("File " + blockCompressedFilePath + " is not a valid BGZF file");
+        }
+
+        try (FileChannel inputChannel = FileChannel.open(blockCompressedFilePath, StandardOpenOption.READ)) {
+            long copiedBytes = 0;
+            while (copiedBytes < length) {
+                copiedBytes += inputChannel.transferTo(copiedBytes, length - copiedBytes, outputChannel);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return offset in the output file where the next appended file will start
+     */
+    public long getPosition() throws IOException {
+        return outputChannel.position();
+    }
+
+    public Path getOutputFilePath() {
+        return outputFilePath;
+    }
+
+    /**
+     * Closes the output without writing the terminator block. Closing the concatenator afterwards has no effect
+     */
+    public void abort() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outputChannel.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            ByteBuffer terminator = ByteBuffer.wrap(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            while (terminator.hasRemaining()) {
+                outputChannel.write(terminator);
+            }
+        } finally {
+            outputChannel.close();
+        }
+    }
+}
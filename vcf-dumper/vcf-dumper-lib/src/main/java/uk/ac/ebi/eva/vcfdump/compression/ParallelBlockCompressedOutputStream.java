@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.compression;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * BGZF output stream that compresses the blocks in a pool of threads. The data written is split in blocks by the
+ * calling thread, each block is deflated by a worker, and the compressed blocks are written to the underlying stream
+ * in the same order, so the output is a valid BGZF file (including the final empty block) readable by htsjdk, tabix
+ * or gzip.
+ * <p>
+ * The number of blocks waiting to be written is bounded, so a slow underlying stream blocks the writer instead of
+ * accumulating compressed data in memory, and every block is flushed as soon as it is written. The file offsets of
+ * the blocks are not known until they are compressed, so this stream can't be used for creating an index on the fly.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+
+    /**
+     * Uncompressed bytes per block. Smaller than the maximum BGZF block size, so a block can always be stored
+     * uncompressed if deflating makes it bigger, as samtools does
+     */
+    static final int UNCOMPRESSED_BLOCK_SIZE = 0xff00;
+
+    private static final AtomicInteger poolNumber = new AtomicInteger(0);
+
+    /**
+     * One deflater per worker thread and compression level, used by every stream whose blocks are compressed in that
+     * thread: they are expensive to create, and a block is compressed by one thread only
+     */
+    private static final ThreadLocal<Deflater[]> deflaters = ThreadLocal.withInitial(
+            () -> new Deflater[Deflater.BEST_COMPRESSION - Deflater.DEFAULT_COMPRESSION + 1]);
+
+    private final OutputStream outputStream;
+
+    private final ExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    private final int maxPendingBlocks;
+
+    private final Deque<Future<byte[]>> pendingBlocks;
+
+    private final int compressionLevel;
+
+    private byte[] uncompressedBlock;
+
+    private int uncompressedBlockLength;
+
+    private boolean closed;
+
+    public ParallelBlockCompressedOutputStream(OutputStream outputStream, int threads) {
+        this(outputStream, threads, BlockCompressedOutputStream.getDefaultCompressionLevel());
+    }
+
+    public ParallelBlockCompressedOutputStream(OutputStream outputStream, int threads, int compressionLevel) {
+        this(outputStream, createExecutor(threads), true, threads * 2, compressionLevel);
+    }
+
+    /**
+     * Compresses the blocks in an executor shared with other streams, which is not shut down when this stream is closed
+     *
+     * @param maxPendingBlocks maximum number of blocks of this stream waiting to be compressed or written
+     */
+    public ParallelBlockCompressedOutputStream(OutputStream outputStream, ExecutorService executor,
+                                               int maxPendingBlocks) {
+        this(outputStream, executor, false, maxPendingBlocks, BlockCompressedOutputStream.getDefaultCompressionLevel());
+        if (maxPendingBlocks < 1) {
+            throw new IllegalArgumentException("'maxPendingBlocks' must be a positive number");
+        }
+    }
+
+    private ParallelBlockCompressedOutputStream(OutputStream outputStream, ExecutorService executor,
+                                                boolean ownExecutor, int maxPendingBlocks, int compressionLevel) {
+        this.outputStream = outputStream;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.maxPendingBlocks = maxPendingBlocks;
+        this.pendingBlocks = new ArrayDeque<>(maxPendingBlocks);
+        this.uncompressedBlock = new byte[UNCOMPRESSED_BLOCK_SIZE];
+        this.uncompressedBlockLength = 0;
+        this.closed = false;
+        this.compressionLevel = compressionLevel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        uncompressedBlock[uncompressedBlockLength++] = (byte) b;
+        if (uncompressedBlockLength == UNCOMPRESSED_BLOCK_SIZE) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int bytesToCopy = Math.min(length, UNCOMPRESSED_BLOCK_SIZE - uncompressedBlockLength);
+            System.arraycopy(bytes, offset, uncompressedBlock, uncompressedBlockLength, bytesToCopy);
+            uncompressedBlockLength += bytesToCopy;
+            offset += bytesToCopy;
+            length -= bytesToCopy;
+            if (uncompressedBlockLength == UNCOMPRESSED_BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Ends the current block (even if it is not full), and waits until every block has been written
+     */
+    @Override
+    public void flush() throws IOException {
+        if (uncompressedBlockLength > 0) {
+            submitBlock();
+        }
+        while (!pendingBlocks.isEmpty()) {
+            writeFirstPendingBlock();
+        }
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            outputStream.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            outputStream.close();
+        } finally {
+            pendingBlocks.forEach(pendingBlock -> pendingBlock.cancel(true));
+            if (ownExecutor) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static ExecutorService createExecutor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("'threads' must be a positive number");
+        }
+        int pool = poolNumber.incrementAndGet();
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "bgzf-" + pool + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void submitBlock() throws IOException {
+        if (pendingBlocks.size() == maxPendingBlocks) {
+            writeFirstPendingBlock();
+        }
+        byte[] block = uncompressedBlock;
+        int blockLength = uncompressedBlockLength;
+        pendingBlocks.add(executor.submit(() -> compressBlock(block, blockLength)));
+        uncompressedBlock = new byte[UNCOMPRESSED_BLOCK_SIZE];
+        uncompressedBlockLength = 0;
+    }
+
+    private void writeFirstPendingBlock() throws IOException {
+        try {
+            outputStream.write(pendingBlocks.poll().get());
+            // streaming clients can start decompressing as soon as each block is compressed
+            outputStream.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing BGZF blocks");
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing BGZF block: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * @return the whole BGZF block: gzip header with the block size extra field, deflated data, CRC and input size
+     */
+    private byte[] compressBlock(byte[] block, int blockLength) {
+        byte[] compressedData = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE
+                - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+                - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH];
+        int compressedLength = deflate(getDeflater(compressionLevel), block, blockLength, compressedData);
+        if (compressedLength < 0) {
+            // the data is not compressible, so it is stored
+            compressedLength = deflate(getDeflater(Deflater.NO_COMPRESSION), block, blockLength, compressedData);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, blockLength);
+
+        int totalBlockSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + compressedLength
+                + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        byte[] compressedBlock = new byte[totalBlockSize];
+        int position = writeHeader(compressedBlock, totalBlockSize);
+        System.arraycopy(compressedData, 0, compressedBlock, position, compressedLength);
+        position += compressedLength;
+        position = writeInt(compressedBlock, position, (int) crc.getValue());
+        writeInt(compressedBlock, position, blockLength);
+        return compressedBlock;
+    }
+
+    private static Deflater getDeflater(int level) {
+        Deflater[] threadDeflaters = deflaters.get();
+        int index = level - Deflater.DEFAULT_COMPRESSION;
+        if (threadDeflaters[index] == null) {
+            threadDeflaters[index] = new Deflater(level, true);
+        }
+        return threadDeflaters[index];
+    }
+
+    /**
+     * @return the length of the deflated data, or -1 if it doesn't fit in the output buffer
+     */
+    private int deflate(Deflater deflater, byte[] block, int blockLength, byte[] output) {
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        int compressedLength = deflater.deflate(output, 0, output.length);
+        return deflater.finished() ? compressedLength : -1;
+    }
+
+    private int writeHeader(byte[] buffer, int totalBlockSize) {
+        int position = 0;
+        buffer[position++] = (byte) BlockCompressedStreamConstants.GZIP_ID1;
+        buffer[position++] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+        buffer[position++] = (byte) BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+        buffer[position++] = (byte) BlockCompressedStreamConstants.GZIP_FLG;
+        // no modification time
+        position = writeInt(buffer, position, 0);
+        buffer[position++] = (byte) BlockCompressedStreamConstants.GZIP_XFL;
+        buffer[position++] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+        position = writeShort(buffer, position, BlockCompressedStreamConstants.GZIP_XLEN);
+        buffer[position++] = (byte) BlockCompressedStreamConstants.BGZF_ID1;
+        buffer[position++] = (byte) BlockCompressedStreamConstants.BGZF_ID2;
+        position = writeShort(buffer, position, BlockCompressedStreamConstants.BGZF_LEN);
+        return writeShort(buffer, position, totalBlockSize - 1);
+    }
+
+    private int writeShort(byte[] buffer, int position, int value) {
+        buffer[position] = (byte) value;
+        buffer[position + 1] = (byte) (value >>> 8);
+        return position + 2;
+    }
+
+    private int writeInt(byte[] buffer, int position, int value) {
+        position = writeShort(buffer, position, value);
+        return writeShort(buffer, position, value >>> 16);
+    }
+}
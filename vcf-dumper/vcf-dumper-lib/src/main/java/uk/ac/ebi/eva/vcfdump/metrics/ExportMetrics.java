@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and latency of the exports of one database, accumulated since the application started, so the slow
+ * species can be found. The metrics of every database are published over JMX as
+ * {@code uk.ac.ebi.eva.vcfdump:type=ExportMetrics,database="<database>"}.
+ * <p>
+ * The region query latency is the time spent reading the variants of a region from the database, not converting
+ * them. When chromosomes are scanned with one cursor, each chromosome counts as one region.
+ */
+public class ExportMetrics implements ExportMetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportMetrics.class);
+
+    private static final String JMX_DOMAIN = "uk.ac.ebi.eva.vcfdump";
+
+    private static final Map<String, ExportMetrics> databaseMetrics = new ConcurrentHashMap<>();
+
+    private final LatencyHistogram regionQueryLatency;
+
+    private final LatencyHistogram headerBuildTime;
+
+    private final RateMeter convertedVariants;
+
+    private final LongAdder failedVariants;
+
+    private final LongAdder writtenBytes;
+
+    ExportMetrics() {
+        regionQueryLatency = new LatencyHistogram();
+        headerBuildTime = new LatencyHistogram();
+        convertedVariants = new RateMeter();
+        failedVariants = new LongAdder();
+        writtenBytes = new LongAdder();
+    }
+
+    public static ExportMetrics forDatabase(String dbName) {
+        return databaseMetrics.computeIfAbsent(dbName, ExportMetrics::createAndRegister);
+    }
+
+    /**
+     * @return the metrics of every database with exports, sorted by database name
+     */
+    public static Map<String, ExportMetrics> getAll() {
+        return new TreeMap<>(databaseMetrics);
+    }
+
+    private static ExportMetrics createAndRegister(String dbName) {
+        ExportMetrics metrics = new ExportMetrics();
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ExportMetrics,database=" + ObjectName.quote(dbName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+        } catch (JMException e) {
+            // the metrics are still collected, and available from getAll
+            logger.warn("Export metrics of {} could not be published over JMX: {}", dbName, e.getMessage());
+        }
+        return metrics;
+    }
+
+    public void recordRegionQuery(long nanos) {
+        regionQueryLatency.record(nanos);
+    }
+
+    public void recordHeaderBuild(long nanos) {
+        headerBuildTime.record(nanos);
+    }
+
+    public void countConvertedVariants(long variants) {
+        convertedVariants.mark(variants);
+    }
+
+    public void countFailedVariants(long variants) {
+        failedVariants.add(variants);
+    }
+
+    public void countWrittenBytes(long bytes) {
+        writtenBytes.add(bytes);
+    }
+
+    public LatencyHistogram getRegionQueryLatency() {
+        return regionQueryLatency;
+    }
+
+    public LatencyHistogram getHeaderBuildTime() {
+        return headerBuildTime;
+    }
+
+    @Override
+    public long getRegionQueries() {
+        return regionQueryLatency.getCount();
+    }
+
+    @Override
+    public double getRegionQueryMeanMillis() {
+        return regionQueryLatency.getMeanMillis();
+    }
+
+    @Override
+    public double getRegionQueryMaxMillis() {
+        return regionQueryLatency.getMaxMillis();
+    }
+
+    @Override
+    public long getConvertedVariants() {
+        return convertedVariants.getCount();
+    }
+
+    @Override
+    public double getConvertedVariantsPerSecond() {
+        return convertedVariants.getRatePerSecond();
+    }
+
+    @Override
+    public long getFailedVariants() {
+        return failedVariants.sum();
+    }
+
+    @Override
+    public long getWrittenBytes() {
+        return writtenBytes.sum();
+    }
+
+    @Override
+    public long getHeaderBuilds() {
+        return headerBuildTime.getCount();
+    }
+
+    @Override
+    public double getHeaderBuildMeanMillis() {
+        return headerBuildTime.getMeanMillis();
+    }
+
+    @Override
+    public double getHeaderBuildMaxMillis() {
+        return headerBuildTime.getMaxMillis();
+    }
+}
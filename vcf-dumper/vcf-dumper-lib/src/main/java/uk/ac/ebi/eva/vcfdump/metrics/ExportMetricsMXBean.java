@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.metrics;
+
+/**
+ * Export metrics of one database, as published over JMX
+ */
+public interface ExportMetricsMXBean {
+
+    long getRegionQueries();
+
+    double getRegionQueryMeanMillis();
+
+    double getRegionQueryMaxMillis();
+
+    long getConvertedVariants();
+
+    double getConvertedVariantsPerSecond();
+
+    long getFailedVariants();
+
+    long getWrittenBytes();
+
+    long getHeaderBuilds();
+
+    double getHeaderBuildMeanMillis();
+
+    double getHeaderBuildMaxMillis();
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of the durations of an operation in fixed buckets, from milliseconds to minutes. It can be updated
+ * from several threads without locking; the buckets, count and sum read at the same time may be slightly out of sync
+ */
+public class LatencyHistogram {
+
+    /**
+     * Upper bounds of the buckets in seconds, as in the Prometheus default buckets, extended up to one minute
+     */
+    private static final double[] BUCKET_BOUNDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    /**
+     * Observations in each bucket, plus one more for the ones over the last bound
+     */
+    private final LongAdder[] bucketCounts;
+
+    private final LongAdder count;
+
+    private final LongAdder sumNanos;
+
+    private final AtomicLong maxNanos;
+
+    public LatencyHistogram() {
+        bucketCounts = new LongAdder[BUCKET_BOUNDS.length + 1];
+        for (int i = 0; i < bucketCounts.length; i++) {
+            bucketCounts[i] = new LongAdder();
+        }
+        count = new LongAdder();
+        sumNanos = new LongAdder();
+        maxNanos = new AtomicLong();
+    }
+
+    public void record(long nanos) {
+        double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && seconds > BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        bucketCounts[bucket].increment();
+        count.increment();
+        sumNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public static double[] getBucketBounds() {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    /**
+     * @return the number of observations less than or equal to each bucket bound, as Prometheus expects them. The
+     * last value is the total, for the implicit +Inf bucket
+     */
+    public long[] getCumulativeBucketCounts() {
+        long[] cumulativeCounts = new long[bucketCounts.length];
+        long observations = 0;
+        for (int i = 0; i < bucketCounts.length; i++) {
+            observations += bucketCounts[i].sum();
+            cumulativeCounts[i] = observations;
+        }
+        return cumulativeCounts;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getSumSeconds() {
+        return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    public double getMeanMillis() {
+        long observations = count.sum();
+        return observations == 0 ? 0 : sumNanos.sum() / (double) TimeUnit.MILLISECONDS.toNanos(1) / observations;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
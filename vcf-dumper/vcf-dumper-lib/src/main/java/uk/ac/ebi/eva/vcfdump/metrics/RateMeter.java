@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events, and their rate over the last minute. The events are added to one slot per second, reused every
+ * minute, so the rate doesn't need any background thread. The rate is approximate: events counted while a slot is
+ * being reused may be lost
+ */
+public class RateMeter {
+
+    private static final int WINDOW_SECONDS = 60;
+
+    private final LongAdder total;
+
+    private final AtomicLongArray slotCounts;
+
+    /**
+     * Second each slot is counting the events of
+     */
+    private final AtomicLongArray slotSeconds;
+
+    public RateMeter() {
+        total = new LongAdder();
+        slotCounts = new AtomicLongArray(WINDOW_SECONDS);
+        slotSeconds = new AtomicLongArray(WINDOW_SECONDS);
+    }
+
+    public void mark(long events) {
+        total.add(events);
+        long second = currentSecond();
+        int slot = (int) Math.floorMod(second, (long) WINDOW_SECONDS);
+        long slotSecond = slotSeconds.get(slot);
+        if (slotSecond != second && slotSeconds.compareAndSet(slot, slotSecond, second)) {
+            slotCounts.set(slot, events);
+        } else {
+            slotCounts.addAndGet(slot, events);
+        }
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * @return events per second during the last minute, not counting the current second as it is not finished
+     */
+    public double getRatePerSecond() {
+        long currentSecond = currentSecond();
+        long events = 0;
+        for (int slot = 0; slot < WINDOW_SECONDS; slot++) {
+            long slotSecond = slotSeconds.get(slot);
+            if (slotSecond < currentSecond && slotSecond >= currentSecond - WINDOW_SECONDS) {
+                events += slotCounts.get(slot);
+            }
+        }
+        return events / (double) WINDOW_SECONDS;
+    }
+
+    private static long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.mongoutils;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.eva.vcfdump.cache.ExpiringCache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets the chromosomes containing variants from some studies (and optionally files) using a distinct query over the
+ * variants collection. The results are cached per database, studies and files, because the same species is exported
+ * many times between two loads of new variants
+ */
+public class ChromosomeFinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChromosomeFinder.class);
+
+    private static final String CHROMOSOME_FIELD = "chr";
+
+    private static final String FILES_FIELD = "files";
+
+    private static final String STUDY_ID_FIELD = "sid";
+
+    private static final String FILE_ID_FIELD = "fid";
+
+    private static final long DEFAULT_CACHE_TIME_TO_LIVE_SECONDS = 3600;
+
+    private static final int MAX_CACHED_QUERIES = 1000;
+
+    private static final ExpiringCache<List<Object>, Set<String>> chromosomesCache =
+            new ExpiringCache<>(DEFAULT_CACHE_TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS, MAX_CACHED_QUERIES);
+
+    private final MongoClient mongoClient;
+
+    private final String variantsCollection;
+
+    public ChromosomeFinder(MongoClient mongoClient, String variantsCollection) {
+        this.mongoClient = mongoClient;
+        this.variantsCollection = variantsCollection;
+    }
+
+    public Set<String> getChromosomes(String dbName, List<String> studies, List<String> files) {
+        List<Object> cacheKey = Arrays.asList(dbName, new TreeSet<>(studies),
+                                              files != null ? new TreeSet<>(files) : Collections.emptySet());
+        return chromosomesCache.get(cacheKey, key -> findChromosomes(dbName, studies, files));
+    }
+
+    private Set<String> findChromosomes(String dbName, List<String> studies, List<String> files) {
+        BasicDBObject fileFilter = new BasicDBObject(STUDY_ID_FIELD, new BasicDBObject("$in", studies));
+        if (files != null && !files.isEmpty()) {
+            fileFilter.append(FILE_ID_FIELD, new BasicDBObject("$in", files));
+        }
+        BasicDBObject query = new BasicDBObject(FILES_FIELD, new BasicDBObject("$elemMatch", fileFilter));
+
+        List chromosomes = mongoClient.getDB(dbName).getCollection(variantsCollection)
+                                      .distinct(CHROMOSOME_FIELD, query);
+        Set<String> chromosomeNames = new TreeSet<>();
+        for (Object chromosome : chromosomes) {
+            chromosomeNames.add(chromosome.toString());
+        }
+        logger.debug("Chromosomes found in {} for studies {}: {}", dbName, studies, chromosomeNames);
+        return Collections.unmodifiableSet(chromosomeNames);
+    }
+
+    public static void setCacheTimeToLive(long timeToLive, TimeUnit timeUnit) {
+        chromosomesCache.setTimeToLive(timeToLive, timeUnit);
+    }
+
+    /**
+     * Forgets the chromosomes of a database. It should be called after loading new variants into it
+     */
+    public static void invalidate(String dbName) {
+        chromosomesCache.invalidateIf(key -> key.get(0).equals(dbName));
+    }
+
+    public static void invalidateAll() {
+        chromosomesCache.invalidateAll();
+    }
+}
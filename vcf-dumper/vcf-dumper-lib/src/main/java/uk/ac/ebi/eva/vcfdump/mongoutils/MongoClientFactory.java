@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.mongoutils;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mongo clients used for the queries that the opencga adaptors don't provide. Each client holds a connection pool, so
+ * they are shared by every export using the same servers and credentials
+ */
+public class MongoClientFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoClientFactory.class);
+
+    private static final int DEFAULT_MONGO_PORT = 27017;
+
+    private static final int DEFAULT_CONNECTIONS_PER_HOST = 20;
+
+    private static final Map<String, MongoClient> mongoClients = new ConcurrentHashMap<>();
+
+    /**
+     * @param dbName database to authenticate against, if the authentication database is not set in the properties
+     */
+    public static MongoClient getMongoClient(String dbName, Properties properties) {
+        String hosts = properties.getProperty("eva.mongo.host");
+        String user = properties.getProperty("eva.mongo.user");
+        String authenticationDatabase = properties.getProperty("eva.mongo.auth.db");
+        if (!isSet(authenticationDatabase)) {
+            authenticationDatabase = dbName;
+        }
+        String clientKey = isSet(user) ? hosts + "|" + user + "@" + authenticationDatabase : hosts;
+
+        String password = properties.getProperty("eva.mongo.passwd");
+        String credentialsDatabase = authenticationDatabase;
+        int connectionsPerHost = Integer.parseInt(properties.getProperty("eva.mongo.pool.size",
+                                                                         String.valueOf(DEFAULT_CONNECTIONS_PER_HOST)));
+        return mongoClients.computeIfAbsent(clientKey, key -> createMongoClient(hosts, user, password,
+                                                                                credentialsDatabase,
+                                                                                connectionsPerHost));
+    }
+
+    public static void closeAll() {
+        mongoClients.values().forEach(MongoClient::close);
+        mongoClients.clear();
+    }
+
+    private static MongoClient createMongoClient(String hosts, String user, String password,
+                                                 String authenticationDatabase, int connectionsPerHost) {
+        // Get the list of hosts (optionally including the port number)
+        List<ServerAddress> servers = new ArrayList<>();
+        for (String host : hosts.split(",")) {
+            String[] params = host.split(":");
+            if (params.length > 1) {
+                servers.add(new ServerAddress(params[0], Integer.parseInt(params[1])));
+            } else {
+                servers.add(new ServerAddress(params[0], DEFAULT_MONGO_PORT));
+            }
+        }
+
+        List<MongoCredential> credentials = Collections.emptyList();
+        if (isSet(user)) {
+            char[] passwordChars = password != null ? password.toCharArray() : new char[0];
+            credentials = Collections.singletonList(
+                    MongoCredential.createCredential(user, authenticationDatabase, passwordChars));
+        }
+        MongoClientOptions options = MongoClientOptions.builder().connectionsPerHost(connectionsPerHost).build();
+        logger.debug("Creating mongo client for {} with {} connections per host", hosts, connectionsPerHost);
+        return new MongoClient(servers, credentials, options);
+    }
+
+    private static boolean isSet(String property) {
+        return property != null && !property.isEmpty();
+    }
+}
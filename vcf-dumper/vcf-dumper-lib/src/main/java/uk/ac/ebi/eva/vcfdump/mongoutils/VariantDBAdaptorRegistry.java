@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.mongoutils;
+
+import org.opencb.opencga.lib.auth.IllegalOpenCGACredentialsException;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived variant adaptors, one per database. Each adaptor holds its own connection pool, so creating one for every
+ * request means connecting and authenticating every time.
+ * <p>
+ * The adaptors are reference counted: every {@link #acquire} must be followed by a {@link #release}. Adaptors that
+ * have not been used for the idle timeout are closed the next time the registry is accessed, and if there are more
+ * databases than the maximum, the least recently used idle adaptors are closed too.
+ * <p>
+ * The adaptors are created outside the registry lock, so connecting to a slow database doesn't block the exports of
+ * the other ones. The exports of a database that ask for its adaptor while it is being created wait for it.
+ */
+public class VariantDBAdaptorRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(VariantDBAdaptorRegistry.class);
+
+    private static final int DEFAULT_MAX_ADAPTORS = 20;
+
+    private static final long DEFAULT_IDLE_TIMEOUT_SECONDS = 600;
+
+    /**
+     * Registered adaptors in access order, so the first ones are the least recently used. Guarded by the class lock
+     */
+    private static final LinkedHashMap<String, RegisteredAdaptor> adaptors = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static int maxAdaptors = DEFAULT_MAX_ADAPTORS;
+
+    private static long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_SECONDS);
+
+    @FunctionalInterface
+    public interface AdaptorFactory {
+        VariantDBAdaptor create() throws IllegalOpenCGACredentialsException, UnknownHostException,
+                ClassNotFoundException, InstantiationException, IllegalAccessException;
+    }
+
+    public static VariantDBAdaptor acquire(String dbName, AdaptorFactory adaptorFactory)
+            throws IllegalOpenCGACredentialsException, UnknownHostException, ClassNotFoundException,
+            InstantiationException, IllegalAccessException {
+        while (true) {
+            RegisteredAdaptor registeredAdaptor;
+            boolean newAdaptor;
+            synchronized (VariantDBAdaptorRegistry.class) {
+                registeredAdaptor = adaptors.get(dbName);
+                newAdaptor = registeredAdaptor == null;
+                if (newAdaptor) {
+                    registeredAdaptor = new RegisteredAdaptor();
+                    adaptors.put(dbName, registeredAdaptor);
+                }
+                // the adaptor is in use while it is being created, so it is not evicted
+                registeredAdaptor.users++;
+                registeredAdaptor.lastUse = System.nanoTime();
+            }
+
+            if (newAdaptor) {
+                return create(dbName, registeredAdaptor, adaptorFactory);
+            }
+            try {
+                VariantDBAdaptor adaptor = registeredAdaptor.adaptor.join();
+                evictIdleAdaptors();
+                return adaptor;
+            } catch (CompletionException | CancellationException e) {
+                // the creation failed and the adaptor was unregistered, so this thread tries to create it again
+                logger.debug("Variant adaptor for database {} could not be created, retrying", dbName);
+            }
+        }
+    }
+
+    private static VariantDBAdaptor create(String dbName, RegisteredAdaptor registeredAdaptor,
+                                           AdaptorFactory adaptorFactory)
+            throws IllegalOpenCGACredentialsException, UnknownHostException, ClassNotFoundException,
+            InstantiationException, IllegalAccessException {
+        logger.debug("Creating variant adaptor for database {}", dbName);
+        VariantDBAdaptor adaptor;
+        try {
+            adaptor = adaptorFactory.create();
+        } catch (Throwable e) {
+            synchronized (VariantDBAdaptorRegistry.class) {
+                adaptors.remove(dbName, registeredAdaptor);
+            }
+            registeredAdaptor.adaptor.completeExceptionally(e);
+            throw e;
+        }
+        registeredAdaptor.adaptor.complete(adaptor);
+        evictIdleAdaptors();
+        return adaptor;
+    }
+
+    public static synchronized void release(String dbName) {
+        RegisteredAdaptor registeredAdaptor = adaptors.get(dbName);
+        if (registeredAdaptor != null && registeredAdaptor.users > 0) {
+            registeredAdaptor.users--;
+            registeredAdaptor.lastUse = System.nanoTime();
+        }
+        evictIdleAdaptors();
+    }
+
+    /**
+     * @return the number of exports using the adaptor of a database, 0 if it is not registered
+     */
+    public static synchronized int getUsers(String dbName) {
+        RegisteredAdaptor registeredAdaptor = adaptors.get(dbName);
+        return registeredAdaptor == null ? 0 : registeredAdaptor.users;
+    }
+
+    public static synchronized void setMaxAdaptors(int maxAdaptors) {
+        if (maxAdaptors < 1) {
+            throw new IllegalArgumentException("'maxAdaptors' must be a positive number");
+        }
+        VariantDBAdaptorRegistry.maxAdaptors = maxAdaptors;
+    }
+
+    public static synchronized void setIdleTimeout(long idleTimeout, TimeUnit timeUnit) {
+        idleTimeoutNanos = timeUnit.toNanos(idleTimeout);
+    }
+
+    /**
+     * Closes every adaptor, even if it is still in use. To be called when the application is shutting down
+     */
+    public static synchronized void closeAll() {
+        adaptors.forEach((dbName, registeredAdaptor) -> close(dbName, registeredAdaptor));
+        adaptors.clear();
+    }
+
+    private static synchronized void evictIdleAdaptors() {
+        long now = System.nanoTime();
+        int adaptorsToEvict = adaptors.size() - maxAdaptors;
+        Iterator<Map.Entry<String, RegisteredAdaptor>> iterator = adaptors.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, RegisteredAdaptor> entry = iterator.next();
+            RegisteredAdaptor registeredAdaptor = entry.getValue();
+            if (registeredAdaptor.users == 0
+                    && (adaptorsToEvict > 0 || now - registeredAdaptor.lastUse >= idleTimeoutNanos)) {
+                close(entry.getKey(), registeredAdaptor);
+                iterator.remove();
+                adaptorsToEvict--;
+            }
+        }
+    }
+
+    /**
+     * Closes the adaptor, or if it is still being created, closes it as soon as it is created
+     */
+    private static void close(String dbName, RegisteredAdaptor registeredAdaptor) {
+        registeredAdaptor.adaptor.thenAccept(adaptor -> {
+            logger.debug("Closing variant adaptor for database {}", dbName);
+            try {
+                adaptor.close();
+            } catch (RuntimeException e) {
+                logger.warn("Error closing variant adaptor for database {}: {}", dbName, e.getMessage());
+            }
+        });
+    }
+
+    private static class RegisteredAdaptor {
+
+        /**
+         * Completed when the adaptor is created, or exceptionally if it can't be created
+         */
+        private final CompletableFuture<VariantDBAdaptor> adaptor;
+
+        private int users;
+
+        private long lastUse;
+
+        RegisteredAdaptor() {
+            this.adaptor = new CompletableFuture<>();
+            this.users = 0;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.regionutils;
+
+import java.util.Comparator;
+
+/**
+ * Orders chromosome names the way they usually appear in a reference: the numeric ones by number, followed by the
+ * rest (X, Y, MT, scaffolds...) in lexicographic order. A "chr" prefix is ignored. The order is total, so the
+ * exported chromosomes are always written in the same order, as needed by tabix indexes
+ */
+public class ChromosomeComparator implements Comparator<String> {
+
+    private static final String CHROMOSOME_PREFIX = "chr";
+
+    @Override
+    public int compare(String chromosome1, String chromosome2) {
+        String name1 = removePrefix(chromosome1);
+        String name2 = removePrefix(chromosome2);
+        boolean numeric1 = isNumeric(name1);
+        boolean numeric2 = isNumeric(name2);
+
+        int comparison;
+        if (numeric1 && numeric2) {
+            comparison = compareNumbers(name1, name2);
+        } else if (numeric1 != numeric2) {
+            comparison = numeric1 ? -1 : 1;
+        } else {
+            comparison = name1.compareTo(name2);
+        }
+        // names like "1" and "chr1", or "1" and "01", are different chromosomes
+        return comparison != 0 ? comparison : chromosome1.compareTo(chromosome2);
+    }
+
+    private String removePrefix(String chromosome) {
+        if (chromosome.regionMatches(true, 0, CHROMOSOME_PREFIX, 0, CHROMOSOME_PREFIX.length())
+                && chromosome.length() > CHROMOSOME_PREFIX.length()) {
+            return chromosome.substring(CHROMOSOME_PREFIX.length());
+        }
+        return chromosome;
+    }
+
+    private boolean isNumeric(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return !name.isEmpty();
+    }
+
+    /**
+     * Compares numbers of any length without parsing them
+     */
+    private int compareNumbers(String number1, String number2) {
+        String digits1 = removeLeadingZeros(number1);
+        String digits2 = removeLeadingZeros(number2);
+        if (digits1.length() != digits2.length()) {
+            return digits1.length() - digits2.length();
+        }
+        return digits1.compareTo(digits2);
+    }
+
+    private String removeLeadingZeros(String number) {
+        int firstNonZero = 0;
+        while (firstNonZero < number.length() - 1 && number.charAt(firstNonZero) == '0') {
+            firstNonZero++;
+        }
+        return number.substring(firstNonZero);
+    }
+}
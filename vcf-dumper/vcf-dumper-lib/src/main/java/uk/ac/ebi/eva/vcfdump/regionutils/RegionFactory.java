@@ -22,28 +22,84 @@ import com.mongodb.BasicDBObject;
 import org.opencb.biodata.models.feature.Region;
 import org.opencb.biodata.models.variant.Variant;
 import org.opencb.datastore.core.QueryOptions;
+import org.opencb.datastore.core.QueryResult;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantDBIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.ebi.eva.vcfdump.cache.ExpiringCache;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class RegionFactory {
 
     private static final Logger logger = LoggerFactory.getLogger(RegionFactory.class);
 
+    /**
+     * Key of the variant count in each interval returned by {@link VariantDBAdaptor#getVariantFrequencyByRegion}
+     */
+    private static final String INTERVAL_COUNT_FIELD = "features_count";
+
+    private static final String INTERVAL_START_FIELD = "start";
+
+    private static final long DEFAULT_BOUNDS_CACHE_TIME_TO_LIVE_SECONDS = 3600;
+
+    private static final int MAX_CACHED_BOUNDS = 10000;
+
+    /**
+     * Minimum size in bases of the parts a dense interval is split in, so a hotspot doesn't produce too many queries
+     */
+    static final int MIN_DENSE_REGION_SIZE = 100;
+
+    /**
+     * Query options that don't change which variants are returned, so they are not part of the bounds cache key
+     */
+    private static final List<String> NON_FILTER_OPTIONS = Arrays.asList("exclude", "sort", "limit", "skip",
+                                                                         "batchSize");
+
+    /**
+     * Coordinates of the first and last variants of each chromosome, by database, chromosome and query filters
+     */
+    private static final ExpiringCache<List<String>, ChromosomeBounds> boundsCache =
+            new ExpiringCache<>(DEFAULT_BOUNDS_CACHE_TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS, MAX_CACHED_BOUNDS);
+
     private int windowSize;
 
     private final VariantDBAdaptor variantAdaptor;
 
+    /**
+     * If greater than 0, the chromosomes are divided in regions containing approximately this number of variants
+     * instead of fixed size windows
+     */
+    private final int variantsPerRegion;
+
+    /**
+     * Database the adaptor is connected to, used for caching the chromosome bounds. If null, the bounds are not cached
+     */
+    private final String dbName;
+
     public RegionFactory(int windowSize, VariantDBAdaptor variantAdaptor) {
+        this(windowSize, variantAdaptor, 0);
+    }
+
+    public RegionFactory(int windowSize, VariantDBAdaptor variantAdaptor, int variantsPerRegion) {
+        this(windowSize, variantAdaptor, variantsPerRegion, null);
+    }
+
+    public RegionFactory(int windowSize, VariantDBAdaptor variantAdaptor, int variantsPerRegion, String dbName) {
         this.windowSize = windowSize;
         this.variantAdaptor = variantAdaptor;
+        this.variantsPerRegion = variantsPerRegion;
+        this.dbName = dbName;
     }
 
     public List<Region> getRegionsForChromosome(String chromosome, QueryOptions query) {
@@ -58,7 +114,11 @@ public class RegionFactory {
                 int maxStart = getMaxStart(chromosome, query);
                 logger.debug("Chromosome {} maxStart: {}", chromosome, maxStart);
                 logger.debug("Chromosome {} minStart: {}", chromosome, minStart);
-                return divideChromosomeInChunks(chromosome, minStart, maxStart);
+                if (variantsPerRegion > 0) {
+                    return divideChromosomeByVariantDensity(chromosome, minStart, maxStart, query);
+                } else {
+                    return divideChromosomeInChunks(chromosome, minStart, maxStart);
+                }
             }
         } else {
             List<Region> chromosomeRegionsFromQuery =
@@ -90,14 +150,155 @@ public class RegionFactory {
         return regions;
     }
 
+    private List<Region> divideChromosomeByVariantDensity(String chromosome, int minStart, int maxStart,
+                                                         QueryOptions query) {
+        NavigableMap<Integer, Integer> variantsPerInterval = getVariantsPerInterval(chromosome, minStart, maxStart,
+                                                                                    query);
+        if (variantsPerInterval.isEmpty()) {
+            logger.warn("Variant density not available for chromosome {}, using fixed size windows", chromosome);
+            return divideChromosomeInChunks(chromosome, minStart, maxStart);
+        }
+        List<Region> regions = divideRegionByVariantDensity(chromosome, minStart, maxStart, variantsPerInterval);
+        logger.debug("Number of regions in chromosome {} with ~{} variants each: {}", chromosome, variantsPerRegion,
+                     regions.size());
+        return regions;
+    }
+
+    /**
+     * Histogram of the variants in the chromosome, using intervals of 'windowSize' bases. The aggregation is done by
+     * the database, so just one query per chromosome is needed for estimating the variant density
+     *
+     * @return Map from the start of each (non empty) interval to the number of variants starting in it
+     */
+    private NavigableMap<Integer, Integer> getVariantsPerInterval(String chromosome, int minStart, int maxStart,
+                                                                 QueryOptions query) {
+        QueryOptions histogramQuery = new QueryOptions(query);
+        histogramQuery.remove(VariantDBAdaptor.REGION);
+        histogramQuery.put("interval", windowSize);
+        // the limits of the region are not included in the histogram
+        Region chromosomeRegion = new Region(chromosome, minStart - 1, maxStart + 1);
+
+        NavigableMap<Integer, Integer> variantsPerInterval = new TreeMap<>();
+        QueryResult histogram = variantAdaptor.getVariantFrequencyByRegion(chromosomeRegion, histogramQuery);
+        for (Object interval : histogram.getResult()) {
+            if (interval instanceof Map) {
+                Object intervalStart = ((Map) interval).get(INTERVAL_START_FIELD);
+                Object intervalCount = ((Map) interval).get(INTERVAL_COUNT_FIELD);
+                if (intervalStart instanceof Number && intervalCount instanceof Number
+                        && ((Number) intervalCount).intValue() > 0) {
+                    variantsPerInterval.merge(((Number) intervalStart).intValue(),
+                                              ((Number) intervalCount).intValue(), Integer::sum);
+                }
+            }
+        }
+        return variantsPerInterval;
+    }
+
+    /**
+     * Divides a region in consecutive regions containing at least 'variantsPerRegion' variants each (except the last
+     * one), according to the variant count of each interval. Empty intervals are merged into the surrounding regions,
+     * so sparse chromosomes produce few regions. An interval with more variants than 'variantsPerRegion' is split in
+     * parts of about that number of variants, assuming they are evenly distributed in the interval, but not smaller
+     * than {@link #MIN_DENSE_REGION_SIZE} bases
+     */
+    List<Region> divideRegionByVariantDensity(String chromosome, int minStart, int maxStart,
+                                              NavigableMap<Integer, Integer> variantsPerInterval) {
+        List<Region> regions = new ArrayList<>();
+        long regionStart = minStart;
+        long variantsInRegion = 0;
+        for (Map.Entry<Integer, Integer> interval : variantsPerInterval.entrySet()) {
+            long intervalEnd = Math.min((long) interval.getKey() + windowSize - 1, maxStart);
+            boolean denseInterval = interval.getValue() > variantsPerRegion && interval.getKey() <= maxStart;
+            if (denseInterval && intervalEnd >= regionStart) {
+                // the variants of the previous sparse intervals are exported with the first part
+                regionStart = addDenseIntervalParts(regions, chromosome, regionStart,
+                                                    Math.max(interval.getKey(), regionStart), intervalEnd,
+                                                    interval.getValue());
+                variantsInRegion = 0;
+                continue;
+            }
+            variantsInRegion += interval.getValue();
+            if (variantsInRegion >= variantsPerRegion) {
+                if (intervalEnd >= regionStart) {
+                    regions.add(new Region(chromosome, (int) regionStart, (int) intervalEnd));
+                    regionStart = intervalEnd + 1;
+                    variantsInRegion = 0;
+                }
+            }
+        }
+        if (regionStart <= maxStart) {
+            regions.add(new Region(chromosome, (int) regionStart, maxStart));
+        }
+        return regions;
+    }
+
+    /**
+     * Adds the parts of a dense interval to the regions, the first one starting at 'regionStart'. The last part is
+     * extended to the end of the interval instead of leaving a part smaller than the minimum size
+     *
+     * @return the start of the next region
+     */
+    private long addDenseIntervalParts(List<Region> regions, String chromosome, long regionStart, long intervalStart,
+                                       long intervalEnd, int variantsInInterval) {
+        long parts = (variantsInInterval + variantsPerRegion - 1) / variantsPerRegion;
+        long partSize = Math.max((intervalEnd - intervalStart + parts) / parts, MIN_DENSE_REGION_SIZE);
+        for (long partEnd = intervalStart + partSize - 1; intervalEnd - partEnd >= MIN_DENSE_REGION_SIZE;
+             partEnd += partSize) {
+            regions.add(new Region(chromosome, (int) regionStart, (int) partEnd));
+            regionStart = partEnd + 1;
+        }
+        regions.add(new Region(chromosome, (int) regionStart, (int) intervalEnd));
+        return intervalEnd + 1;
+    }
+
     public int getMinStart(String chromosome, QueryOptions query) {
-        QueryOptions minQuery = addChromosomeSortAndLimitToQuery(chromosome, query, true);
-        return getVariantStart(minQuery);
+        if (dbName == null) {
+            QueryOptions minQuery = addChromosomeSortAndLimitToQuery(chromosome, query, true);
+            return getVariantStart(minQuery);
+        }
+        return getChromosomeBounds(chromosome, query).getMinStart();
     }
 
     public int getMaxStart(String chromosome, QueryOptions query) {
-        QueryOptions maxQuery = addChromosomeSortAndLimitToQuery(chromosome, query, false);
-        return getVariantStart(maxQuery);
+        if (dbName == null) {
+            QueryOptions maxQuery = addChromosomeSortAndLimitToQuery(chromosome, query, false);
+            return getVariantStart(maxQuery);
+        }
+        return getChromosomeBounds(chromosome, query).getMaxStart();
+    }
+
+    /**
+     * The min and max starts are always used together, so both are fetched from the database when any of them is not
+     * cached
+     */
+    private ChromosomeBounds getChromosomeBounds(String chromosome, QueryOptions query) {
+        TreeMap<String, Object> filters = new TreeMap<>(query);
+        filters.keySet().removeAll(NON_FILTER_OPTIONS);
+        List<String> cacheKey = Arrays.asList(dbName, chromosome, filters.toString());
+
+        return boundsCache.get(cacheKey, key -> {
+            int minStart = getVariantStart(addChromosomeSortAndLimitToQuery(chromosome, query, true));
+            if (minStart == -1) {
+                return new ChromosomeBounds(-1, -1);
+            }
+            int maxStart = getVariantStart(addChromosomeSortAndLimitToQuery(chromosome, query, false));
+            return new ChromosomeBounds(minStart, maxStart);
+        });
+    }
+
+    public static void setBoundsCacheTimeToLive(long timeToLive, TimeUnit timeUnit) {
+        boundsCache.setTimeToLive(timeToLive, timeUnit);
+    }
+
+    /**
+     * Forgets the chromosome bounds of a database. It should be called after loading new variants into it
+     */
+    public static void invalidateBounds(String dbName) {
+        boundsCache.invalidateIf(key -> key.get(0).equals(dbName));
+    }
+
+    public static void invalidateAllBounds() {
+        boundsCache.invalidateAll();
     }
 
     private QueryOptions addChromosomeSortAndLimitToQuery(String chromosome, QueryOptions query, boolean ascending) {
@@ -151,4 +352,24 @@ public class RegionFactory {
         }
     }
 
+    private static class ChromosomeBounds {
+
+        private final int minStart;
+
+        private final int maxStart;
+
+        ChromosomeBounds(int minStart, int maxStart) {
+            this.minStart = minStart;
+            this.maxStart = maxStart;
+        }
+
+        int getMinStart() {
+            return minStart;
+        }
+
+        int getMaxStart() {
+            return maxStart;
+        }
+    }
+
 }
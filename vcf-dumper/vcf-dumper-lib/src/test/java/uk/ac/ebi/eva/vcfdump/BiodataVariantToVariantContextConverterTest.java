@@ -59,7 +59,7 @@ public class BiodataVariantToVariantContextConverterTest {
 
     private static ArrayList<String> s1s6SampleList;
 
-    private static Map<String, Map<String, String>> noSampleNamesConflictSampleNameCorrections = null;
+    private static SampleNameTable noSampleNamesConflictSampleNameCorrections = null;
 
 
     @BeforeClass
@@ -337,6 +337,39 @@ public class BiodataVariantToVariantContextConverterTest {
         checkVariantContext(variantContext, CHR_1, 1000, 1000, "T", "G", variant.getSourceEntries(), false);
     }
 
+    @Test
+    public void oneStudyWithTwoFilesAndEntriesFromNotExportedStudy() {
+        Variant variant = new Variant(CHR_1, 1000, 1000, "T", "G");
+
+        VariantSource source1 = new VariantSource("testFile1", "file_1", "study_1", "testStudy1");
+        source1.setSamples(Arrays.asList("SX_1", "SX_2"));
+        VariantSourceEntry file1Entry = new VariantSourceEntry("file_1", "study_1");
+        addGenotype(file1Entry, "SX_1", "0|0");
+        addGenotype(file1Entry, "SX_2", "0|1");
+        variant.addSourceEntry(file1Entry);
+
+        VariantSource source2 = new VariantSource("testFile2", "file_2", "study_1", "testStudy1");
+        source2.setSamples(Arrays.asList("SY_1", "SY_2", "SY_3"));
+        VariantSourceEntry file2Entry = new VariantSourceEntry("file_2", "study_1");
+        addGenotype(file2Entry, "SY_1", "1|1");
+        addGenotype(file2Entry, "SY_2", "1|0");
+        addGenotype(file2Entry, "SY_3", "0|0");
+        variant.addSourceEntry(file2Entry);
+
+        VariantSourceEntry notExportedStudyEntry = new VariantSourceEntry("file_3", "study_2");
+        addGenotype(notExportedStudyEntry, "SZ_1", "1|1");
+        variant.addSourceEntry(notExportedStudyEntry);
+
+        BiodataVariantToVariantContextConverter variantConverter = new BiodataVariantToVariantContextConverter(
+                Arrays.asList(source1, source2), noSampleNamesConflictSampleNameCorrections);
+        VariantContext variantContext = variantConverter.transform(variant);
+
+        // every sample of the exported study is converted once, and the samples from other studies are ignored
+        assertEquals(5, variantContext.getGenotypes().size());
+        assertEquals(new HashSet<>(Arrays.asList("SX_1", "SX_2", "SY_1", "SY_2", "SY_3")),
+                     variantContext.getSampleNames());
+    }
+
     @Test
     public void twoStudiesConflictingNamesSingleVariant() {
         // create test variant, with two studies and samples with not conflicting names
@@ -354,23 +387,6 @@ public class BiodataVariantToVariantContextConverterTest {
         String sampleX5 = "SX_5";
         String sampleX6 = "SX_6";
 
-        // sample name corrections map (usually created by VariantExporter)
-        Map<String, Map<String, String>> sampleNamesCorrections = new HashMap<>();
-        Map<String, String> file1SampleNameCorrections = new HashMap<>();
-        file1SampleNameCorrections.put(sampleX1, file1 + "_" + sampleX1);
-        file1SampleNameCorrections.put(sampleX2, file1 + "_" + sampleX2);
-        file1SampleNameCorrections.put(sampleX3, file1 + "_" + sampleX3);
-        file1SampleNameCorrections.put(sampleX4, file1 + "_" + sampleX4);
-        sampleNamesCorrections.put(file1, file1SampleNameCorrections);
-        Map<String, String> file2SampleNameCorrections = new HashMap<>();
-        file2SampleNameCorrections.put(sampleX1, file2 + "_" + sampleX1);
-        file2SampleNameCorrections.put(sampleX2, file2 + "_" + sampleX2);
-        file2SampleNameCorrections.put(sampleX3, file2 + "_" + sampleX3);
-        file2SampleNameCorrections.put(sampleX4, file2 + "_" + sampleX4);
-        file2SampleNameCorrections.put(sampleX5, file2 + "_" + sampleX5);
-        file2SampleNameCorrections.put(sampleX6, file2 + "_" + sampleX6);
-        sampleNamesCorrections.put(file2, file2SampleNameCorrections);
-
         // variant sources
         VariantSource source1 = new VariantSource("testFile1", file1, study1, "testStudy1");
         source1.setSamples(Arrays.asList(sampleX1, sampleX2, sampleX3, sampleX4));
@@ -391,6 +407,9 @@ public class BiodataVariantToVariantContextConverterTest {
         addGenotype(source2Entry, sampleX6, "1|0");
         variant.addSourceEntry(source2Entry);
 
+        // sample name corrections (usually created by VariantExporter)
+        SampleNameTable sampleNamesCorrections = SampleNameTable.prefixingFileIds(Arrays.asList(source1, source2));
+
         // transform variant
         BiodataVariantToVariantContextConverter variantConverter = new BiodataVariantToVariantContextConverter(
                 Arrays.asList(source1, source2), sampleNamesCorrections);
@@ -505,12 +524,70 @@ public class BiodataVariantToVariantContextConverterTest {
         assertNull(csq);
     }
 
+    @Test
+    public void csqAnnotationNotKeptForNextVariant() {
+        // create variants
+        VariantSource variantSource = createTestVariantSource(STUDY_1);
+        String annotatedVariantLine = String.join(
+                "\t", CHR_1, "1000", "id", "C", "A", "100", "PASS", ".", "GT", "0|0", "0|0", "0|1", "1|1", "1|1", "0|1");
+        Variant annotatedVariant = variantFactory.create(variantSource, annotatedVariantLine).get(0);
+        annotatedVariant.getAnnotation().setAlternativeAllele("A");
+        List<String> soNames = new ArrayList<>(Arrays.asList("feature_elongation"));
+        ConsequenceType consequenceType = new ConsequenceType("gene", "ensembleGeneId", "EnsembleTransId", "strand",
+                                                              "bioType", 10, 10, 10, "aaChange", "codon",
+                                                              new ArrayList<>(), soNames);
+        annotatedVariant.getAnnotation().setConsequenceTypes(Collections.singletonList(consequenceType));
+        String notAnnotatedVariantLine = String.join(
+                "\t", CHR_1, "2000", "id", "G", "T", "100", "PASS", ".", "GT", "0|0", "0|0", "0|1", "1|1", "1|1", "0|1");
+        Variant notAnnotatedVariant = variantFactory.create(variantSource, notAnnotatedVariantLine).get(0);
+
+        // export both variants with the same converter
+        BiodataVariantToVariantContextConverter variantConverter =
+                new BiodataVariantToVariantContextConverter(Collections.singletonList(variantSource),
+                                                            noSampleNamesConflictSampleNameCorrections);
+        VariantContext annotatedVariantContext = variantConverter.transform(annotatedVariant);
+        VariantContext notAnnotatedVariantContext = variantConverter.transform(notAnnotatedVariant);
+
+        // the CSQ of the first variant is not added to the second one
+        assertEquals("A|feature_elongation|gene|ensembleGeneId|EnsembleTransId|bioType|10|10",
+                     annotatedVariantContext.getCommonInfo().getAttribute("CSQ"));
+        assertNull(notAnnotatedVariantContext.getCommonInfo().getAttribute("CSQ"));
+    }
+
     private void addGenotype(VariantSourceEntry sourceEntry, String sampleName, String genotype) {
         Map<String, String> sampleData = new HashMap<>();
         sampleData.put("GT", genotype);
         sourceEntry.addSampleData(sampleName, sampleData);
     }
 
+    @Test
+    public void parseGenotypes() {
+        Allele reference = Allele.create("C", true);
+        Allele alternate = Allele.create("A");
+        Allele[] variantAlleles = {reference, alternate, Allele.NO_CALL};
+
+        BiodataVariantToVariantContextConverter.ParsedGenotype phased =
+                BiodataVariantToVariantContextConverter.ParsedGenotype.parse("0|1");
+        assertTrue(phased.isPhased());
+        assertEquals(Arrays.asList(reference, alternate), phased.getAlleles(variantAlleles));
+
+        BiodataVariantToVariantContextConverter.ParsedGenotype missing =
+                BiodataVariantToVariantContextConverter.ParsedGenotype.parse("./.");
+        assertFalse(missing.isPhased());
+        assertEquals(Arrays.asList(Allele.NO_CALL, Allele.NO_CALL), missing.getAlleles(variantAlleles));
+
+        // alleles from other alternates of a multiallelic site are no calls
+        assertEquals(Arrays.asList(alternate, Allele.NO_CALL),
+                     BiodataVariantToVariantContextConverter.ParsedGenotype.parse("1/3").getAlleles(variantAlleles));
+        assertEquals(Collections.singletonList(alternate),
+                     BiodataVariantToVariantContextConverter.ParsedGenotype.parse("1").getAlleles(variantAlleles));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseMalformedGenotype() {
+        BiodataVariantToVariantContextConverter.ParsedGenotype.parse("0/");
+    }
+
     private void checkVariantContext(VariantContext variantContext, String chromosome, int start, int end, String ref,
                                      String alt,
                                      Map<String, VariantSourceEntry> sourceEntries, boolean sampleNameConflicts) {
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump;
+
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VariantContextSortingBufferTest {
+
+    private List<VariantContext> consumedVariants;
+
+    @Before
+    public void setUp() {
+        consumedVariants = new ArrayList<>();
+    }
+
+    @Test
+    public void sortedInputIsPassedToConsumerWithoutWaitingForFlush() {
+        VariantContextSortingBuffer buffer = new VariantContextSortingBuffer(true, consumedVariants::add);
+
+        buffer.add(100, snv(100));
+        buffer.add(200, snv(200));
+        buffer.add(300, snv(300));
+
+        // only the last variant can still be preceded by a variant added later
+        assertEquals(Arrays.asList(100, 200), getStarts(consumedVariants));
+        assertEquals(1, buffer.size());
+
+        buffer.flush();
+        assertEquals(Arrays.asList(100, 200, 300), getStarts(consumedVariants));
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void indelWithContextNucleotideIsWrittenBeforePreviousVariantInCursor() {
+        VariantContextSortingBuffer buffer = new VariantContextSortingBuffer(true, consumedVariants::add);
+
+        // SNV in 101, then an insertion in 101 that has been moved to 100 to add the context nucleotide
+        buffer.add(101, snv(101));
+        buffer.add(101, insertion(100));
+        buffer.add(150, snv(150));
+        buffer.flush();
+
+        assertEquals(Arrays.asList(100, 101, 150), getStarts(consumedVariants));
+    }
+
+    @Test
+    public void unsortedInputIsKeptUntilFlush() {
+        VariantContextSortingBuffer buffer = new VariantContextSortingBuffer(false, consumedVariants::add);
+
+        buffer.add(300, snv(300));
+        buffer.add(100, snv(100));
+        buffer.add(200, snv(200));
+        assertTrue(consumedVariants.isEmpty());
+
+        buffer.flush();
+        assertEquals(Arrays.asList(100, 200, 300), getStarts(consumedVariants));
+    }
+
+    @Test
+    public void variantsWithSameStartKeepInsertionOrder() {
+        VariantContextSortingBuffer buffer = new VariantContextSortingBuffer(false, consumedVariants::add);
+
+        VariantContext first = snv(100, "A", "C");
+        VariantContext second = snv(100, "A", "G");
+        VariantContext third = snv(100, "A", "T");
+        buffer.add(100, first);
+        buffer.add(100, second);
+        buffer.add(100, third);
+        buffer.flush();
+
+        assertEquals(Arrays.asList(first, second, third), consumedVariants);
+    }
+
+    private static VariantContext snv(int start) {
+        return snv(start, "A", "C");
+    }
+
+    private static VariantContext snv(int start, String reference, String alternate) {
+        return new VariantContextBuilder().chr("1").start(start).stop(start).alleles(reference, alternate).make();
+    }
+
+    private static VariantContext insertion(int start) {
+        return new VariantContextBuilder().chr("1").start(start).stop(start).alleles("A", "AT").make();
+    }
+
+    private static List<Integer> getStarts(List<VariantContext> variants) {
+        return variants.stream().map(VariantContext::getStart).collect(Collectors.toList());
+    }
+}
@@ -15,6 +15,9 @@
  */
 package uk.ac.ebi.eva.vcfdump;
 
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFFileReader;
 import org.junit.AfterClass;
@@ -34,6 +37,8 @@ import org.opencb.opencga.storage.core.variant.adaptors.VariantDBIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
+import uk.ac.ebi.eva.vcfdump.mongoutils.VariantDBAdaptorRegistry;
 import uk.ac.ebi.eva.vcfdump.rules.TestDBRule;
 
 import javax.ws.rs.core.MultivaluedHashMap;
@@ -43,8 +48,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -53,11 +64,16 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPInputStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class VariantExporterControllerTest {
 
@@ -134,7 +150,8 @@ public class VariantExporterControllerTest {
         assertEquals(3, query.size());
         assertEquals(studies, query.getAsStringList(VariantDBAdaptor.STUDIES));
         assertEquals(files, query.getAsStringList(VariantDBAdaptor.FILES));
-        assertEquals(Arrays.asList("sourceEntries.cohortStats"), query.getAsStringList("exclude"));
+        assertEquals(Arrays.asList("ids", "hgvs", "sourceEntries.cohortStats"),
+                     query.getAsStringList("exclude"));
 
         // some not accepted parameters
         MultivaluedMap<String, String> nonAcceptedParameters = new MultivaluedHashMap<>();
@@ -145,7 +162,8 @@ public class VariantExporterControllerTest {
         assertEquals(3, query.size());
         assertEquals(studies, query.getAsStringList(VariantDBAdaptor.STUDIES));
         assertEquals(files, query.getAsStringList(VariantDBAdaptor.FILES));
-        assertEquals(Arrays.asList("sourceEntries.cohortStats"), query.getAsStringList("exclude"));
+        assertEquals(Arrays.asList("ids", "hgvs", "sourceEntries.cohortStats"),
+                     query.getAsStringList("exclude"));
 
 
         // some accepted parameters
@@ -163,7 +181,8 @@ public class VariantExporterControllerTest {
         assertEquals(files, query.getAsStringList(VariantDBAdaptor.FILES));
         assertEquals(Arrays.asList(region1, region2), query.getAsStringList(VariantDBAdaptor.REGION));
         assertEquals(id, query.getString(VariantDBAdaptor.ID));
-        assertEquals(Arrays.asList("annotation", "sourceEntries.cohortStats"), query.getAsStringList("exclude"));
+        assertEquals(Arrays.asList("annotation", "ids", "hgvs", "sourceEntries.cohortStats"),
+                     query.getAsStringList("exclude"));
 
 
         // mixed accepted and non accepted parameters
@@ -181,10 +200,41 @@ public class VariantExporterControllerTest {
         assertEquals(files, query.getAsStringList(VariantDBAdaptor.FILES));
         assertEquals(Arrays.asList(region1, region2), query.getAsStringList(VariantDBAdaptor.REGION));
         assertEquals(id, query.getString(VariantDBAdaptor.ID));
-        assertEquals(Arrays.asList("annotation", "sourceEntries.cohortStats"), query.getAsStringList("exclude"));
+        assertEquals(Arrays.asList("annotation", "ids", "hgvs", "sourceEntries.cohortStats"),
+                     query.getAsStringList("exclude"));
 
     }
 
+    @Test
+    public void testQueryDoesNotFetchUnusedFields() throws Exception {
+        List<String> studies = Collections.singletonList("7");
+
+        // the test variants have identifiers and HGVS names, so the checks below are not trivially true
+        VariantDBIterator allFieldsIterator = variantDBAdaptor.iterator(getQuery(studies));
+        boolean someVariantWithIds = false;
+        boolean someVariantWithHgvs = false;
+        while (allFieldsIterator.hasNext()) {
+            Variant variant = allFieldsIterator.next();
+            someVariantWithIds |= variant.getIds() != null && !variant.getIds().isEmpty();
+            someVariantWithHgvs |= variant.getHgvs() != null && !variant.getHgvs().isEmpty();
+        }
+        assertTrue(someVariantWithIds);
+        assertTrue(someVariantWithHgvs);
+
+        VariantExporterController controller = new VariantExporterController(
+                TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB), studies, Collections.emptyList(), OUTPUT_DIR,
+                evaTestProperties, emptyFilter);
+        VariantDBIterator iterator = variantDBAdaptor.iterator(controller.getQuery(emptyFilter));
+        int fetchedVariants = 0;
+        while (iterator.hasNext()) {
+            Variant variant = iterator.next();
+            assertTrue(variant.getIds() == null || variant.getIds().isEmpty());
+            assertTrue(variant.getHgvs() == null || variant.getHgvs().isEmpty());
+            fetchedVariants++;
+        }
+        assertTrue(fetchedVariants > 0);
+    }
+
     @Test
     public void testVcfExportOneStudy()
             throws ClassNotFoundException, URISyntaxException, InstantiationException, IllegalAccessException,
@@ -232,6 +282,403 @@ public class VariantExporterControllerTest {
         checkOrderInOutputFile(outputFile);
     }
 
+    @Test
+    public void testVcfExportSeveralStudiesExportingRegionsInParallel() throws Exception {
+        String study7 = "7";
+        String study8 = "8";
+        List<String> studies = Arrays.asList(study7, study8);
+
+        VariantExporterController controller = new VariantExporterController(TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB),
+                                                                             studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, evaTestProperties,
+                                                                             emptyFilter);
+        controller.setRegionThreads(4);
+        controller.run();
+
+        ////////// checks
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        assertEquals(0, controller.getFailedVariants());   // test file should not have failed variants
+        QueryOptions query = getQuery(Arrays.asList(study7, study8));
+        VariantDBIterator iterator = variantDBAdaptor.iterator(query);
+        assertEqualLinesFilesAndDB(outputFile, iterator);
+        checkOrderInOutputFile(outputFile);
+    }
+
+    @Test
+    public void testVcfExportWithInjectedRegionExecutor() throws Exception {
+        String study7 = "7";
+        String study8 = "8";
+        List<String> studies = Arrays.asList(study7, study8);
+        // one thread, so the regions of every chromosome and both exports run on the same long-lived thread
+        ExecutorService regionExecutor = Executors.newSingleThreadExecutor();
+        try {
+            for (int export = 0; export < 2; export++) {
+                VariantExporterController controller = new VariantExporterController(
+                        TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB), studies, Collections.emptyList(),
+                        OUTPUT_DIR, evaTestProperties, emptyFilter);
+                controller.setRegionThreads(4);
+                controller.setRegionExecutor(regionExecutor);
+                controller.run();
+
+                ////////// checks
+                String outputFile = controller.getOuputFilePath();
+                testOutputFiles.add(outputFile);
+                assertEquals(0, controller.getFailedVariants());   // test file should not have failed variants
+                QueryOptions query = getQuery(Arrays.asList(study7, study8));
+                VariantDBIterator iterator = variantDBAdaptor.iterator(query);
+                assertEqualLinesFilesAndDB(outputFile, iterator);
+                checkOrderInOutputFile(outputFile);
+                // the executor is owned by the caller, so the export doesn't shut it down
+                assertFalse(regionExecutor.isShutdown());
+            }
+        } finally {
+            regionExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testVcfExportSeveralStudiesScanningChromosomes() throws Exception {
+        String study7 = "7";
+        String study8 = "8";
+        List<String> studies = Arrays.asList(study7, study8);
+
+        VariantExporterController controller = new VariantExporterController(TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB),
+                                                                             studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, evaTestProperties,
+                                                                             emptyFilter);
+        controller.setChromosomeScan(true);
+        controller.setChromosomeScanBatchSize(10);
+        controller.run();
+
+        ////////// checks
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        assertEquals(0, controller.getFailedVariants());   // test file should not have failed variants
+        QueryOptions query = getQuery(Arrays.asList(study7, study8));
+        VariantDBIterator iterator = variantDBAdaptor.iterator(query);
+        assertEqualLinesFilesAndDB(outputFile, iterator);
+        checkOrderInOutputFile(outputFile);
+    }
+
+    @Test
+    public void testVcfExportCompressingInParallel() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+
+        VariantExporterController controller = new VariantExporterController(TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB),
+                                                                             studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, evaTestProperties,
+                                                                             emptyFilter);
+        controller.setCompressionThreads(4);
+        controller.run();
+
+        ////////// checks
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        assertEquals(0, controller.getFailedVariants());   // test file should not have failed variants
+        assertEquals(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK,
+                     BlockCompressedInputStream.checkTermination(new File(outputFile)));
+        QueryOptions query = getQuery(studies);
+        VariantDBIterator iterator = variantDBAdaptor.iterator(query);
+        assertEqualLinesFilesAndDB(outputFile, iterator);
+        checkOrderInOutputFile(outputFile);
+    }
+
+    @Test
+    public void testVcfExportRegionByRegion() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        String outputFile = OUTPUT_DIR + "regionByRegionExport.vcf.gz";
+        testOutputFiles.add(outputFile);
+
+        // the writer closes the stream when the export finishes
+        OutputStream outputStream = new BlockCompressedOutputStream(outputFile);
+        try (VariantExporterController controller = new VariantExporterController(
+                TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB), studies, outputStream, evaTestProperties,
+                emptyFilter)) {
+            RegionByRegionExport export = controller.startRegionByRegionExport(true);
+            int exportedRegions = 0;
+            while (export.exportNextRegion()) {
+                exportedRegions++;
+            }
+            assertTrue(export.isFinished());
+            assertTrue(exportedRegions > 1);
+            assertEquals(0, controller.getFailedVariants());
+        }
+
+        ////////// checks
+        QueryOptions query = getQuery(studies);
+        VariantDBIterator iterator = variantDBAdaptor.iterator(query);
+        assertEqualLinesFilesAndDB(outputFile, iterator);
+        checkOrderInOutputFile(outputFile);
+    }
+
+    @Test
+    public void testVcfExportRecordsMetrics() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        String dbName = TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB);
+        ExportMetrics metrics = ExportMetrics.forDatabase(dbName);
+        long convertedVariantsBefore = metrics.getConvertedVariants();
+        long regionQueriesBefore = metrics.getRegionQueries();
+        long headerBuildsBefore = metrics.getHeaderBuilds();
+        long writtenBytesBefore = metrics.getWrittenBytes();
+
+        VariantExporterController controller = new VariantExporterController(dbName, studies,
+                                                                             Collections.emptyList(), OUTPUT_DIR,
+                                                                             evaTestProperties, emptyFilter);
+        controller.run();
+
+        ////////// checks
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        assertEquals(getVariantsFromOutputFile(outputFile).size(),
+                     metrics.getConvertedVariants() - convertedVariantsBefore);
+        assertTrue(metrics.getRegionQueries() > regionQueriesBefore);
+        assertEquals(1, metrics.getHeaderBuilds() - headerBuildsBefore);
+        assertEquals(Files.size(Paths.get(outputFile)), metrics.getWrittenBytes() - writtenBytesBefore);
+    }
+
+    @Test
+    public void testVcfExportSitesOnly() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+
+        VariantExporterController controller = new VariantExporterController(TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB),
+                                                                             studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, evaTestProperties,
+                                                                             emptyFilter);
+        controller.setSitesOnly(true);
+        controller.run();
+
+        ////////// checks
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        assertEquals(0, controller.getFailedVariants());
+        try (VCFFileReader vcfReader = new VCFFileReader(new File(outputFile), false)) {
+            assertFalse(vcfReader.getFileHeader().hasGenotypingData());
+            for (VariantContext variant : vcfReader) {
+                assertFalse(variant.hasGenotypes());
+            }
+        }
+        QueryOptions query = getQuery(studies);
+        VariantDBIterator iterator = variantDBAdaptor.iterator(query);
+        assertEqualLinesFilesAndDB(outputFile, iterator);
+        checkOrderInOutputFile(outputFile);
+    }
+
+    @Test
+    public void testVcfExportSomeSamples() throws Exception {
+        List<String> studies = Collections.singletonList("7");
+        List<String> samples = Arrays.asList("HG00097", "HG00096");
+
+        VariantExporterController controller = new VariantExporterController(TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB),
+                                                                             studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, evaTestProperties,
+                                                                             emptyFilter);
+        controller.setSamples(samples);
+        controller.run();
+
+        ////////// checks
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        assertEquals(0, controller.getFailedVariants());
+        try (VCFFileReader vcfReader = new VCFFileReader(new File(outputFile), false)) {
+            assertEquals(new HashSet<>(samples), new HashSet<>(vcfReader.getFileHeader().getGenotypeSamples()));
+            for (VariantContext variant : vcfReader) {
+                assertEquals(new HashSet<>(samples), variant.getSampleNames());
+            }
+        }
+        QueryOptions query = getQuery(studies);
+        VariantDBIterator iterator = variantDBAdaptor.iterator(query);
+        assertEqualLinesFilesAndDB(outputFile, iterator);
+        checkOrderInOutputFile(outputFile);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testVcfExportMissingSampleFails() throws Exception {
+        VariantExporterController controller = new VariantExporterController(TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB),
+                                                                             Collections.singletonList("7"),
+                                                                             Collections.emptyList(), OUTPUT_DIR,
+                                                                             evaTestProperties, emptyFilter);
+        controller.setSamples(Arrays.asList("HG00096", "NOT_A_SAMPLE"));
+    }
+
+    @Test
+    public void testVcfExportInShards() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+
+        VariantExporterController controller = new VariantExporterController(TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB),
+                                                                             studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, evaTestProperties,
+                                                                             emptyFilter);
+        controller.setShardThreads(2);
+        controller.setIndexOutput(true);
+        controller.run();
+
+        ////////// checks
+        String outputFile = controller.getOuputFilePath();
+        String manifestFile = controller.getManifestFilePath();
+        testOutputFiles.add(outputFile);
+        testOutputFiles.add(outputFile + ".tbi");
+        testOutputFiles.add(manifestFile);
+        assertEquals(0, controller.getFailedVariants());   // test file should not have failed variants
+        assertTrue(new File(outputFile + ".tbi").exists());
+        QueryOptions query = getQuery(studies);
+        VariantDBIterator iterator = variantDBAdaptor.iterator(query);
+        assertEqualLinesFilesAndDB(outputFile, iterator);
+        checkOrderInOutputFile(outputFile);
+
+        // the part files are removed, and the manifest has the variants of every chromosome
+        File[] partFiles = new File(OUTPUT_DIR).listFiles(
+                (directory, name) -> name.startsWith(new File(outputFile).getName().replace(".vcf.gz", ".part")));
+        assertEquals(0, partFiles.length);
+        List<String> manifestLines = Files.readAllLines(Paths.get(manifestFile));
+        assertEquals("#chromosome\tvariants\tfailed_variants\toffset\tlength", manifestLines.get(0));
+        assertTrue(manifestLines.size() > 2);
+        int variantsInManifest = 0;
+        for (String manifestLine : manifestLines.subList(1, manifestLines.size())) {
+            variantsInManifest += Integer.parseInt(manifestLine.split("\t")[1]);
+        }
+        assertEquals(getVariantsFromOutputFile(outputFile).size(), variantsInManifest);
+    }
+
+    @Test
+    public void testVcfExportWithFailedShard() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        String dbName = TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB);
+
+        // without checkpoint, the incomplete output is deleted
+        VariantExporterController controller = createControllerFailingInChromosome(dbName, studies, "22");
+        controller.setShardThreads(2);
+        runExpectingFailure(controller);
+        assertFalse(Files.exists(Paths.get(controller.getOuputFilePath())));
+
+        // with checkpoint, the incomplete output is kept to be resumed, but it doesn't have the BGZF terminator block
+        VariantExporterController checkpointedController = createControllerFailingInChromosome(dbName, studies, "22");
+        checkpointedController.setShardThreads(2);
+        checkpointedController.setCheckpointing(true);
+        runExpectingFailure(checkpointedController);
+        String outputFile = checkpointedController.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        testOutputFiles.add(checkpointedController.getCheckpointFilePath().toString());
+        assertTrue(Files.exists(Paths.get(outputFile)));
+        assertTrue(Files.exists(checkpointedController.getCheckpointFilePath()));
+        assertNotEquals(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK,
+                        BlockCompressedInputStream.checkTermination(new File(outputFile)));
+        assertFalse(Files.exists(Paths.get(checkpointedController.getManifestFilePath())));
+    }
+
+    private VariantExporterController createControllerFailingInChromosome(String dbName, List<String> studies,
+                                                                          String failingChromosome)
+            throws Exception {
+        return new VariantExporterController(dbName, studies, Collections.emptyList(), OUTPUT_DIR, evaTestProperties,
+                                             emptyFilter) {
+            @Override
+            ShardExport exportShard(String chromosome, Path partFilePath) throws Exception {
+                if (chromosome.equals(failingChromosome)) {
+                    throw new IOException("Test failure exporting chromosome " + chromosome);
+                }
+                return super.exportShard(chromosome, partFilePath);
+            }
+        };
+    }
+
+    private void runExpectingFailure(VariantExporterController controller) {
+        try {
+            controller.run();
+            fail("The export should have failed");
+        } catch (RuntimeException e) {
+            assertEquals("Test failure exporting chromosome 22", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testVcfExportResumedFromCheckpoint() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+        String dbName = TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB);
+
+        VariantExporterController controller = new VariantExporterController(dbName, studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, evaTestProperties,
+                                                                             emptyFilter);
+        controller.setCheckpointing(true);
+        controller.run();
+        String outputFile = controller.getOuputFilePath();
+        testOutputFiles.add(outputFile);
+        testOutputFiles.add(controller.getManifestFilePath());
+        assertFalse(Files.exists(controller.getCheckpointFilePath()));
+        byte[] completeOutput = Files.readAllBytes(Paths.get(outputFile));
+
+        // simulate an export that failed while appending the second chromosome, after the first one was checkpointed
+        List<String> manifestLines = Files.readAllLines(Paths.get(controller.getManifestFilePath()));
+        assertTrue(manifestLines.size() > 2);
+        String[] firstChromosome = manifestLines.get(1).split("\t");
+        long firstChromosomeEnd = Long.parseLong(firstChromosome[3]) + Long.parseLong(firstChromosome[4]);
+        long secondChromosomeLength = Long.parseLong(manifestLines.get(2).split("\t")[4]);
+        try (FileChannel outputChannel = FileChannel.open(Paths.get(outputFile), StandardOpenOption.WRITE)) {
+            outputChannel.truncate(firstChromosomeEnd + secondChromosomeLength / 2);
+        }
+
+        VariantExporterController resumedController = new VariantExporterController(dbName, studies,
+                                                                                    Collections.emptyList(),
+                                                                                    OUTPUT_DIR, evaTestProperties,
+                                                                                    emptyFilter);
+        ExportCheckpoint checkpoint = resumedController.createCheckpoint(new File(outputFile).getName());
+        checkpoint.saveHeader(Long.parseLong(firstChromosome[3]));
+        checkpoint.saveChromosome(manifestLines.get(1), firstChromosomeEnd);
+        testOutputFiles.add(resumedController.getCheckpointFilePath().toString());
+        resumedController.setResume(true);
+        resumedController.run();
+
+        ////////// checks
+        assertEquals(outputFile, resumedController.getOuputFilePath());
+        assertEquals(0, resumedController.getFailedVariants());
+        assertFalse(Files.exists(resumedController.getCheckpointFilePath()));
+        assertArrayEquals(completeOutput, Files.readAllBytes(Paths.get(outputFile)));
+        assertEquals(manifestLines, Files.readAllLines(Paths.get(resumedController.getManifestFilePath())));
+    }
+
+    @Test
+    public void testVcfExportWithTabixIndex() throws Exception {
+        List<String> studies = Arrays.asList("7", "8");
+
+        VariantExporterController controller = new VariantExporterController(TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB),
+                                                                             studies, Collections.emptyList(),
+                                                                             OUTPUT_DIR, evaTestProperties,
+                                                                             emptyFilter);
+        controller.setIndexOutput(true);
+        controller.run();
+
+        ////////// checks
+        String outputFile = controller.getOuputFilePath();
+        File indexFile = new File(outputFile + ".tbi");
+        testOutputFiles.add(outputFile);
+        testOutputFiles.add(indexFile.getPath());
+        assertEquals(0, controller.getFailedVariants());   // test file should not have failed variants
+        assertTrue(indexFile.exists());
+
+        // a region query using the index returns the same variants that are found reading the whole file
+        Region region = new Region("20", 60000, 70000);
+        int variantsInRegion = 0;
+        int variantsFromIndexedQuery = 0;
+        try (VCFFileReader vcfReader = new VCFFileReader(new File(outputFile), true)) {
+            for (VariantContext variant : vcfReader) {
+                if (variant.getContig().equals(region.getChromosome()) && variant.getStart() <= region.getEnd()
+                        && variant.getEnd() >= region.getStart()) {
+                    variantsInRegion++;
+                }
+            }
+            CloseableIterator<VariantContext> regionIterator = vcfReader.query(region.getChromosome(),
+                                                                               (int) region.getStart(),
+                                                                               (int) region.getEnd());
+            while (regionIterator.hasNext()) {
+                regionIterator.next();
+                variantsFromIndexedQuery++;
+            }
+            regionIterator.close();
+        }
+        assertTrue(variantsInRegion > 0);
+        assertEquals(variantsInRegion, variantsFromIndexedQuery);
+        checkOrderInOutputFile(outputFile);
+    }
+
     @Test
     public void testVcfExportOneFileFromOneStudyThatHasTwoFiles()
             throws ClassNotFoundException, URISyntaxException, InstantiationException, IllegalAccessException,
@@ -377,6 +824,22 @@ public class VariantExporterControllerTest {
         controller.run();
     }
 
+    @Test
+    public void testMissingDatabaseHasNoMetrics() throws Exception {
+        String dbName = "eva_missing_species";
+        VariantExporterController controller = new VariantExporterController(dbName, Collections.singletonList("7"),
+                                                                             Collections.emptyList(), OUTPUT_DIR,
+                                                                             evaTestProperties, emptyFilter);
+        try {
+            controller.run();
+            fail("The export of a missing database should fail");
+        } catch (IllegalArgumentException e) {
+            assertFalse(ExportMetrics.getAll().containsKey(dbName));
+        } finally {
+            controller.close();
+        }
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void nullDbnameThrowsIllegalArgumentException() throws Exception {
         List<String> studies = Collections.singletonList("8");
@@ -398,6 +861,19 @@ public class VariantExporterControllerTest {
                                       outputDir, evaTestProperties, emptyFilter);
     }
 
+    @Test
+    public void invalidParametersDontAcquireAdaptor() throws Exception {
+        String dbName = TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB);
+        int users = VariantDBAdaptorRegistry.getUsers(dbName);
+        try {
+            new VariantExporterController(dbName, Collections.singletonList("8"), Collections.emptyList(), "",
+                                          evaTestProperties, emptyFilter);
+            fail("An empty output directory should not be accepted");
+        } catch (IllegalArgumentException e) {
+            assertEquals(users, VariantDBAdaptorRegistry.getUsers(dbName));
+        }
+    }
+
     private void assertEqualLinesFilesAndDB(String fileName, VariantDBIterator iterator) throws IOException {
         List<Variant> exportedVariants = getVariantsFromOutputFile(fileName);
 
@@ -44,7 +44,9 @@ import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class VariantExporterTest {
@@ -231,26 +233,31 @@ public class VariantExporterTest {
         assertNull(variantExporter.createNonConflictingSampleNames((Arrays.asList(variantSource2, variantSource3))));
 
         // sutdy 1 and 3 share sample some names
-        Map<String, Map<String, String>> file1And3SampleNameTranslations = variantExporter
+        SampleNameTable file1And3SampleNameTranslations = variantExporter
                 .createNonConflictingSampleNames((Arrays.asList(variantSource, variantSource3)));
-        s1s6SampleList.forEach(sampleName -> file1And3SampleNameTranslations.get(FILE_1).get(sampleName)
-                                                                            .equals(FILE_1 + "_" + sampleName));
-        s2s3SampleList.forEach(sampleName -> file1And3SampleNameTranslations.get(FILE_3).get(sampleName)
-                                                                            .equals(FILE_3 + "_" + sampleName));
+        for (String sampleName : s1s6SampleList) {
+            assertEquals(FILE_1 + "_" + sampleName, file1And3SampleNameTranslations.getOutputName(FILE_1, sampleName));
+        }
+        for (String sampleName : s2s3SampleList) {
+            assertEquals(FILE_3 + "_" + sampleName, file1And3SampleNameTranslations.getOutputName(FILE_3, sampleName));
+        }
 
 
         // sutdy 1 and 3 (but not 2) share sample some names
-        Map<String, Map<String, String>> file1And2And3SampleNameTranslations = variantExporter
+        SampleNameTable file1And2And3SampleNameTranslations = variantExporter
                 .createNonConflictingSampleNames((Arrays.asList(variantSource, variantSource2, variantSource3)));
-        s1s6SampleList
-                .forEach(sampleName -> file1And2And3SampleNameTranslations.get(FILE_1).get(sampleName)
-                                                                          .equals(FILE_1 + "_" + sampleName));
-        c1c6SampleList
-                .forEach(sampleName -> file1And2And3SampleNameTranslations.get(FILE_2).get(sampleName)
-                                                                          .equals(FILE_2 + "_" + sampleName));
-        s2s3SampleList
-                .forEach(sampleName -> file1And2And3SampleNameTranslations.get(FILE_3).get(sampleName)
-                                                                          .equals(FILE_3 + "_" + sampleName));
+        for (String sampleName : s1s6SampleList) {
+            assertEquals(FILE_1 + "_" + sampleName,
+                         file1And2And3SampleNameTranslations.getOutputName(FILE_1, sampleName));
+        }
+        for (String sampleName : c1c6SampleList) {
+            assertEquals(FILE_2 + "_" + sampleName,
+                         file1And2And3SampleNameTranslations.getOutputName(FILE_2, sampleName));
+        }
+        for (String sampleName : s2s3SampleList) {
+            assertEquals(FILE_3 + "_" + sampleName,
+                         file1And2And3SampleNameTranslations.getOutputName(FILE_3, sampleName));
+        }
     }
 
     @Test
@@ -288,6 +295,54 @@ public class VariantExporterTest {
         assertNotNull(header.getFormatHeaderLine("GT"));
     }
 
+    @Test
+    public void mergedVcfHeadersAreCachedByDatabaseAndStudies() throws IOException {
+        String dbName = TestDBRule.getTemporaryDBName(TestDBRule.COW_TEST_DB);
+        List<String> cowStudyIds = Arrays.asList("PRJEB6119", "PRJEB7061");
+        VariantExporter variantExporter = new VariantExporter();
+        List<VariantSource> cowSources = variantExporter.getSources(dbName, cowVariantSourceDBAdaptor, cowStudyIds,
+                                                                    Collections.emptyList());
+        VCFHeader header = variantExporter.getMergedVcfHeader(false);
+
+        // the studies in a different order are the same cache entry
+        VariantExporter otherVariantExporter = new VariantExporter();
+        List<VariantSource> cachedCowSources = otherVariantExporter.getSources(dbName, cowVariantSourceDBAdaptor,
+                                                                               Arrays.asList("PRJEB7061", "PRJEB6119"),
+                                                                               Collections.emptyList());
+        VCFHeader cachedHeader = otherVariantExporter.getMergedVcfHeader(false);
+
+        assertSame(cowSources, cachedCowSources);
+        // every caller gets a copy of the header
+        assertNotSame(header, cachedHeader);
+        assertEquals(header.getMetaDataInInputOrder(), cachedHeader.getMetaDataInInputOrder());
+        assertEquals(header.getGenotypeSamples(), cachedHeader.getGenotypeSamples());
+
+        VariantExporter.invalidateMetadata(dbName);
+        List<VariantSource> reloadedCowSources = new VariantExporter().getSources(dbName, cowVariantSourceDBAdaptor,
+                                                                                  cowStudyIds,
+                                                                                  Collections.emptyList());
+        assertNotSame(cowSources, reloadedCowSources);
+    }
+
+    @Test
+    public void cachedMergedVcfHeaderHasOnlyTheSamplesOfItsStudies() throws IOException {
+        String dbName = TestDBRule.getTemporaryDBName(TestDBRule.COW_TEST_DB);
+        List<String> cowStudyIds = Arrays.asList("PRJEB6119", "PRJEB7061");
+        VariantExporter.invalidateMetadata(dbName);
+        VariantExporter variantExporter = new VariantExporter();
+        // the exporter has the sample names of another study when it caches the cow header
+        variantExporter.getSources(variantSourceDBAdaptor, Collections.singletonList("7"), Collections.emptyList());
+        variantExporter.getSources(dbName, cowVariantSourceDBAdaptor, cowStudyIds, Collections.emptyList());
+        VCFHeader header = variantExporter.getMergedVcfHeader(false);
+
+        VariantExporter.invalidateMetadata(dbName);
+        VariantExporter cowVariantExporter = new VariantExporter();
+        cowVariantExporter.getSources(dbName, cowVariantSourceDBAdaptor, cowStudyIds, Collections.emptyList());
+        VCFHeader cowHeader = cowVariantExporter.getMergedVcfHeader(false);
+
+        assertEquals(cowHeader.getGenotypeSamples(), header.getGenotypeSamples());
+    }
+
     @Test
     public void testExportOneStudy() throws Exception {
         List<String> studies = Collections.singletonList("7");
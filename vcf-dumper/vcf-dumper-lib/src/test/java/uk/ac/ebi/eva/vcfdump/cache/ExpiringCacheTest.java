@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class ExpiringCacheTest {
+
+    private AtomicLong clock;
+
+    private AtomicInteger loads;
+
+    @Before
+    public void setUp() {
+        clock = new AtomicLong(0);
+        loads = new AtomicInteger(0);
+    }
+
+    @Test
+    public void valueIsLoadedOnceUntilItExpires() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, TimeUnit.NANOSECONDS, 10, clock::get);
+
+        assertEquals("a1", cache.get("a", this::load));
+        clock.set(9);
+        assertEquals("a1", cache.get("a", this::load));
+        assertEquals(1, loads.get());
+
+        clock.set(10);
+        assertEquals("a2", cache.get("a", this::load));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void invalidatedKeysAreLoadedAgain() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, TimeUnit.NANOSECONDS, 10, clock::get);
+        cache.get("db1_chr", this::load);
+        cache.get("db2_chr", this::load);
+
+        cache.invalidateIf(key -> key.startsWith("db1"));
+
+        assertEquals(1, cache.size());
+        assertEquals("db1_chr3", cache.get("db1_chr", this::load));
+        assertEquals("db2_chr2", cache.get("db2_chr", this::load));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvictedWhenCacheIsFull() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, TimeUnit.NANOSECONDS, 2, clock::get);
+        cache.get("a", this::load);
+        cache.get("b", this::load);
+        cache.get("a", this::load);
+
+        cache.get("c", this::load);
+
+        assertEquals(2, cache.size());
+        assertEquals("a1", cache.get("a", this::load));
+        assertEquals("b4", cache.get("b", this::load));
+    }
+
+    @Test
+    public void valueLoadedWhileInvalidatedIsNotCached() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, TimeUnit.NANOSECONDS, 10, clock::get);
+
+        // the key is invalidated by another thread after the loader has read the old data
+        assertEquals("a1", cache.get("a", key -> {
+            String staleValue = load(key);
+            cache.invalidate(key);
+            return staleValue;
+        }));
+
+        assertEquals(0, cache.size());
+        assertEquals("a2", cache.get("a", this::load));
+        assertEquals("a2", cache.get("a", this::load));
+    }
+
+    @Test
+    public void invalidationOfOtherKeysDoesNotDiscardLoadedValue() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, TimeUnit.NANOSECONDS, 10, clock::get);
+
+        assertEquals("db1_chr1", cache.get("db1_chr", key -> {
+            cache.invalidateIf(otherKey -> otherKey.startsWith("db2"));
+            return load(key);
+        }));
+
+        assertEquals(1, cache.size());
+        assertEquals("db1_chr1", cache.get("db1_chr", this::load));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void valueLoadedWhileEveryKeyIsInvalidatedIsNotCached() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, TimeUnit.NANOSECONDS, 10, clock::get);
+
+        assertEquals("a1", cache.get("a", key -> {
+            String staleValue = load(key);
+            cache.invalidateAll();
+            return staleValue;
+        }));
+
+        assertEquals(0, cache.size());
+    }
+
+    private String load(String key) {
+        return key + loads.incrementAndGet();
+    }
+}
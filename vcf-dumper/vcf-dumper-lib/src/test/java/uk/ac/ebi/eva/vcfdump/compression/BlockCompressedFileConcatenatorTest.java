@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.compression;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BlockCompressedFileConcatenatorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void filesAreConcatenatedWithOneTerminatorBlock() throws IOException {
+        File first = createBlockCompressedFile("first.gz", "##fileformat=VCFv4.2\n");
+        File second = createBlockCompressedFile("second.gz", "1\t100\t.\tA\tG\t.\t.\t.\n");
+        File output = temporaryFolder.newFile("output.gz");
+
+        try (BlockCompressedFileConcatenator concatenator = new BlockCompressedFileConcatenator(output.toPath())) {
+            long firstLength = concatenator.append(first.toPath());
+            assertEquals(first.length() - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length, firstLength);
+            assertEquals(firstLength, concatenator.getPosition());
+            concatenator.append(second.toPath());
+        }
+
+        assertEquals(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK,
+                     BlockCompressedInputStream.checkTermination(output));
+        assertEquals(first.length() + second.length() - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length,
+                     output.length());
+        byte[] expected = "##fileformat=VCFv4.2\n1\t100\t.\tA\tG\t.\t.\t.\n".getBytes(StandardCharsets.US_ASCII);
+        assertArrayEquals(expected, readAll(new BlockCompressedInputStream(output)));
+    }
+
+    @Test
+    public void abortedConcatenationHasNoTerminatorBlock() throws IOException {
+        File first = createBlockCompressedFile("first.gz", "##fileformat=VCFv4.2\n");
+        File output = temporaryFolder.newFile("output.gz");
+
+        try (BlockCompressedFileConcatenator concatenator = new BlockCompressedFileConcatenator(output.toPath())) {
+            concatenator.append(first.toPath());
+            concatenator.abort();
+        }
+
+        assertEquals(first.length() - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length, output.length());
+        assertEquals(BlockCompressedInputStream.FileTermination.HAS_HEALTHY_LAST_BLOCK,
+                     BlockCompressedInputStream.checkTermination(output));
+    }
+
+    @Test(expected = IOException.class)
+    public void uncompressedFilesAreRejected() throws IOException {
+        File uncompressed = temporaryFolder.newFile("uncompressed.vcf");
+        Files.write(uncompressed.toPath(), "##fileformat=VCFv4.2\n".getBytes(StandardCharsets.US_ASCII));
+
+        try (BlockCompressedFileConcatenator concatenator = new BlockCompressedFileConcatenator(
+                temporaryFolder.newFile("output.gz").toPath())) {
+            concatenator.append(uncompressed.toPath());
+        }
+    }
+
+    private File createBlockCompressedFile(String name, String content) throws IOException {
+        File file = temporaryFolder.newFile(name);
+        try (OutputStream output = new BlockCompressedOutputStream(file)) {
+            output.write(content.getBytes(StandardCharsets.US_ASCII));
+        }
+        return file;
+    }
+
+    private byte[] readAll(InputStream input) throws IOException {
+        try (InputStream closingInput = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = closingInput.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+}
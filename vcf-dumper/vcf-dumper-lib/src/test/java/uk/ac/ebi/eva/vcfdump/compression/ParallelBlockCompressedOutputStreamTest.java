@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.compression;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ParallelBlockCompressedOutputStreamTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void outputIsValidBgzfInTheWrittenOrder() throws IOException {
+        byte[] data = createVcfLikeData(3 * 1024 * 1024);
+        File compressedFile = temporaryFolder.newFile("output.vcf.gz");
+
+        try (OutputStream output = new ParallelBlockCompressedOutputStream(new FileOutputStream(compressedFile), 4)) {
+            // writes of different sizes, some of them spanning several blocks
+            Random random = new Random(1);
+            int offset = 0;
+            while (offset < data.length) {
+                int length = Math.min(data.length - offset, random.nextInt(200000));
+                output.write(data, offset, length);
+                offset += length;
+            }
+        }
+
+        assertEquals(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK,
+                     BlockCompressedInputStream.checkTermination(compressedFile));
+        assertArrayEquals(data, readAll(new BlockCompressedInputStream(compressedFile)));
+        assertArrayEquals(data, readAll(new GZIPInputStream(new FileInputStream(compressedFile))));
+    }
+
+    @Test
+    public void incompressibleDataIsStored() throws IOException {
+        byte[] data = new byte[ParallelBlockCompressedOutputStream.UNCOMPRESSED_BLOCK_SIZE * 3 + 100];
+        new Random(1).nextBytes(data);
+        File compressedFile = temporaryFolder.newFile("random.gz");
+
+        try (OutputStream output = new ParallelBlockCompressedOutputStream(new FileOutputStream(compressedFile), 2)) {
+            for (byte b : data) {
+                output.write(b);
+            }
+        }
+
+        assertArrayEquals(data, readAll(new BlockCompressedInputStream(compressedFile)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void atLeastOneThreadIsRequired() {
+        new ParallelBlockCompressedOutputStream(new ByteArrayOutputStream(), 0);
+    }
+
+    private byte[] createVcfLikeData(int size) {
+        StringBuilder data = new StringBuilder(size);
+        Random random = new Random(1);
+        int position = 1;
+        while (data.length() < size) {
+            position += random.nextInt(100);
+            data.append("1\t").append(position).append("\t.\tA\tG\t100\tPASS\t.\tGT");
+            for (int sample = 0; sample < 10; sample++) {
+                data.append(random.nextBoolean() ? "\t0|0" : "\t0|1");
+            }
+            data.append("\n");
+        }
+        return data.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] readAll(InputStream input) throws IOException {
+        try (InputStream closingInput = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = closingInput.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+}
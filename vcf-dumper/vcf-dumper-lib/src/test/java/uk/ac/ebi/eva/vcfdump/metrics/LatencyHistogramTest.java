@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void observationsAreCountedInTheirBucketAndTheFollowingOnes() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(200));
+        histogram.record(TimeUnit.MINUTES.toNanos(2));
+
+        long[] cumulativeCounts = histogram.getCumulativeBucketCounts();
+        assertEquals(LatencyHistogram.getBucketBounds().length + 1, cumulativeCounts.length);
+        // the bounds are inclusive, so 5 ms is in the first bucket
+        assertArrayEquals(new long[]{2, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 3, 3, 4}, cumulativeCounts);
+        assertEquals(4, histogram.getCount());
+    }
+
+    @Test
+    public void sumMeanAndMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getMeanMillis(), 0);
+
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(300));
+
+        assertEquals(0.4, histogram.getSumSeconds(), 1e-9);
+        assertEquals(200, histogram.getMeanMillis(), 1e-9);
+        assertEquals(300, histogram.getMaxMillis(), 1e-9);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.mongoutils;
+
+import com.mongodb.MongoClient;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import uk.ac.ebi.eva.vcfdump.rules.TestDBRule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChromosomeFinderTest {
+
+    @ClassRule
+    public static TestDBRule mongoRule = new TestDBRule();
+
+    private static MongoClient mongoClient;
+
+    private static String dbName;
+
+    private ChromosomeFinder chromosomeFinder;
+
+    @BeforeClass
+    public static void setUpClass() {
+        mongoClient = new MongoClient();
+        dbName = TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        mongoClient.close();
+    }
+
+    @Before
+    public void setUp() {
+        ChromosomeFinder.invalidateAll();
+        chromosomeFinder = new ChromosomeFinder(mongoClient, "variants");
+    }
+
+    @Test
+    public void chromosomesOfEveryFileOfTheStudies() {
+        assertEquals(new HashSet<>(Arrays.asList("20", "22")),
+                     chromosomeFinder.getChromosomes(dbName, Collections.singletonList("7"), null));
+        assertEquals(Collections.singleton("20"),
+                     chromosomeFinder.getChromosomes(dbName, Collections.singletonList("8"), null));
+        assertEquals(new HashSet<>(Arrays.asList("20", "22")),
+                     chromosomeFinder.getChromosomes(dbName, Arrays.asList("7", "8"), Collections.emptyList()));
+    }
+
+    @Test
+    public void chromosomesOfTheRequestedFiles() {
+        assertEquals(Collections.singleton("22"),
+                     chromosomeFinder.getChromosomes(dbName, Collections.singletonList("7"),
+                                                     Collections.singletonList("6")));
+        assertEquals(Collections.singleton("20"),
+                     chromosomeFinder.getChromosomes(dbName, Arrays.asList("7", "8"),
+                                                     Collections.singletonList("5")));
+    }
+
+    @Test
+    public void fileFromAnotherStudyHasNoChromosomes() {
+        // file 6 only has variants of study 7
+        assertTrue(chromosomeFinder.getChromosomes(dbName, Collections.singletonList("8"),
+                                                   Collections.singletonList("6")).isEmpty());
+        assertTrue(chromosomeFinder.getChromosomes(dbName, Collections.singletonList("9"), null).isEmpty());
+    }
+
+    @Test
+    public void chromosomesAreCachedUntilTheDatabaseIsInvalidated() {
+        chromosomeFinder.getChromosomes(dbName, Collections.singletonList("7"), null);
+
+        // a finder that can't query the database can only get the chromosomes from the cache
+        ChromosomeFinder cachedChromosomeFinder = new ChromosomeFinder(null, "variants");
+        assertEquals(new HashSet<>(Arrays.asList("20", "22")),
+                     cachedChromosomeFinder.getChromosomes(dbName, Collections.singletonList("7"), null));
+
+        ChromosomeFinder.invalidate(dbName);
+        assertEquals(new HashSet<>(Arrays.asList("20", "22")),
+                     chromosomeFinder.getChromosomes(dbName, Collections.singletonList("7"), null));
+    }
+}
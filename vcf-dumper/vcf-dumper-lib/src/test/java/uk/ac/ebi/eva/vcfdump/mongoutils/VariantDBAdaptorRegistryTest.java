@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.mongoutils;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
+
+import java.lang.reflect.Proxy;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VariantDBAdaptorRegistryTest {
+
+    private final Set<VariantDBAdaptor> closedAdaptors = Collections.synchronizedSet(new HashSet<>());
+
+    private final AtomicInteger createdAdaptors = new AtomicInteger(0);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final CountDownLatch creationStarted = new CountDownLatch(1);
+
+    private final CountDownLatch creationAllowed = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        creationAllowed.countDown();
+        executor.shutdownNow();
+        VariantDBAdaptorRegistry.closeAll();
+        VariantDBAdaptorRegistry.setIdleTimeout(600, TimeUnit.SECONDS);
+        VariantDBAdaptorRegistry.setMaxAdaptors(20);
+    }
+
+    @Test
+    public void adaptorIsSharedByEveryExportOfTheSameDatabase() throws Exception {
+        VariantDBAdaptor first = VariantDBAdaptorRegistry.acquire("db1", this::createAdaptor);
+        VariantDBAdaptor second = VariantDBAdaptorRegistry.acquire("db1", this::createAdaptor);
+
+        assertSame(first, second);
+        assertEquals(1, createdAdaptors.get());
+    }
+
+    @Test
+    public void idleAdaptorsAreClosedButAdaptorsInUseAreNot() throws Exception {
+        VariantDBAdaptorRegistry.setIdleTimeout(0, TimeUnit.SECONDS);
+        VariantDBAdaptor released = VariantDBAdaptorRegistry.acquire("db1", this::createAdaptor);
+        VariantDBAdaptor inUse = VariantDBAdaptorRegistry.acquire("db2", this::createAdaptor);
+
+        VariantDBAdaptorRegistry.release("db1");
+
+        assertTrue(closedAdaptors.contains(released));
+        assertEquals(1, closedAdaptors.size());
+
+        VariantDBAdaptorRegistry.acquire("db1", this::createAdaptor);
+        assertEquals(3, createdAdaptors.get());
+        assertTrue(!closedAdaptors.contains(inUse));
+    }
+
+    @Test
+    public void leastRecentlyUsedIdleAdaptorIsClosedWhenThereAreTooManyDatabases() throws Exception {
+        VariantDBAdaptorRegistry.setMaxAdaptors(2);
+        VariantDBAdaptor db1Adaptor = VariantDBAdaptorRegistry.acquire("db1", this::createAdaptor);
+        VariantDBAdaptorRegistry.release("db1");
+        VariantDBAdaptorRegistry.acquire("db2", this::createAdaptor);
+        VariantDBAdaptorRegistry.release("db2");
+
+        VariantDBAdaptorRegistry.acquire("db3", this::createAdaptor);
+
+        assertEquals(1, closedAdaptors.size());
+        assertTrue(closedAdaptors.contains(db1Adaptor));
+    }
+
+    @Test
+    public void slowCreationDoesNotBlockOtherDatabases() throws Exception {
+        Future<VariantDBAdaptor> slowAdaptor = executor.submit(
+                () -> VariantDBAdaptorRegistry.acquire("db1", this::createAdaptorSlowly));
+        assertTrue(creationStarted.await(10, TimeUnit.SECONDS));
+
+        Future<VariantDBAdaptor> otherAdaptor = executor.submit(
+                () -> VariantDBAdaptorRegistry.acquire("db2", this::createAdaptor));
+        otherAdaptor.get(10, TimeUnit.SECONDS);
+        assertFalse(slowAdaptor.isDone());
+
+        creationAllowed.countDown();
+        slowAdaptor.get(10, TimeUnit.SECONDS);
+        assertEquals(2, createdAdaptors.get());
+    }
+
+    @Test
+    public void exportsOfADatabaseWaitForTheAdaptorBeingCreated() throws Exception {
+        Future<VariantDBAdaptor> first = executor.submit(
+                () -> VariantDBAdaptorRegistry.acquire("db1", this::createAdaptorSlowly));
+        assertTrue(creationStarted.await(10, TimeUnit.SECONDS));
+        Future<VariantDBAdaptor> second = executor.submit(
+                () -> VariantDBAdaptorRegistry.acquire("db1", this::createAdaptor));
+
+        creationAllowed.countDown();
+        assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+        assertEquals(1, createdAdaptors.get());
+    }
+
+    @Test
+    public void failedCreationIsNotRegistered() throws Exception {
+        try {
+            VariantDBAdaptorRegistry.acquire("db1", () -> {
+                throw new UnknownHostException("db1");
+            });
+            fail("The adaptor creation should have failed");
+        } catch (UnknownHostException e) {
+            // the next export tries again
+        }
+
+        VariantDBAdaptorRegistry.acquire("db1", this::createAdaptor);
+        assertEquals(1, createdAdaptors.get());
+    }
+
+    private VariantDBAdaptor createAdaptorSlowly() {
+        creationStarted.countDown();
+        try {
+            creationAllowed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        return createAdaptor();
+    }
+
+    private VariantDBAdaptor createAdaptor() {
+        createdAdaptors.incrementAndGet();
+        return (VariantDBAdaptor) Proxy.newProxyInstance(
+                VariantDBAdaptor.class.getClassLoader(), new Class[]{VariantDBAdaptor.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            closedAdaptors.add((VariantDBAdaptor) proxy);
+                            return true;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
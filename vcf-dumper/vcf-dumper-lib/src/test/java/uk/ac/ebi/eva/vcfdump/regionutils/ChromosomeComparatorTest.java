@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.regionutils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class ChromosomeComparatorTest {
+
+    @Test
+    public void numericChromosomesGoFirstInNumericOrder() {
+        List<String> chromosomes = new ArrayList<>(Arrays.asList("X", "10", "MT", "2", "GL000192.1", "1", "Y", "22"));
+        Collections.sort(chromosomes, new ChromosomeComparator());
+        assertEquals(Arrays.asList("1", "2", "10", "22", "GL000192.1", "MT", "X", "Y"), chromosomes);
+    }
+
+    @Test
+    public void chrPrefixIsIgnored() {
+        List<String> chromosomes = new ArrayList<>(Arrays.asList("chrX", "chr10", "chr2", "chr1"));
+        Collections.sort(chromosomes, new ChromosomeComparator());
+        assertEquals(Arrays.asList("chr1", "chr2", "chr10", "chrX"), chromosomes);
+    }
+
+    @Test
+    public void equivalentNamesAreDifferentChromosomes() {
+        ChromosomeComparator comparator = new ChromosomeComparator();
+        assertNotEquals(0, comparator.compare("1", "chr1"));
+        assertNotEquals(0, comparator.compare("1", "01"));
+        assertEquals(-comparator.compare("1", "chr1"), comparator.compare("chr1", "1"));
+        assertEquals(0, comparator.compare("chr1", "chr1"));
+    }
+}
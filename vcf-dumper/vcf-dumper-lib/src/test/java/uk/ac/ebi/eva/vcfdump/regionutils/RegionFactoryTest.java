@@ -18,6 +18,7 @@
 
 package uk.ac.ebi.eva.vcfdump.regionutils;
 
+import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
 import org.junit.Test;
@@ -29,8 +30,13 @@ import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 import uk.ac.ebi.eva.vcfdump.rules.TestDBRule;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -53,6 +59,11 @@ public class RegionFactoryTest {
         variantDBAdaptor = mongoRule.getVariantMongoDBAdaptor(TestDBRule.HUMAN_TEST_DB);
     }
 
+    @Before
+    public void setUp() {
+        RegionFactory.invalidateAllBounds();
+    }
+
     @Test
     public void getRegionsForChromosomeWhenEveryRegionInQueryContainsMinAndMaxCoordinates() {
         QueryOptions query = new QueryOptions(VariantDBAdaptor.REGION, "1:500-2499,2:100-300");
@@ -154,4 +165,103 @@ public class RegionFactoryTest {
         assertTrue(regions.contains(new Region("22", 16050075, 16110950)));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void chromosomeBoundsAreCachedByDatabaseAndQuery() {
+        String dbName = TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB);
+        QueryOptions query = new QueryOptions(VariantDBAdaptor.REGION, "22");
+        AtomicInteger queries = new AtomicInteger();
+        VariantDBAdaptor countingAdaptor = countQueries(variantDBAdaptor, queries);
+
+        RegionFactory regionFactory = new RegionFactory(BIG_WINDOW_SIZE, countingAdaptor, 0, dbName);
+        assertEquals(16050075, regionFactory.getMinStart("22", query));
+        assertEquals(16110950, regionFactory.getMaxStart("22", query));
+        assertEquals(2, queries.get());
+
+        // another factory of the same database gets the bounds from the cache
+        RegionFactory cachedRegionFactory = new RegionFactory(BIG_WINDOW_SIZE, countingAdaptor, 0, dbName);
+        assertEquals(16050075, cachedRegionFactory.getMinStart("22", query));
+        assertEquals(16110950, cachedRegionFactory.getMaxStart("22", query));
+        assertEquals(2, queries.get());
+
+        // a different filter is not cached
+        QueryOptions filteredQuery = new QueryOptions(query);
+        filteredQuery.put(VariantDBAdaptor.REFERENCE, "A");
+        cachedRegionFactory.getMinStart("22", filteredQuery);
+        assertTrue(queries.get() > 2);
+
+        int queriesBeforeInvalidation = queries.get();
+        RegionFactory.invalidateBounds(dbName);
+        assertEquals(16050075, regionFactory.getMinStart("22", query));
+        assertEquals(queriesBeforeInvalidation + 2, queries.get());
+    }
+
+    @Test
+    public void divideRegionByVariantDensity() {
+        RegionFactory regionFactory = new RegionFactory(1000, null, 100);
+        NavigableMap<Integer, Integer> variantsPerInterval = new TreeMap<>();
+        variantsPerInterval.put(1000, 30);
+        variantsPerInterval.put(2000, 80);
+        variantsPerInterval.put(50000, 250);
+        variantsPerInterval.put(90000, 10);
+
+        List<Region> regions = regionFactory.divideRegionByVariantDensity("1", 1500, 90500, variantsPerInterval);
+
+        // the sparse intervals are merged until having at least 100 variants, and the dense one is split in 3 parts
+        assertEquals(5, regions.size());
+        assertEquals(new Region("1", 1500, 2999), regions.get(0));
+        assertEquals(new Region("1", 3000, 50333), regions.get(1));
+        assertEquals(new Region("1", 50334, 50667), regions.get(2));
+        assertEquals(new Region("1", 50668, 50999), regions.get(3));
+        assertEquals(new Region("1", 51000, 90500), regions.get(4));
+    }
+
+    @Test
+    public void divideRegionByVariantDensityCoversWholeRegionWhenLastIntervalIsDense() {
+        RegionFactory regionFactory = new RegionFactory(1000, null, 100);
+        NavigableMap<Integer, Integer> variantsPerInterval = new TreeMap<>();
+        variantsPerInterval.put(5000, 500);
+
+        List<Region> regions = regionFactory.divideRegionByVariantDensity("1", 1000, 5200, variantsPerInterval);
+
+        // only 201 bases of the interval are in the region, so it can't be split in 5 parts of the minimum size
+        assertEquals(2, regions.size());
+        assertEquals(new Region("1", 1000, 5099), regions.get(0));
+        assertEquals(new Region("1", 5100, 5200), regions.get(1));
+    }
+
+    @Test
+    public void denseIntervalIsNotSplitBelowMinimumSize() {
+        RegionFactory regionFactory = new RegionFactory(1000, null, 100);
+        NavigableMap<Integer, Integer> variantsPerInterval = new TreeMap<>();
+        variantsPerInterval.put(1000, 100000);
+        variantsPerInterval.put(2000, 20);
+
+        List<Region> regions = regionFactory.divideRegionByVariantDensity("1", 1000, 2500, variantsPerInterval);
+
+        assertEquals(11, regions.size());
+        for (int i = 0; i < 10; i++) {
+            int start = 1000 + i * RegionFactory.MIN_DENSE_REGION_SIZE;
+            assertEquals(new Region("1", start, start + RegionFactory.MIN_DENSE_REGION_SIZE - 1), regions.get(i));
+        }
+        assertEquals(new Region("1", 2000, 2500), regions.get(10));
+    }
+
+    /**
+     * @return an adaptor that counts the variant queries sent to the given one
+     */
+    private static VariantDBAdaptor countQueries(VariantDBAdaptor adaptor, AtomicInteger queries) {
+        return (VariantDBAdaptor) Proxy.newProxyInstance(
+                VariantDBAdaptor.class.getClassLoader(), new Class<?>[]{VariantDBAdaptor.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("iterator")) {
+                        queries.incrementAndGet();
+                    }
+                    try {
+                        return method.invoke(adaptor, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+}
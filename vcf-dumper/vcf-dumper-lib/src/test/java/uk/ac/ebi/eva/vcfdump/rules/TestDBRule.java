@@ -69,7 +69,8 @@ public class TestDBRule extends ExternalResource {
     }
 
     private String getRandomDatabaseName() {
-        return UUID.randomUUID().toString();
+        // prefixed like the EVA databases, so the web services can find them from a species name
+        return "eva_" + UUID.randomUUID().toString();
     }
 
     private void cleanDBs() {
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import uk.ac.ebi.eva.vcfdump.VariantExporterController;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams exports to the clients with non-blocking IO (see {@link AsyncVcfResponseWriter}). The exports share a pool
+ * of threads that fetch, convert and compress the variants only when a client is ready to receive them, so the
+ * number of downloads is not limited by the number of threads, but by the number of exports allowed at the same time
+ * by the {@link ExportAdmissionLimiter}.
+ * <p>
+ * An export that can't start right away waits in the limiter queue without holding any thread. If the queue is full,
+ * or the wait times out, the response is a 429 error with a Retry-After header.
+ */
+@Component
+public class AsyncVcfExportService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncVcfExportService.class);
+
+    private static final String OCTET_STREAM = "application/octet-stream";
+
+    private static final String RETRY_AFTER = "Retry-After";
+
+    private final ExportAdmissionLimiter admissionLimiter;
+
+    private final ExportEndpointMetrics endpointMetrics;
+
+    private final ExecutorService exportExecutor;
+
+    private final ExecutorService compressionExecutor;
+
+    private final long timeoutMillis;
+
+    private final long queueTimeoutMillis;
+
+    @FunctionalInterface
+    public interface ControllerFactory {
+        VariantExporterController create(OutputStream outputStream) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface ControllerSetup {
+        void setUp(VariantExporterController controller) throws Exception;
+    }
+
+    public AsyncVcfExportService(ExportAdmissionLimiter admissionLimiter, ExportEndpointMetrics endpointMetrics,
+                                 @Value("${eva.ws.export.threads:16}") int exportThreads,
+                                 @Value("${eva.ws.export.compression.threads:4}") int compressionThreads,
+                                 @Value("${eva.ws.export.timeout.seconds:3600}") long timeoutSeconds,
+                                 @Value("${eva.ws.export.queue.timeout.seconds:30}") long queueTimeoutSeconds) {
+        this.admissionLimiter = admissionLimiter;
+        this.endpointMetrics = endpointMetrics;
+        this.exportExecutor = createExecutor(exportThreads, "vcf-export-");
+        this.compressionExecutor = createExecutor(compressionThreads, "vcf-export-bgzf-");
+        this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        this.queueTimeoutMillis = TimeUnit.SECONDS.toMillis(queueTimeoutSeconds);
+        logger.info("Streaming exports using {} threads", exportThreads);
+    }
+
+    /**
+     * Starts an asynchronous export and returns immediately. If the export can't start yet, it is queued until the
+     * {@link ExportAdmissionLimiter} admits it, or rejected with a 429 error if the node is saturated
+     *
+     * @param species species of the export, as exports are limited for each species too
+     * @param controllerFactory creates the controller of the export, writing to the given stream. It should not
+     * validate anything, as the controller is not closed if the factory fails
+     * @param controllerSetup sets up the controller, for instance with the requested samples. The controller is
+     * closed if the setup fails
+     * @param writeHeader whether the export includes the VCF header
+     */
+    public void streamExport(HttpServletRequest request, HttpServletResponse response, String species,
+                             ResponseCompression compression, ControllerFactory controllerFactory,
+                             ControllerSetup controllerSetup, boolean writeHeader) throws IOException {
+        String endpoint = ExportEndpointMetrics.getEndpoint(request);
+        if (admissionLimiter.tryAcquire(species)) {
+            try {
+                startExport(() -> {
+                    AsyncContext asyncContext = request.startAsync(request, response);
+                    asyncContext.setTimeout(timeoutMillis);
+                    return asyncContext;
+                }, response, endpoint, species, compression, controllerFactory, controllerSetup, writeHeader);
+            } catch (IllegalArgumentException e) {
+                rejectInvalidExport(response, e);
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new WebApplicationException(e);
+            }
+            return;
+        }
+
+        if (admissionLimiter.isQueueFull()) {
+            admissionLimiter.countRejection();
+            rejectExport(response);
+            return;
+        }
+        queueExport(request, response, endpoint, species, compression, controllerFactory, controllerSetup,
+                    writeHeader);
+    }
+
+    private void queueExport(HttpServletRequest request, HttpServletResponse response, String endpoint, String species,
+                             ResponseCompression compression, ControllerFactory controllerFactory,
+                             ControllerSetup controllerSetup, boolean writeHeader) throws IOException {
+        AsyncContext asyncContext = request.startAsync(request, response);
+        // the timeout can't be changed once the request thread returns, so it includes the wait
+        asyncContext.setTimeout(queueTimeoutMillis + timeoutMillis);
+        ExportAdmissionLimiter.QueuedExport queuedExport = admissionLimiter.enqueue(
+                species,
+                () -> admitQueuedExport(asyncContext, response, endpoint, species, compression, controllerFactory,
+                                        controllerSetup, writeHeader),
+                () -> rejectQueuedExport(asyncContext, response));
+        if (queuedExport == null) {
+            rejectQueuedExport(asyncContext, response);
+            return;
+        }
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                cancel();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                cancel();
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+
+            private void cancel() {
+                // the client went away while waiting
+                if (admissionLimiter.cancel(queuedExport)) {
+                    asyncContext.complete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts an export that has been given a permit while queued in the export executor. If the executor doesn't
+     * accept it, because the service is shutting down, the permit is given back and the export rejected
+     */
+    private void admitQueuedExport(AsyncContext asyncContext, HttpServletResponse response, String endpoint,
+                                   String species, ResponseCompression compression,
+                                   ControllerFactory controllerFactory, ControllerSetup controllerSetup,
+                                   boolean writeHeader) {
+        try {
+            exportExecutor.execute(() -> startQueuedExport(asyncContext, response, endpoint, species, compression,
+                                                           controllerFactory, controllerSetup, writeHeader));
+        } catch (RejectedExecutionException e) {
+            logger.warn("Queued export of {} could not start: {}", species, e.getMessage());
+            admissionLimiter.release(species);
+            rejectQueuedExport(asyncContext, response);
+        }
+    }
+
+    private void startQueuedExport(AsyncContext asyncContext, HttpServletResponse response, String endpoint,
+                                   String species, ResponseCompression compression,
+                                   ControllerFactory controllerFactory, ControllerSetup controllerSetup,
+                                   boolean writeHeader) {
+        try {
+            startExport(() -> asyncContext, response, endpoint, species, compression, controllerFactory,
+                        controllerSetup, writeHeader);
+        } catch (IllegalArgumentException e) {
+            try {
+                rejectInvalidExport(response, e);
+            } catch (IOException ioException) {
+                logger.warn("Error rejecting export: {}", ioException.getMessage());
+            } finally {
+                asyncContext.complete();
+            }
+        } catch (Exception e) {
+            logger.error("Queued export of {} failed to start: {}", species, e.getMessage());
+            logger.debug("Exception details: ", e);
+            if (!response.isCommitted()) {
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Creates the controller of an export that has a permit and starts writing it. If the export can't start, for
+     * instance because its parameters are not valid, the controller is closed and the permit released
+     */
+    private void startExport(AsyncContextSupplier asyncContextSupplier, HttpServletResponse response,
+                             String endpoint, String species, ResponseCompression compression,
+                             ControllerFactory controllerFactory, ControllerSetup controllerSetup,
+                             boolean writeHeader) throws Exception {
+        VariantExporterController controller = null;
+        OutputStream vcfOutputStream = null;
+        boolean started = false;
+        try {
+            ByteArrayOutputStream exportedBytes = new ByteArrayOutputStream(AsyncVcfResponseWriter.CHUNK_SIZE * 2);
+            vcfOutputStream = compression.getOutputStream(exportedBytes, compressionExecutor);
+            controller = controllerFactory.create(vcfOutputStream);
+            controllerSetup.setUp(controller);
+            response.setContentType(OCTET_STREAM);
+            // tell the client that the file is an attachment, so it will download it instead of showing it
+            response.addHeader(HttpHeaders.CONTENT_DISPOSITION,
+                               "attachment;filename=" + compression.getFileName(controller.getOutputFileName()));
+
+            AsyncContext asyncContext = asyncContextSupplier.get();
+            AsyncVcfResponseWriter writer = new AsyncVcfResponseWriter(asyncContext, controller, vcfOutputStream,
+                                                                       exportedBytes, writeHeader, exportExecutor,
+                                                                       () -> finishExport(endpoint, species));
+            endpointMetrics.exportStarted(endpoint);
+            started = true;
+            writer.start();
+        } catch (Exception e) {
+            if (started) {
+                endpointMetrics.exportFinished(endpoint);
+            }
+            if (controller != null) {
+                controller.close();
+            }
+            if (vcfOutputStream != null) {
+                vcfOutputStream.close();
+            }
+            admissionLimiter.release(species);
+            throw e;
+        }
+    }
+
+    private void finishExport(String endpoint, String species) {
+        endpointMetrics.exportFinished(endpoint);
+        admissionLimiter.release(species);
+    }
+
+    private void rejectQueuedExport(AsyncContext asyncContext, HttpServletResponse response) {
+        try {
+            rejectExport(response);
+        } catch (IOException e) {
+            logger.warn("Error rejecting export: {}", e.getMessage());
+        } finally {
+            asyncContext.complete();
+        }
+    }
+
+    private void rejectExport(HttpServletResponse response) throws IOException {
+        // the compression headers don't apply to the error
+        response.reset();
+        response.setHeader(RETRY_AFTER, String.valueOf(admissionLimiter.getRetryAfterSeconds()));
+        response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), "Too many exports running, try later");
+    }
+
+    /**
+     * Rejects an export whose parameters are not valid, for instance because the requested samples are not in the
+     * exported files
+     */
+    private void rejectInvalidExport(HttpServletResponse response, IllegalArgumentException e) throws IOException {
+        logger.debug("Invalid export: {}", e.getMessage());
+        response.reset();
+        response.sendError(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+    }
+
+    @FunctionalInterface
+    private interface AsyncContextSupplier {
+        AsyncContext get() throws IOException;
+    }
+
+    private static ExecutorService createExecutor(int threads, String threadNamePrefix) {
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, threadNamePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        exportExecutor.shutdownNow();
+        compressionExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.eva.vcfdump.RegionByRegionExport;
+import uk.ac.ebi.eva.vcfdump.VariantExporterController;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Writes an export to an asynchronous response using non-blocking IO. The export is driven by the client connection:
+ * when the container calls {@link #onWritePossible()}, the next regions are exported in the export executor until a
+ * chunk of data is ready, and the chunk is written as long as the connection accepts more data.
+ * <p>
+ * While a client is not reading, its export is not using any thread nor database cursor, because each region is read
+ * completely in one step. The calls from the container and from the export executor are synchronized on this writer.
+ */
+class AsyncVcfResponseWriter implements WriteListener, AsyncListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncVcfResponseWriter.class);
+
+    /**
+     * Minimum number of bytes exported in each step, unless the export finishes first
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final AsyncContext asyncContext;
+
+    private final VariantExporterController controller;
+
+    private final OutputStream vcfOutputStream;
+
+    private final ByteArrayOutputStream exportedBytes;
+
+    private final boolean writeHeader;
+
+    private final Executor exportExecutor;
+
+    private final Runnable onRelease;
+
+    private ServletOutputStream responseStream;
+
+    private RegionByRegionExport export;
+
+    private byte[] chunk;
+
+    private boolean exportFinished;
+
+    private boolean exporting;
+
+    private boolean released;
+
+    /**
+     * @param vcfOutputStream stream the controller writes the VCF to, which may compress it into the exported bytes
+     * @param exportedBytes buffer with the data to send to the client
+     * @param onRelease called once, after the export has finished or failed and its resources have been released
+     */
+    AsyncVcfResponseWriter(AsyncContext asyncContext, VariantExporterController controller,
+                           OutputStream vcfOutputStream, ByteArrayOutputStream exportedBytes, boolean writeHeader,
+                           Executor exportExecutor, Runnable onRelease) {
+        this.asyncContext = asyncContext;
+        this.controller = controller;
+        this.vcfOutputStream = vcfOutputStream;
+        this.exportedBytes = exportedBytes;
+        this.writeHeader = writeHeader;
+        this.exportExecutor = exportExecutor;
+        this.onRelease = onRelease;
+        this.exportFinished = false;
+        this.exporting = false;
+        this.released = false;
+    }
+
+    /**
+     * Starts writing the export. The timeout of the async context must have been set already, as it can't be changed
+     * if the export has waited for a permit
+     */
+    void start() throws IOException {
+        asyncContext.addListener(this);
+        responseStream = asyncContext.getResponse().getOutputStream();
+        // the container calls onWritePossible as soon as the listener is set
+        responseStream.setWriteListener(this);
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        while (!released && responseStream.isReady()) {
+            if (chunk != null) {
+                byte[] chunkToWrite = chunk;
+                chunk = null;
+                responseStream.write(chunkToWrite);
+                controller.getMetrics().countWrittenBytes(chunkToWrite.length);
+            } else if (exportFinished) {
+                asyncContext.complete();
+                return;
+            } else {
+                if (!exporting) {
+                    exporting = true;
+                    try {
+                        exportExecutor.execute(this::exportNextChunk);
+                    } catch (RejectedExecutionException e) {
+                        logger.warn("Export {} could not continue: {}", controller.getOutputFileName(),
+                                    e.getMessage());
+                        exporting = false;
+                        release();
+                        asyncContext.complete();
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private void exportNextChunk() {
+        byte[] nextChunk;
+        boolean finished;
+        try {
+            if (export == null) {
+                export = controller.startRegionByRegionExport(writeHeader);
+            }
+            boolean moreRegions = true;
+            while (exportedBytes.size() < CHUNK_SIZE && moreRegions) {
+                moreRegions = export.exportNextRegion();
+            }
+            nextChunk = exportedBytes.toByteArray();
+            exportedBytes.reset();
+            finished = !moreRegions;
+        } catch (Throwable e) {
+            logger.error("Export to {} failed: {}", controller.getOutputFileName(), e.getMessage());
+            logger.debug("Exception details: ", e);
+            // the permit and the adaptor are released even if the export thread is dying
+            fail();
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            return;
+        }
+
+        synchronized (this) {
+            exporting = false;
+            if (released) {
+                // the client went away while this chunk was being exported
+                releaseResources();
+                return;
+            }
+            chunk = nextChunk.length > 0 ? nextChunk : null;
+            exportFinished = finished;
+            try {
+                onWritePossible();
+            } catch (IOException e) {
+                logger.warn("Error writing export {}: {}", controller.getOutputFileName(), e.getMessage());
+                release();
+                asyncContext.complete();
+            }
+        }
+    }
+
+    private synchronized void fail() {
+        exporting = false;
+        if (released) {
+            releaseResources();
+            return;
+        }
+        HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+        if (!response.isCommitted()) {
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        // the client will see a truncated download, as the status can't be changed after the first chunk
+        release();
+        asyncContext.complete();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        logger.warn("Error streaming export {}: {}", controller.getOutputFileName(), throwable.getMessage());
+        release();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        release();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        logger.warn("Export {} timed out", controller.getOutputFileName());
+        release();
+        asyncContext.complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        release();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    /**
+     * Frees the export, unless a chunk is being exported, in which case it is freed when the chunk is finished
+     */
+    private synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (!exporting) {
+            releaseResources();
+        }
+    }
+
+    private void releaseResources() {
+        try {
+            if (export != null) {
+                export.abort();
+            }
+            // if the export didn't start, the stream was not closed by the writer
+            vcfOutputStream.close();
+        } catch (IOException e) {
+            logger.warn("Error closing export {}: {}", controller.getOutputFileName(), e.getMessage());
+        } finally {
+            controller.close();
+            onRelease.run();
+        }
+    }
+}
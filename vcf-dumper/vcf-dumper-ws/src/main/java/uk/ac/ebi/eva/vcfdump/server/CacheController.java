@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server;
+
+import io.swagger.annotations.Api;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import uk.ac.ebi.eva.vcfdump.VariantExporterController;
+
+/**
+ * The chromosomes, coordinate bounds and study metadata of each species are cached by the exporter, so the loading
+ * pipeline should call this endpoint after loading new files into a species database.
+ * <p>
+ * The endpoint is not authenticated, so it only exists when enabled with the property
+ * {@value #ENABLED_PROPERTY}, which should only be set in nodes that are not reachable by the public
+ */
+@ConditionalOnProperty(name = CacheController.ENABLED_PROPERTY, havingValue = "true")
+@RestController
+@RequestMapping(value = "/v1/caches")
+@Api(tags = {"caches"})
+public class CacheController {
+
+    static final String ENABLED_PROPERTY = "eva.ws.caches.invalidation.enabled";
+
+    @RequestMapping(value = "/{species}", method = RequestMethod.DELETE)
+    public ResponseEntity invalidateSpeciesCaches(@PathVariable("species") String species) {
+        String dbName = "eva_" + species;
+        VariantExporterController.invalidateCaches(dbName);
+        return ResponseEntity.noContent().build();
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of exports running at the same time, both in total and for each species, so a burst of requests
+ * for one species can't take the whole node. Requests that can't start right away wait in a bounded queue, in arrival
+ * order, until an export of a species with free permits finishes or the wait times out. When the queue is full, the
+ * requests are rejected right away, so the clients can retry later instead of all of them timing out together.
+ * <p>
+ * The number of running and waiting exports is published over JMX.
+ */
+@Component
+@ManagedResource(objectName = "uk.ac.ebi.eva.vcfdump:type=ExportAdmissionLimiter",
+        description = "Admission control of the streamed exports")
+public class ExportAdmissionLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportAdmissionLimiter.class);
+
+    private final int maxExports;
+
+    private final int maxExportsPerSpecies;
+
+    private final int maxQueuedExports;
+
+    private final long queueTimeoutMillis;
+
+    private final long retryAfterSeconds;
+
+    private final ScheduledExecutorService timeoutScheduler;
+
+    /**
+     * Running exports of each species. Guarded by this limiter, like the rest of the mutable state
+     */
+    private final Map<String, Integer> speciesExports;
+
+    private final LinkedList<QueuedExport> queue;
+
+    private int runningExports;
+
+    private long queuedExports;
+
+    private long rejectedExports;
+
+    private long timedOutExports;
+
+    public ExportAdmissionLimiter(@Value("${eva.ws.export.max-concurrent:200}") int maxExports,
+                                  @Value("${eva.ws.export.max-concurrent-per-species:100}") int maxExportsPerSpecies,
+                                  @Value("${eva.ws.export.queue.size:200}") int maxQueuedExports,
+                                  @Value("${eva.ws.export.queue.timeout.seconds:30}") long queueTimeoutSeconds,
+                                  @Value("${eva.ws.export.retry-after.seconds:60}") long retryAfterSeconds) {
+        if (maxExports < 1) {
+            throw new IllegalArgumentException("'eva.ws.export.max-concurrent' must be a positive number");
+        }
+        if (maxExportsPerSpecies < 1) {
+            throw new IllegalArgumentException(
+                    "'eva.ws.export.max-concurrent-per-species' must be a positive number");
+        }
+        if (maxQueuedExports < 0) {
+            throw new IllegalArgumentException("'eva.ws.export.queue.size' can't be a negative number");
+        }
+        this.maxExports = maxExports;
+        this.maxExportsPerSpecies = maxExportsPerSpecies;
+        this.maxQueuedExports = maxQueuedExports;
+        this.queueTimeoutMillis = TimeUnit.SECONDS.toMillis(queueTimeoutSeconds);
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.timeoutScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "vcf-export-queue-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.speciesExports = new HashMap<>();
+        this.queue = new LinkedList<>();
+        logger.info("Admitting up to {} exports at the same time ({} per species), {} more can wait up to {} seconds",
+                    maxExports, maxExportsPerSpecies, maxQueuedExports, queueTimeoutSeconds);
+    }
+
+    /**
+     * Takes a permit for an export of the species if there is one free. Every permit taken must be given back
+     * with {@link #release}
+     */
+    public synchronized boolean tryAcquire(String species) {
+        if (!hasFreePermit(species)) {
+            return false;
+        }
+        takePermit(species);
+        return true;
+    }
+
+    public synchronized boolean isQueueFull() {
+        return queue.size() >= maxQueuedExports;
+    }
+
+    /**
+     * Waits for a permit for an export of the species, without blocking the calling thread. If a permit is free, or
+     * when one is released, the permit is taken and onAdmission is called. If the wait times out, onTimeout is called
+     * instead, from the timeout thread.
+     *
+     * @return the queued export, to be cancelled if the client goes away, or null if the queue is full and the
+     * export has been rejected
+     */
+    public QueuedExport enqueue(String species, Runnable onAdmission, Runnable onTimeout) {
+        QueuedExport queuedExport = new QueuedExport(species, onAdmission, onTimeout);
+        synchronized (this) {
+            if (!hasFreePermit(species)) {
+                if (queue.size() >= maxQueuedExports) {
+                    rejectedExports++;
+                    return null;
+                }
+                queue.add(queuedExport);
+                queuedExports++;
+                queuedExport.timeout = timeoutScheduler.schedule(() -> timeOut(queuedExport), queueTimeoutMillis,
+                                                                 TimeUnit.MILLISECONDS);
+                logger.debug("Export of {} queued, {} exports waiting", species, queue.size());
+                return queuedExport;
+            }
+            takePermit(species);
+        }
+        onAdmission.run();
+        return queuedExport;
+    }
+
+    /**
+     * Counts an export rejected without being queued, because the queue was already full
+     */
+    public synchronized void countRejection() {
+        rejectedExports++;
+    }
+
+    /**
+     * Removes an export from the queue
+     *
+     * @return true if the export was still waiting, false if it was already admitted or timed out
+     */
+    public synchronized boolean cancel(QueuedExport queuedExport) {
+        if (!queue.remove(queuedExport)) {
+            return false;
+        }
+        queuedExport.timeout.cancel(false);
+        return true;
+    }
+
+    /**
+     * Gives back the permit of a finished export, and admits the first queued exports that can use it
+     */
+    public void release(String species) {
+        List<QueuedExport> admittedExports = new ArrayList<>();
+        synchronized (this) {
+            runningExports--;
+            int exports = speciesExports.merge(species, -1, Integer::sum);
+            if (exports <= 0) {
+                speciesExports.remove(species);
+            }
+
+            // exports of species with no free permits don't block the ones behind them
+            Iterator<QueuedExport> iterator = queue.iterator();
+            while (iterator.hasNext() && runningExports < maxExports) {
+                QueuedExport queuedExport = iterator.next();
+                if (hasFreePermit(queuedExport.species)) {
+                    iterator.remove();
+                    queuedExport.timeout.cancel(false);
+                    takePermit(queuedExport.species);
+                    admittedExports.add(queuedExport);
+                }
+            }
+        }
+        for (QueuedExport admittedExport : admittedExports) {
+            admittedExport.onAdmission.run();
+        }
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    @ManagedAttribute(description = "Exports running")
+    public synchronized int getRunningExports() {
+        return runningExports;
+    }
+
+    @ManagedAttribute(description = "Exports waiting for a permit")
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    @ManagedAttribute(description = "Species with exports running")
+    public synchronized int getSpeciesWithRunningExports() {
+        return speciesExports.size();
+    }
+
+    @ManagedAttribute(description = "Exports that have waited for a permit since the service started")
+    public synchronized long getQueuedExports() {
+        return queuedExports;
+    }
+
+    @ManagedAttribute(description = "Exports rejected because the queue was full since the service started")
+    public synchronized long getRejectedExports() {
+        return rejectedExports;
+    }
+
+    @ManagedAttribute(description = "Exports rejected because their wait timed out since the service started")
+    public synchronized long getTimedOutExports() {
+        return timedOutExports;
+    }
+
+    @ManagedAttribute(description = "Maximum number of exports running")
+    public int getMaxExports() {
+        return maxExports;
+    }
+
+    @ManagedAttribute(description = "Maximum number of exports of each species running")
+    public int getMaxExportsPerSpecies() {
+        return maxExportsPerSpecies;
+    }
+
+    @ManagedAttribute(description = "Maximum number of exports waiting for a permit")
+    public int getMaxQueuedExports() {
+        return maxQueuedExports;
+    }
+
+    private boolean hasFreePermit(String species) {
+        return runningExports < maxExports && speciesExports.getOrDefault(species, 0) < maxExportsPerSpecies;
+    }
+
+    private void takePermit(String species) {
+        runningExports++;
+        speciesExports.merge(species, 1, Integer::sum);
+    }
+
+    private void timeOut(QueuedExport queuedExport) {
+        synchronized (this) {
+            if (!queue.remove(queuedExport)) {
+                return;
+            }
+            timedOutExports++;
+        }
+        logger.debug("Export of {} timed out waiting for a permit", queuedExport.species);
+        queuedExport.onTimeout.run();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timeoutScheduler.shutdownNow();
+    }
+
+    /**
+     * Export waiting for a permit
+     */
+    public static class QueuedExport {
+
+        private final String species;
+
+        private final Runnable onAdmission;
+
+        private final Runnable onTimeout;
+
+        private ScheduledFuture<?> timeout;
+
+        private QueuedExport(String species, Runnable onAdmission, Runnable onTimeout) {
+            this.species = species;
+            this.onAdmission = onAdmission;
+            this.onTimeout = onTimeout;
+        }
+    }
+}
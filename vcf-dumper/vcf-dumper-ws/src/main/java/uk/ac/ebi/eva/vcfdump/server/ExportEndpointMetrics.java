@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports running in each endpoint, identified by its path pattern. Published over JMX and in the metrics endpoint
+ */
+@Component
+@ManagedResource(objectName = "uk.ac.ebi.eva.vcfdump:type=ExportEndpointMetrics",
+        description = "Exports running in each endpoint")
+public class ExportEndpointMetrics {
+
+    private final Map<String, AtomicInteger> activeExports;
+
+    public ExportEndpointMetrics() {
+        activeExports = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return the path pattern of the endpoint handling the request, such as /v1/segments/{regionId}/variants
+     */
+    public static String getEndpoint(HttpServletRequest request) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return pattern != null ? pattern.toString() : request.getRequestURI();
+    }
+
+    public void exportStarted(String endpoint) {
+        activeExports.computeIfAbsent(endpoint, key -> new AtomicInteger()).incrementAndGet();
+    }
+
+    public void exportFinished(String endpoint) {
+        activeExports.get(endpoint).decrementAndGet();
+    }
+
+    /**
+     * @return the exports running in each endpoint that has had any, sorted by endpoint
+     */
+    @ManagedAttribute(description = "Exports running in each endpoint")
+    public Map<String, Integer> getActiveExports() {
+        Map<String, Integer> exports = new TreeMap<>();
+        activeExports.forEach((endpoint, endpointExports) -> exports.put(endpoint, endpointExports.get()));
+        return exports;
+    }
+}
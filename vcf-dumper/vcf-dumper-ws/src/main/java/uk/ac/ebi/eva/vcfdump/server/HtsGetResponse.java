@@ -28,10 +28,13 @@ class HtsGetResponse {
 
     private List<Map<String, String>> urls;
 
+    /**
+     * @param fields requested fields, which are passed on to the header and block URLs, or null to export all of them
+     */
     HtsGetResponse(String format, String host, String id, String chromosome, String species,
-                   List<Region> regions) {
+                   List<Region> regions, List<String> fields) {
         this.format = format;
-        this.urls = constructUrls(host, id, chromosome, species, regions);
+        this.urls = constructUrls(host, id, chromosome, species, regions, fields);
     }
 
     public List<Map<String, String>> getUrls() {
@@ -39,10 +42,11 @@ class HtsGetResponse {
     }
 
     private List<Map<String, String>> constructUrls(String host, String id, String chromosome, String species,
-                               List<Region> regions) {
+                               List<Region> regions, List<String> fields) {
         List<Map<String, String>> resUrls = new ArrayList<>();
+        String fieldsParameter = fields != null ? "&fields=" + String.join(",", fields) : "";
 
-        String headerUrl = host + "/variants/headers?species=" + species + "&studies=" + id;
+        String headerUrl = host + "/variants/headers?species=" + species + "&studies=" + id + fieldsParameter;
         Map<String, String> urlMap = new HashMap<>();
         urlMap.put("url", headerUrl);
         resUrls.add(urlMap);
@@ -50,7 +54,7 @@ class HtsGetResponse {
         String baseUrl = host + "/variants/block?studies=" + id + "&species=" + species + "&region=" + chromosome + ":";
 
         for (Region region : regions) {
-            String url = baseUrl + region.getStart() + "-" + region.getEnd();
+            String url = baseUrl + region.getStart() + "-" + region.getEnd() + fieldsParameter;
             Map<String, String> blockUrlMap = new HashMap<>();
             blockUrlMap.put("url", url);
             resUrls.add(blockUrlMap);
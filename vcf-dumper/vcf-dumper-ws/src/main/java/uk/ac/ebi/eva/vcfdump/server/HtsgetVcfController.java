@@ -38,6 +38,7 @@ import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.Collections;
@@ -51,9 +52,22 @@ public class HtsgetVcfController {
 
     private static final String VCF = "VCF";
 
+    /**
+     * Values of the 'fields' parameter that include the genotypes. If 'fields' has none of them, only the sites are
+     * exported
+     */
+    private static final List<String> GENOTYPE_FIELDS = Arrays.asList("FORMAT", "SAMPLES");
+
     private Properties evaProperties;
 
-    public HtsgetVcfController() throws IOException {
+    private final AsyncVcfExportService asyncExportService;
+
+    private final ExportEndpointMetrics endpointMetrics;
+
+    public HtsgetVcfController(AsyncVcfExportService asyncExportService, ExportEndpointMetrics endpointMetrics)
+            throws IOException {
+        this.asyncExportService = asyncExportService;
+        this.endpointMetrics = endpointMetrics;
         evaProperties = new Properties();
         evaProperties.load(VcfDumperWSServer.class.getResourceAsStream("/eva.properties"));
     }
@@ -86,39 +100,42 @@ public class HtsgetVcfController {
 
         int blockSize = Integer.parseInt(evaProperties.getProperty("eva.htsget.blocksize"));
 
-        VariantExporterController controller = new VariantExporterController(dbName, Arrays.asList(id.split(",")),
-                                                                             evaProperties,
-                                                                             queryParameters, blockSize);
-        ResponseEntity errorResponse = validateRequest(referenceName, start, controller);
-        if (errorResponse != null) {
-            return errorResponse;
-        }
+        try (VariantExporterController controller = new VariantExporterController(dbName,
+                                                                                  Arrays.asList(id.split(",")),
+                                                                                  evaProperties,
+                                                                                  queryParameters, blockSize)) {
+            ResponseEntity errorResponse = validateRequest(referenceName, start, controller);
+            if (errorResponse != null) {
+                return errorResponse;
+            }
 
-        if (start != null && end != null && end <= start) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(Collections.singletonMap("htsget",
-                    new HtsGetError("InvalidRange", "The requested range cannot be satisfied")));
-        }
+            if (start != null && end != null && end <= start) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(Collections.singletonMap("htsget",
+                        new HtsGetError("InvalidRange", "The requested range cannot be satisfied")));
+            }
 
-        if (start == null) {
-            start = controller.getCoordinateOfFirstVariant(referenceName);
-        }
-        if (end == null) {
-            end = controller.getCoordinateOfLastVariant(referenceName);
-        }
+            if (start == null) {
+                start = controller.getCoordinateOfFirstVariant(referenceName);
+            }
+            if (end == null) {
+                end = controller.getCoordinateOfLastVariant(referenceName);
+            }
 
-        if (end <= start) {
-            // Applies to valid requests such as chromosome 1, start: 1.000.000, end: empty.
-            // If variants exist only in region 200.000 to 800.000, getCoordinateOfLastVariant() will return 800.000.
-            // Given that 800.000 < 1.000.000, no region can be found.
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Collections.singletonMap("htsget",
-                    new HtsGetError("NotFound", "The resource requested was not found")));
-        }
+            if (end <= start) {
+                // Applies to valid requests such as chromosome 1, start: 1.000.000, end: empty.
+                // If variants exist only in region 200.000 to 800.000, getCoordinateOfLastVariant() will return 800.000.
+                // Given that 800.000 < 1.000.000, no region can be found.
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Collections.singletonMap("htsget",
+                        new HtsGetError("NotFound", "The resource requested was not found")));
+            }
 
-        List<Region> regionList = controller.divideChromosomeInChunks(referenceName, start, end);
+            List<Region> regionList = controller.divideChromosomeInChunks(referenceName, start, end);
 
-        HtsGetResponse htsGetResponse = new HtsGetResponse(VCF, request.getLocalName() + ":" + request.getLocalPort(),
-                                                           id, referenceName, species, regionList);
-        return ResponseEntity.status(HttpStatus.OK).body(Collections.singletonMap("htsget",  htsGetResponse));
+            String dataUrl = request.getLocalName() + ":" + request.getLocalPort();
+            HtsGetResponse htsGetResponse = new HtsGetResponse(VCF, dataUrl, id, referenceName, species, regionList,
+                                                               fields);
+            return ResponseEntity.status(HttpStatus.OK).body(Collections.singletonMap("htsget",  htsGetResponse));
+        }
     }
 
     private ResponseEntity validateRequest(String referenceName, Integer start, VariantExporterController controller) {
@@ -141,22 +158,33 @@ public class HtsgetVcfController {
     public StreamingResponseBody getHtsgetHeaders(
             @RequestParam(name = "species") String species,
             @RequestParam(name = "studies") List<String> studies,
+            @RequestParam(name = "fields", required = false) List<String> fields,
+            @RequestParam(name = "bgzip", required = false, defaultValue = "false") boolean bgzip,
+            HttpServletRequest request,
             HttpServletResponse response)
             throws IllegalAccessException, IllegalOpenCGACredentialsException, InstantiationException, IOException,
             StorageManagerException, URISyntaxException, ClassNotFoundException {
 
         String dbName = "eva_" + species;
+        ResponseCompression compression = new ResponseCompression(request, bgzip, evaProperties);
+        compression.prepareResponse(response);
         StreamingResponseBody responseBody = getStreamingHeaderResponse(dbName, studies, evaProperties,
-                                                                        new MultivaluedHashMap<>(), response);
+                                                                        new MultivaluedHashMap<>(), compression,
+                                                                        isSitesOnly(fields),
+                                                                        ExportEndpointMetrics.getEndpoint(request),
+                                                                        response);
         return responseBody;
     }
 
 
     @RequestMapping(value = "/block", method = RequestMethod.GET, produces = "application/octet-stream")
-    public StreamingResponseBody getHtsgetBlocks(
+    public void getHtsgetBlocks(
             @RequestParam(name = "species") String species,
             @RequestParam(name = "studies") List<String> studies,
             @RequestParam(name = "region") String chrRegion,
+            @RequestParam(name = "fields", required = false) List<String> fields,
+            @RequestParam(name = "bgzip", required = false, defaultValue = "false") boolean bgzip,
+            HttpServletRequest request,
             HttpServletResponse response)
             throws IllegalAccessException, IllegalOpenCGACredentialsException, InstantiationException, IOException,
             StorageManagerException, URISyntaxException, ClassNotFoundException {
@@ -166,46 +194,45 @@ public class HtsgetVcfController {
         MultivaluedMap<String, String> queryParameters = new MultivaluedHashMap<>();
         queryParameters.put(VariantDBAdaptor.REGION, Collections.singletonList(chrRegion));
 
-        StreamingResponseBody responseBody = getStreamingBlockResponse(dbName, studies, evaProperties,
-                                                                       queryParameters, response);
-        return responseBody;
+        ResponseCompression compression = new ResponseCompression(request, bgzip, evaProperties);
+        compression.prepareResponse(response);
+        boolean sitesOnly = isSitesOnly(fields);
+        asyncExportService.streamExport(request, response, species, compression,
+                                        outputStream -> new VariantExporterController(dbName, studies, outputStream,
+                                                                                      evaProperties, queryParameters),
+                                        controller -> controller.setSitesOnly(sitesOnly), false);
+    }
+
+    /**
+     * Only the sites are exported if the requested fields don't include the genotypes. All the fields are exported if
+     * none is requested
+     */
+    private static boolean isSitesOnly(List<String> fields) {
+        return fields != null && fields.stream().map(String::toUpperCase).noneMatch(GENOTYPE_FIELDS::contains);
     }
 
 
     private StreamingResponseBody getStreamingHeaderResponse(String dbName, List<String> studies,
                                                              Properties evaProperties,
                                                              MultivaluedMap<String, String> queryParameters,
-                                                             HttpServletResponse response) {
+                                                             ResponseCompression compression, boolean sitesOnly,
+                                                             String endpoint, HttpServletResponse response) {
         return outputStream -> {
-            VariantExporterController controller;
-            try {
-                controller = new VariantExporterController(dbName, studies, outputStream, evaProperties,
-                                                           queryParameters);
+            endpointMetrics.exportStarted(endpoint);
+            try (OutputStream vcfOutputStream = compression.getOutputStream(outputStream);
+                 VariantExporterController controller = new VariantExporterController(dbName, studies,
+                                                                                      vcfOutputStream,
+                                                                                      evaProperties,
+                                                                                      queryParameters)) {
                 // tell the client that the file is an attachment, so it will download it instead of showing it
-                response.addHeader(HttpHeaders.CONTENT_DISPOSITION,
-                                   "attachment;filename=" + controller.getOutputFileName());
+                response.addHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment;filename="
+                        + compression.getFileName(controller.getOutputFileName()));
+                controller.setSitesOnly(sitesOnly);
                 controller.exportHeader();
             } catch (Exception e) {
                 throw new WebApplicationException(e);
-            }
-        };
-    }
-
-    private StreamingResponseBody getStreamingBlockResponse(String dbName, List<String> studies,
-                                                            Properties evaProperties,
-                                                            MultivaluedMap<String, String> queryParameters,
-                                                            HttpServletResponse response) {
-        return outputStream -> {
-            VariantExporterController controller;
-            try {
-                controller = new VariantExporterController(dbName, studies, outputStream, evaProperties,
-                                                           queryParameters);
-                // tell the client that the file is an attachment, so it will download it instead of showing it
-                response.addHeader(HttpHeaders.CONTENT_DISPOSITION,
-                                   "attachment;filename=" + controller.getOutputFileName());
-                controller.exportBlock();
-            } catch (Exception e) {
-                throw new WebApplicationException(e);
+            } finally {
+                endpointMetrics.exportFinished(endpoint);
             }
         };
     }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server;
+
+import io.swagger.annotations.Api;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import uk.ac.ebi.eva.vcfdump.metrics.ExportMetrics;
+import uk.ac.ebi.eva.vcfdump.metrics.LatencyHistogram;
+
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Export metrics in the Prometheus text format, so they can be scraped along with the rest of the services. The same
+ * metrics are available over JMX
+ */
+@RestController
+@RequestMapping(value = "/v1/metrics")
+@Api(tags = {"metrics"})
+public class MetricsController {
+
+    private static final String PROMETHEUS_TEXT_FORMAT = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "vcfdump_";
+
+    private final ExportAdmissionLimiter admissionLimiter;
+
+    private final ExportEndpointMetrics endpointMetrics;
+
+    public MetricsController(ExportAdmissionLimiter admissionLimiter, ExportEndpointMetrics endpointMetrics) {
+        this.admissionLimiter = admissionLimiter;
+        this.endpointMetrics = endpointMetrics;
+    }
+
+    @RequestMapping(method = RequestMethod.GET, produces = PROMETHEUS_TEXT_FORMAT)
+    public ResponseEntity<String> getMetrics() {
+        StringBuilder metrics = new StringBuilder();
+        Map<String, ExportMetrics> databaseMetrics = ExportMetrics.getAll();
+
+        appendHistogram(metrics, "region_query_seconds", "Time reading the variants of a region from the database",
+                        databaseMetrics, ExportMetrics::getRegionQueryLatency);
+        appendHistogram(metrics, "header_build_seconds", "Time loading the sources and merging the VCF header",
+                        databaseMetrics, ExportMetrics::getHeaderBuildTime);
+        appendDatabaseMetric(metrics, "converted_variants_total", "counter", "Variants converted to VCF",
+                             databaseMetrics, ExportMetrics::getConvertedVariants);
+        appendDatabaseMetric(metrics, "converted_variants_per_second", "gauge",
+                             "Variants converted to VCF per second during the last minute", databaseMetrics,
+                             ExportMetrics::getConvertedVariantsPerSecond);
+        appendDatabaseMetric(metrics, "failed_variants_total", "counter", "Variants that could not be converted",
+                             databaseMetrics, ExportMetrics::getFailedVariants);
+        appendDatabaseMetric(metrics, "written_bytes_total", "counter", "Bytes of VCF written, after compression",
+                             databaseMetrics, ExportMetrics::getWrittenBytes);
+
+        appendHeader(metrics, "active_exports", "gauge", "Exports running in each endpoint");
+        endpointMetrics.getActiveExports().forEach(
+                (endpoint, exports) -> appendSample(metrics, "active_exports", "endpoint", endpoint, exports));
+
+        appendAdmissionMetric(metrics, "running_exports", "gauge", "Exports holding an admission permit",
+                              admissionLimiter.getRunningExports());
+        appendAdmissionMetric(metrics, "export_queue_depth", "gauge", "Exports waiting for an admission permit",
+                              admissionLimiter.getQueueDepth());
+        appendAdmissionMetric(metrics, "queued_exports_total", "counter", "Exports that have waited for a permit",
+                              admissionLimiter.getQueuedExports());
+        appendAdmissionMetric(metrics, "rejected_exports_total", "counter",
+                              "Exports rejected because the queue was full", admissionLimiter.getRejectedExports());
+        appendAdmissionMetric(metrics, "timed_out_exports_total", "counter",
+                              "Exports rejected because their wait timed out", admissionLimiter.getTimedOutExports());
+
+        return ResponseEntity.ok(metrics.toString());
+    }
+
+    private void appendHistogram(StringBuilder metrics, String name, String help,
+                                 Map<String, ExportMetrics> databaseMetrics,
+                                 Function<ExportMetrics, LatencyHistogram> histogramGetter) {
+        appendHeader(metrics, name, "histogram", help);
+        double[] bounds = LatencyHistogram.getBucketBounds();
+        databaseMetrics.forEach((database, exportMetrics) -> {
+            LatencyHistogram histogram = histogramGetter.apply(exportMetrics);
+            long[] cumulativeCounts = histogram.getCumulativeBucketCounts();
+            String databaseLabel = "database=\"" + escape(database) + "\"";
+            for (int i = 0; i < cumulativeCounts.length; i++) {
+                String bound = i < bounds.length ? String.valueOf(bounds[i]) : "+Inf";
+                metrics.append(PREFIX).append(name).append("_bucket{").append(databaseLabel)
+                       .append(",le=\"").append(bound).append("\"} ").append(cumulativeCounts[i]).append('\n');
+            }
+            metrics.append(PREFIX).append(name).append("_sum{").append(databaseLabel).append("} ")
+                   .append(histogram.getSumSeconds()).append('\n');
+            metrics.append(PREFIX).append(name).append("_count{").append(databaseLabel).append("} ")
+                   .append(histogram.getCount()).append('\n');
+        });
+    }
+
+    private void appendDatabaseMetric(StringBuilder metrics, String name, String type, String help,
+                                      Map<String, ExportMetrics> databaseMetrics,
+                                      ToDoubleFunction<ExportMetrics> valueGetter) {
+        appendHeader(metrics, name, type, help);
+        databaseMetrics.forEach((database, exportMetrics) -> appendSample(metrics, name, "database", database,
+                                                                          valueGetter.applyAsDouble(exportMetrics)));
+    }
+
+    private void appendAdmissionMetric(StringBuilder metrics, String name, String type, String help, Number value) {
+        appendHeader(metrics, name, type, help);
+        metrics.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private void appendHeader(StringBuilder metrics, String name, String type, String help) {
+        metrics.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        metrics.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private void appendSample(StringBuilder metrics, String name, String labelName, String labelValue,
+                              Number value) {
+        metrics.append(PREFIX).append(name).append('{').append(labelName).append("=\"").append(escape(labelValue))
+               .append("\"} ").append(value).append('\n');
+    }
+
+    private String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
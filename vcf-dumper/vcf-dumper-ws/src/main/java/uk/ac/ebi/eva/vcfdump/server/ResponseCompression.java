@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server;
+
+import uk.ac.ebi.eva.vcfdump.compression.ParallelBlockCompressedOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.HttpHeaders;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Compression of the VCF streamed by the web services. The output is compressed in BGZF format when the client asks
+ * for a bgzipped file, or when it accepts the gzip content encoding: a BGZF file is a series of gzip members, which
+ * gzip decoders read as a single stream. In the first case the response is the compressed file itself, and in the
+ * second one the client decompresses it while downloading.
+ * <p>
+ * The blocks are compressed in a pool of threads, so the thread writing the response only converts the variants, and
+ * each block is sent to the client as soon as it is compressed. The pool can be owned by the response, or shared.
+ */
+class ResponseCompression {
+
+    private static final String GZIP_ENCODING = "gzip";
+
+    private static final String COMPRESSION_THREADS_PROPERTY = "eva.ws.compression.threads";
+
+    private static final String DEFAULT_COMPRESSION_THREADS = "2";
+
+    private final boolean bgzipFile;
+
+    private final boolean gzipEncoding;
+
+    private final int threads;
+
+    ResponseCompression(HttpServletRequest request, boolean bgzipFile, Properties evaProperties) {
+        this.bgzipFile = bgzipFile;
+        this.gzipEncoding = !bgzipFile && acceptsGzip(request);
+        this.threads = Integer.parseInt(evaProperties.getProperty(COMPRESSION_THREADS_PROPERTY,
+                                                                  DEFAULT_COMPRESSION_THREADS));
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        Enumeration<String> acceptEncodingHeaders = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+        while (acceptEncodingHeaders != null && acceptEncodingHeaders.hasMoreElements()) {
+            for (String encoding : acceptEncodingHeaders.nextElement().split(",")) {
+                String[] encodingAndParameters = encoding.split(";");
+                if (encodingAndParameters[0].trim().equalsIgnoreCase(GZIP_ENCODING)
+                        && !isRejected(encodingAndParameters)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the encoding has a quality value of 0, which means that the client doesn't accept it
+     */
+    private static boolean isRejected(String[] encodingAndParameters) {
+        for (int i = 1; i < encodingAndParameters.length; i++) {
+            String parameter = encodingAndParameters[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2)) == 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the content encoding header if needed. It must be called before the response is committed
+     */
+    void prepareResponse(HttpServletResponse response) {
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzipEncoding) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP_ENCODING);
+        }
+    }
+
+    /**
+     * @return the stream to write the uncompressed VCF to. Closing it writes the end of the BGZF output and closes the
+     * response stream
+     */
+    OutputStream getOutputStream(OutputStream responseStream) {
+        if (bgzipFile || gzipEncoding) {
+            return new ParallelBlockCompressedOutputStream(responseStream, threads);
+        }
+        return responseStream;
+    }
+
+    /**
+     * Same as {@link #getOutputStream(OutputStream)}, but the blocks are compressed in an executor shared by several
+     * responses, using up to as many blocks at the same time as the configured threads
+     */
+    OutputStream getOutputStream(OutputStream responseStream, ExecutorService compressionExecutor) {
+        if (bgzipFile || gzipEncoding) {
+            return new ParallelBlockCompressedOutputStream(responseStream, compressionExecutor, threads);
+        }
+        return responseStream;
+    }
+
+    String getFileName(String vcfFileName) {
+        return bgzipFile ? vcfFileName + ".gz" : vcfFileName;
+    }
+}
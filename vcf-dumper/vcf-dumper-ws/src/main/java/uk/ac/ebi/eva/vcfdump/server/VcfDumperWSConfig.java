@@ -1,5 +1,6 @@
 package uk.ac.ebi.eva.vcfdump.server;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
@@ -15,22 +16,37 @@ import springfox.documentation.spi.DocumentationType;
 import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
+import uk.ac.ebi.eva.vcfdump.VariantExporterController;
+
+import javax.annotation.PreDestroy;
+
 @Configuration
 @EnableWebMvc
 @EnableSwagger2
 public class VcfDumperWSConfig extends WebMvcConfigurerAdapter {
 
+    @Value("${eva.ws.mvc.async.core-threads:5}")
+    private int mvcAsyncCoreThreads;
+
+    @Value("${eva.ws.mvc.async.max-threads:10}")
+    private int mvcAsyncMaxThreads;
+
     @Bean
     public ThreadPoolTaskExecutor mvcAsyncThreadPool() {
-        // this pool will be used by to handle async requests in the MVC controllers
+        // this pool will be used by to handle async requests in the MVC controllers. The variant exports don't use it,
+        // as they are streamed by AsyncVcfExportService, so only the headers are written by these threads
         ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
-        // TODO: override those default values
-        pool.setCorePoolSize(5);
-        pool.setMaxPoolSize(10);
+        pool.setCorePoolSize(mvcAsyncCoreThreads);
+        pool.setMaxPoolSize(mvcAsyncMaxThreads);
         pool.setWaitForTasksToCompleteOnShutdown(true);
         return pool;
     }
 
+    @PreDestroy
+    public void closeDatabaseConnections() {
+        VariantExporterController.closeAllConnections();
+    }
+
     @Override
     public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
         configurer.setTaskExecutor(mvcAsyncThreadPool());
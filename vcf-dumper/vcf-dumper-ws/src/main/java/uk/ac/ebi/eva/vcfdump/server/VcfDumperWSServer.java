@@ -27,17 +27,14 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
-import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import uk.ac.ebi.eva.vcfdump.VariantExporterController;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.ws.rs.WebApplicationException;
-import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.util.Collections;
 import java.util.List;
@@ -50,14 +47,17 @@ public class VcfDumperWSServer {
 
     public Properties evaProperties;
 
-    public VcfDumperWSServer() throws IOException {
+    private final AsyncVcfExportService asyncExportService;
+
+    public VcfDumperWSServer(AsyncVcfExportService asyncExportService) throws IOException {
+        this.asyncExportService = asyncExportService;
         evaProperties = new Properties();
         evaProperties.load(VcfDumperWSServer.class.getResourceAsStream("/eva.properties"));
     }
 
 
     @RequestMapping(value = "/{regionId}/variants", method = RequestMethod.GET, produces = "application/octet-stream")
-    public StreamingResponseBody getVariantsByRegionStreamingOutput(
+    public void getVariantsByRegionStreamingOutput(
             @PathVariable("regionId") String region,
             @RequestParam(name = "species") String species,
             @RequestParam(name = "studies") List<String> studies,
@@ -70,6 +70,10 @@ public class VcfDumperWSServer {
             @RequestParam(name = "miss_alleles", required = false, defaultValue = "") String missingAlleles,
             @RequestParam(name = "miss_gts", required = false, defaultValue = "") String missingGenotypes,
             @RequestParam(name = "exclude", required = false) List<String> exclude,
+            @RequestParam(name = "sites-only", required = false, defaultValue = "false") boolean sitesOnly,
+            @RequestParam(name = "samples", required = false) List<String> samples,
+            @RequestParam(name = "bgzip", required = false, defaultValue = "false") boolean bgzip,
+            HttpServletRequest request,
             HttpServletResponse response)
             throws IllegalAccessException, IllegalOpenCGACredentialsException, InstantiationException, IOException,
             StorageManagerException, URISyntaxException, ClassNotFoundException {
@@ -81,36 +85,18 @@ public class VcfDumperWSServer {
 
         String dbName = "eva_" + species;
 
-        StreamingResponseBody responseBody = getStreamingResponseBody(dbName, studies, evaProperties,
-                                                                      queryParameters, response);
-
-        return responseBody;
-    }
+        ResponseCompression compression = new ResponseCompression(request, bgzip, evaProperties);
+        compression.prepareResponse(response);
 
-    private StreamingResponseBody getStreamingResponseBody(String dbName, List<String> studies,
-                                                           Properties evaProperties,
-                                                           MultivaluedMap<String, String> queryParameters,
-                                                           HttpServletResponse response) {
-
-        return new StreamingResponseBody() {
-            @Override
-            public void writeTo(OutputStream outputStream) throws IOException, WebApplicationException {
-                VariantExporterController controller;
-                try {
-                    controller = new VariantExporterController(dbName, studies, outputStream, evaProperties,
-                                                               queryParameters);
-                    // tell the client that the file is an attachment, so it will download it instead of showing it
-                    response.addHeader(HttpHeaders.CONTENT_DISPOSITION,
-                                       "attachment;filename=" + controller.getOutputFileName());
-                    controller.run();
-                } catch (Exception e) {
-                    throw new WebApplicationException(e);
-                }
-            }
-        };
+        asyncExportService.streamExport(request, response, species, compression,
+                                        outputStream -> new VariantExporterController(dbName, studies, outputStream,
+                                                                                      evaProperties, queryParameters),
+                                        controller -> {
+                                            controller.setSitesOnly(sitesOnly);
+                                            controller.setSamples(samples);
+                                        }, true);
     }
 
-
     private MultivaluedMap<String, String> parseQueryParams(String region,
                                                             List<String> consequenceType,
                                                             String maf,
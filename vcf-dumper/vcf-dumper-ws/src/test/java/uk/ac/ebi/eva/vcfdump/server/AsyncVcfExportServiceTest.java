@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncVcfExportServiceTest {
+
+    private static final String SPECIES = "hsapiens_grch37";
+
+    private static final long QUEUE_TIMEOUT_SECONDS = 1;
+
+    private static final long RETRY_AFTER_SECONDS = 60;
+
+    private ExportAdmissionLimiter admissionLimiter;
+
+    private AsyncVcfExportService exportService;
+
+    private MockHttpServletRequest request;
+
+    private MockHttpServletResponse response;
+
+    @Before
+    public void setUp() {
+        admissionLimiter = new ExportAdmissionLimiter(1, 1, 1, QUEUE_TIMEOUT_SECONDS, RETRY_AFTER_SECONDS);
+        exportService = new AsyncVcfExportService(admissionLimiter, new ExportEndpointMetrics(), 1, 1, 60,
+                                                  QUEUE_TIMEOUT_SECONDS);
+        request = new MockHttpServletRequest("GET", "/v1/segments/20/variants");
+        request.setAsyncSupported(true);
+        response = new MockHttpServletResponse();
+    }
+
+    @After
+    public void tearDown() {
+        exportService.shutdown();
+        admissionLimiter.shutdown();
+    }
+
+    @Test
+    public void queuedExportThatTimesOutIsRejected() throws Exception {
+        assertTrue(admissionLimiter.tryAcquire(SPECIES));
+
+        CountDownLatch completed = streamQueuedExport();
+
+        assertTrue(completed.await(QUEUE_TIMEOUT_SECONDS * 5, TimeUnit.SECONDS));
+        assertTooManyRequests();
+        assertEquals(1, admissionLimiter.getTimedOutExports());
+    }
+
+    @Test
+    public void queuedExportThatCanNotStartReleasesItsPermit() throws Exception {
+        assertTrue(admissionLimiter.tryAcquire(SPECIES));
+        CountDownLatch completed = streamQueuedExport();
+
+        // the export is admitted when the permit is released, but the executor doesn't accept it anymore
+        exportService.shutdown();
+        admissionLimiter.release(SPECIES);
+
+        assertTrue(completed.await(QUEUE_TIMEOUT_SECONDS * 5, TimeUnit.SECONDS));
+        assertTooManyRequests();
+        assertEquals(0, admissionLimiter.getRunningExports());
+        assertEquals(0, admissionLimiter.getQueueDepth());
+    }
+
+    @Test
+    public void exportIsRejectedIfTheQueueIsFull() throws Exception {
+        assertTrue(admissionLimiter.tryAcquire(SPECIES));
+        streamQueuedExport();
+
+        MockHttpServletRequest rejectedRequest = new MockHttpServletRequest("GET", "/v1/segments/20/variants");
+        response = new MockHttpServletResponse();
+        exportService.streamExport(rejectedRequest, response, SPECIES, createCompression(rejectedRequest),
+                                   outputStream -> {
+                                       fail("The export should not start");
+                                       return null;
+                                   }, controller -> fail("The export should not start"), true);
+
+        assertTooManyRequests();
+        assertEquals(1, admissionLimiter.getRejectedExports());
+    }
+
+    /**
+     * Streams an export that will wait in the queue, as the only permit is taken
+     *
+     * @return latch released when the response is completed
+     */
+    private CountDownLatch streamQueuedExport() throws Exception {
+        exportService.streamExport(request, response, SPECIES, createCompression(request), outputStream -> {
+            fail("The export should not start");
+            return null;
+        }, controller -> fail("The export should not start"), true);
+        assertEquals(1, admissionLimiter.getQueueDepth());
+
+        CountDownLatch completed = new CountDownLatch(1);
+        request.getAsyncContext().addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                completed.countDown();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        return completed;
+    }
+
+    private ResponseCompression createCompression(MockHttpServletRequest request) {
+        return new ResponseCompression(request, false, new Properties());
+    }
+
+    private void assertTooManyRequests() {
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS.value(), response.getStatus());
+        assertEquals(String.valueOf(RETRY_AFTER_SECONDS), response.getHeader("Retry-After"));
+    }
+}
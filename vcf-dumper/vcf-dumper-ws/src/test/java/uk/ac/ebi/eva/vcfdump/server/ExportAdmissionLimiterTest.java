@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExportAdmissionLimiterTest {
+
+    private static final long QUEUE_TIMEOUT_SECONDS = 1;
+
+    private static final long RETRY_AFTER_SECONDS = 60;
+
+    private ExportAdmissionLimiter limiter;
+
+    private List<String> admittedExports;
+
+    @After
+    public void tearDown() {
+        if (limiter != null) {
+            limiter.shutdown();
+        }
+    }
+
+    @Test
+    public void queuedExportsAreAdmittedInArrivalOrder() {
+        createLimiter(1, 1, 10);
+        assertTrue(limiter.tryAcquire("hsapiens"));
+        enqueue("btaurus", "first");
+        enqueue("oaries", "second");
+        assertEquals(2, limiter.getQueueDepth());
+
+        limiter.release("hsapiens");
+        assertEquals(Collections.singletonList("first"), admittedExports);
+
+        limiter.release("btaurus");
+        assertEquals(Arrays.asList("first", "second"), admittedExports);
+        assertEquals(0, limiter.getQueueDepth());
+        assertEquals(2, limiter.getQueuedExports());
+    }
+
+    @Test
+    public void saturatedSpeciesDoesNotBlockTheQueue() {
+        createLimiter(2, 1, 10);
+        assertTrue(limiter.tryAcquire("hsapiens"));
+        assertTrue(limiter.tryAcquire("btaurus"));
+        enqueue("hsapiens", "saturated");
+        enqueue("oaries", "free");
+
+        limiter.release("btaurus");
+        assertEquals(Collections.singletonList("free"), admittedExports);
+        assertEquals(1, limiter.getQueueDepth());
+
+        limiter.release("hsapiens");
+        assertEquals(Arrays.asList("free", "saturated"), admittedExports);
+        assertEquals(2, limiter.getRunningExports());
+    }
+
+    @Test
+    public void exportIsAdmittedRightAwayIfThereIsAFreePermit() {
+        createLimiter(1, 1, 10);
+        assertNotNull(enqueue("hsapiens", "first"));
+        assertEquals(Collections.singletonList("first"), admittedExports);
+        assertEquals(1, limiter.getRunningExports());
+        assertEquals(0, limiter.getQueuedExports());
+    }
+
+    @Test
+    public void queuedExportTimesOut() throws InterruptedException {
+        createLimiter(1, 1, 10);
+        assertTrue(limiter.tryAcquire("hsapiens"));
+        CountDownLatch timedOut = new CountDownLatch(1);
+        limiter.enqueue("hsapiens", () -> admittedExports.add("timed out"), timedOut::countDown);
+
+        assertTrue(timedOut.await(QUEUE_TIMEOUT_SECONDS * 5, TimeUnit.SECONDS));
+        assertEquals(0, limiter.getQueueDepth());
+        assertEquals(1, limiter.getTimedOutExports());
+
+        limiter.release("hsapiens");
+        assertTrue(admittedExports.isEmpty());
+        assertEquals(0, limiter.getRunningExports());
+    }
+
+    @Test
+    public void cancelledExportIsNotAdmitted() {
+        createLimiter(1, 1, 10);
+        assertTrue(limiter.tryAcquire("hsapiens"));
+        ExportAdmissionLimiter.QueuedExport queuedExport = enqueue("hsapiens", "cancelled");
+
+        assertTrue(limiter.cancel(queuedExport));
+        assertEquals(0, limiter.getQueueDepth());
+        assertFalse(limiter.cancel(queuedExport));
+
+        limiter.release("hsapiens");
+        assertTrue(admittedExports.isEmpty());
+        assertEquals(0, limiter.getRunningExports());
+    }
+
+    @Test
+    public void exportIsRejectedIfTheQueueIsFull() {
+        createLimiter(1, 1, 1);
+        assertTrue(limiter.tryAcquire("hsapiens"));
+        assertNotNull(enqueue("hsapiens", "queued"));
+        assertTrue(limiter.isQueueFull());
+
+        assertNull(enqueue("hsapiens", "rejected"));
+        assertEquals(1, limiter.getRejectedExports());
+        assertEquals(1, limiter.getQueueDepth());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxExportsMustBePositive() {
+        createLimiter(0, 1, 1);
+    }
+
+    private void createLimiter(int maxExports, int maxExportsPerSpecies, int maxQueuedExports) {
+        limiter = new ExportAdmissionLimiter(maxExports, maxExportsPerSpecies, maxQueuedExports,
+                                             QUEUE_TIMEOUT_SECONDS, RETRY_AFTER_SECONDS);
+        admittedExports = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    private ExportAdmissionLimiter.QueuedExport enqueue(String species, String export) {
+        return limiter.enqueue(species, () -> admittedExports.add(export), () -> admittedExports.add("timeout"));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 EMBL - European Bioinformatics Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.ebi.eva.vcfdump.server;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.embedded.LocalServerPort;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import uk.ac.ebi.eva.vcfdump.mongoutils.VariantDBAdaptorRegistry;
+import uk.ac.ebi.eva.vcfdump.rules.TestDBRule;
+
+import javax.ws.rs.core.HttpHeaders;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+public class VcfDumperWSServerTest {
+
+    private static final String STUDY = "7";
+
+    private static final String CHROMOSOME = "20";
+
+    @ClassRule
+    public static TestDBRule mongoRule = new TestDBRule();
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private ExportAdmissionLimiter admissionLimiter;
+
+    @Test
+    public void testGzipEncodedDownload() throws Exception {
+        List<String> vcfLines = readLines(openExport(null).getInputStream());
+
+        HttpURLConnection connection = openExport("gzip");
+        assertEquals("gzip", connection.getHeaderField(HttpHeaders.CONTENT_ENCODING));
+        // the response is streamed while it is compressed, so its length is not known in advance
+        assertEquals(-1, connection.getContentLength());
+        List<String> decompressedLines = readLines(new GZIPInputStream(connection.getInputStream()));
+
+        assertTrue(vcfLines.get(0).startsWith("##fileformat=VCF"));
+        assertTrue(vcfLines.stream().anyMatch(line -> line.startsWith(CHROMOSOME + "\t")));
+        assertEquals(vcfLines, decompressedLines);
+        assertExportsReleased();
+    }
+
+    @Test
+    public void testClientAbortReleasesExport() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream request = socket.getOutputStream();
+            request.write(("GET " + getExportPath() + " HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n\r\n")
+                                  .getBytes(StandardCharsets.US_ASCII));
+            request.flush();
+            // the client goes away as soon as the download starts
+            assertTrue(socket.getInputStream().read() >= 0);
+        }
+        assertExportsReleased();
+    }
+
+    @Test
+    public void testUnknownSampleReleasesAdaptor() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://localhost:" + port + getExportPath() + "&samples=unknown_sample").openConnection();
+        assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+        assertExportsReleased();
+
+        // the controller was created before the samples were checked, so it has to be closed
+        String dbName = TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB);
+        assertEquals(0, VariantDBAdaptorRegistry.getUsers(dbName));
+    }
+
+    @Test
+    public void testCacheInvalidationIsDisabledByDefault() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/v1/caches/hsapiens")
+                .openConnection();
+        connection.setRequestMethod("DELETE");
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, connection.getResponseCode());
+    }
+
+    private HttpURLConnection openExport(String acceptEncoding) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + getExportPath())
+                .openConnection();
+        if (acceptEncoding != null) {
+            connection.setRequestProperty(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        }
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        return connection;
+    }
+
+    private String getExportPath() {
+        String species = TestDBRule.getTemporaryDBName(TestDBRule.HUMAN_TEST_DB).substring("eva_".length());
+        return "/v1/segments/" + CHROMOSOME + "/variants?species=" + species + "&studies=" + STUDY;
+    }
+
+    private List<String> readLines(InputStream inputStream) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            return reader.lines().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * The permits are released by the export threads after the response is completed or aborted
+     */
+    private void assertExportsReleased() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (admissionLimiter.getRunningExports() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, admissionLimiter.getRunningExports());
+    }
+}